@@ -0,0 +1,152 @@
+package co.firstview.plugins.videocompressor;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the transcode loop itself, with codecs that do no work.
+ * <ul>
+ *   <li>{@link #transcode}: time per job of {@code frames} frames; run with {@code -Pjmh.profilers=gc}
+ *       for the allocation rate, which should stay flat as {@code frames} grows;</li>
+ *   <li>{@link #fairness}: {@code jobs} loops running at once on their own threads, reporting how far
+ *       apart the first and last job finish.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VideoTranscodeLoopBenchmark {
+
+    private static final int SAMPLE_SIZE = 8 * 1024;
+    private static final int FRAME_SIZE = 64 * 1024;
+    private static final long FRAME_US = 33_333;
+
+    /** One complete pipeline of fakes, reset between jobs so a run allocates nothing but the loop. */
+    static final class Pipeline {
+        final FakeSampleSource source;
+        final FakeCodec decoder;
+        final FakeCodec encoder;
+        final RecordingSink sink;
+        final PipelineMetrics metrics = new PipelineMetrics();
+
+        Pipeline(int frames, int latencyTicks) {
+            source = new FakeSampleSource(frames, SAMPLE_SIZE, FRAME_US, 30);
+            encoder = FakeCodec.encoder(8, FRAME_SIZE, latencyTicks, 50);
+            decoder = FakeCodec.decoder(4, SAMPLE_SIZE, latencyTicks, FRAME_SIZE).renderTo(encoder);
+            sink = new RecordingSink(frames);
+        }
+
+        int run() throws Exception {
+            source.rewind();
+            decoder.reset();
+            encoder.reset();
+            sink.reset();
+            VideoTranscodeLoop loop = new VideoTranscodeLoop(source, decoder, encoder, sink, new FrameRateSelector(0), metrics);
+            while (!loop.step()) {
+                // poll until end of stream
+            }
+            return sink.samples;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LoopState {
+        @Param({"300", "3000"})
+        int frames;
+
+        @Param({"0", "4"})
+        int latencyTicks;
+
+        Pipeline pipeline;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            pipeline = new Pipeline(frames, latencyTicks);
+        }
+    }
+
+    @Benchmark
+    public int transcode(LoopState state) throws Exception {
+        return state.pipeline.run();
+    }
+
+    @State(Scope.Thread)
+    public static class FairnessState {
+        @Param({"4"})
+        int jobs;
+
+        Pipeline[] pipelines;
+        ExecutorService pool;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            pipelines = new Pipeline[jobs];
+            for (int i = 0; i < jobs; i++) {
+                pipelines[i] = new Pipeline(1000, 4);
+            }
+            pool = Executors.newFixedThreadPool(jobs);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Finish-time spread of concurrent jobs; 0% means all finished together. */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Spread {
+        public long spreadPercentTotal;
+    }
+
+    @Benchmark
+    public void fairness(FairnessState state, Spread spread) throws Exception {
+        int jobs = state.jobs;
+        long[] finishedNs = new long[jobs];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(jobs);
+        for (int i = 0; i < jobs; i++) {
+            final int job = i;
+            state.pool.execute(() -> {
+                try {
+                    start.await();
+                    state.pipelines[job].run();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    finishedNs[job] = System.nanoTime();
+                    done.countDown();
+                }
+            });
+        }
+        long startNs = System.nanoTime();
+        start.countDown();
+        done.await();
+        long first = Long.MAX_VALUE, last = 0;
+        for (long t : finishedNs) {
+            first = Math.min(first, t - startNs);
+            last = Math.max(last, t - startNs);
+        }
+        spread.spreadPercentTotal += last > 0 ? (last - first) * 100 / last : 0;
+    }
+}
@@ -0,0 +1,477 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event-driven engine built on {@link MediaCodec#setCallback(MediaCodec.Callback, Handler)}.
+ * <p>
+ * Stages and the queues between them:
+ * <ul>
+ *   <li>extractor thread: takes free decoder input slots from {@code inputSlots} and fills them;</li>
+ *   <li>video decoder thread: renders decoded frames onto the encoder's input surface;</li>
+ *   <li>audio decoder / encoder threads: hand decoded PCM to free encoder inputs through a {@link PcmRing} in {@link #pumpAudio()};</li>
+ *   <li>encoder threads: copy encoded output into pooled {@link EncodedSample}s on {@code muxQueue};</li>
+ *   <li>calling thread: the muxer stage, writes samples and interleaves copied tracks.</li>
+ * </ul>
+ * All queues are bounded, so a slow muxer back-pressures the encoders instead of buffering the whole file.
+ * No thread spins: every stage blocks on a queue or waits for the next codec callback.
+ */
+final class AsyncTranscoder implements TranscodeEngine {
+
+    private static final String TAG = "VideoCompressor";
+
+    private static final int INPUT_QUEUE_CAPACITY = 64;
+    private static final int MUX_QUEUE_CAPACITY = 16;
+    /** More than any decoder's output buffer count, so the ring never refuses a buffer the decoder hands out. */
+    private static final int PCM_RING_CAPACITY = 64;
+    private static final int INITIAL_SAMPLE_CAPACITY = 256 * 1024;
+    private static final long POLL_TIMEOUT_MS = 100;
+
+    private static final int TRACK_VIDEO = 0;
+    private static final int TRACK_AUDIO = 1;
+
+    private final TranscodeSession session;
+
+    /** Free decoder input buffers: video index {@code i} as {@code i}, audio index {@code i} as {@code -(i + 1)}. */
+    private final BlockingQueue<Integer> inputSlots = new ArrayBlockingQueue<>(INPUT_QUEUE_CAPACITY);
+    private final BlockingQueue<EncodedSample> muxQueue = new ArrayBlockingQueue<>(MUX_QUEUE_CAPACITY);
+    private final BlockingQueue<EncodedSample> freeSamples = new ArrayBlockingQueue<>(MUX_QUEUE_CAPACITY);
+
+    // Audio decoder -> encoder handoff, guarded by audioLock
+    private final Object audioLock = new Object();
+    private PcmRing pcm;
+    private final ArrayDeque<Integer> freeEncoderInputs = new ArrayDeque<>();
+    private boolean audioEncoderEosQueued = false;
+
+    private HandlerThread videoDecoderThread;
+    private HandlerThread videoEncoderThread;
+    private HandlerThread audioDecoderThread;
+    private HandlerThread audioEncoderThread;
+    private Thread extractorThread;
+
+    private volatile boolean stopped = false;
+    private volatile Exception failure;
+
+    AsyncTranscoder(TranscodeSession session) {
+        this.session = session;
+        for (int i = 0; i < MUX_QUEUE_CAPACITY; i++) {
+            freeSamples.add(new EncodedSample());
+        }
+    }
+
+    @Override
+    public void run() throws Exception {
+        TranscodeSession s = session;
+        try {
+            s.createCodecs();
+            if (s.videoDecoder != null) {
+                videoDecoderThread = startThread("VideoCompressor-vdec");
+                videoEncoderThread = startThread("VideoCompressor-venc");
+                s.videoDecoder.setCallback(new VideoDecoderCallback(), new Handler(videoDecoderThread.getLooper()));
+                s.setVideoEncoderCallback(new EncoderCallback(TRACK_VIDEO), new Handler(videoEncoderThread.getLooper()));
+            }
+            if (s.audioDecoder != null) {
+                audioDecoderThread = startThread("VideoCompressor-adec");
+                audioEncoderThread = startThread("VideoCompressor-aenc");
+                pcm = new PcmRing(s.audioDecoder, PCM_RING_CAPACITY, s.newPcmProcessor());
+                s.audioDecoder.setCallback(new AudioDecoderCallback(), new Handler(audioDecoderThread.getLooper()));
+                s.audioEncoder.setCallback(new EncoderCallback(TRACK_AUDIO), new Handler(audioEncoderThread.getLooper()));
+            }
+
+            extractorThread = new Thread(this::feedDecoders, "VideoCompressor-extractor");
+            extractorThread.start();
+
+            s.startCodecs();
+            runMuxerStage();
+        } finally {
+            stopped = true;
+            if (extractorThread != null) {
+                extractorThread.interrupt();
+                try { extractorThread.join(1000); } catch (InterruptedException ignore) { Thread.currentThread().interrupt(); }
+            }
+            if (pcm != null) {
+                synchronized (audioLock) {
+                    pcm.clear();
+                }
+            }
+            // Stop the codecs before their looper threads go away so no callback lands on a dead handler.
+            s.releaseCodecs();
+            quit(videoDecoderThread);
+            quit(videoEncoderThread);
+            quit(audioDecoderThread);
+            quit(audioEncoderThread);
+        }
+    }
+
+    // ---- muxer stage (calling thread) ----
+
+    private void runMuxerStage() throws Exception {
+        TranscodeSession s = session;
+        boolean videoDone = false;
+        boolean audioDone = !s.hasAudio;
+        ByteBuffer copyBuffer = (s.copyVideo || s.copyAudio) ? s.allocateCopyBuffer() : null;
+        MediaCodec.BufferInfo copyInfo = new MediaCodec.BufferInfo();
+        // Samples that arrive before the other track's format is known are held until the muxer starts
+        ArrayDeque<EncodedSample> heldUntilStart = new ArrayDeque<>();
+
+        while (!videoDone || !audioDone) {
+            if (failure != null) {
+                throw failure;
+            }
+            // Blocking here while paused stalls the encoders through the bounded queues.
+            s.control.checkpoint();
+
+            if (s.copyVideo) {
+                while (!videoDone && s.isMuxerStarted() && s.videoCopyMayProceed(audioDone)) {
+                    s.control.checkpoint();
+                    if (!s.copyVideoSample(copyBuffer, copyInfo)) {
+                        videoDone = true;
+                        Log.d(TAG, "Video copy EOS.");
+                    }
+                }
+            }
+            if (s.copyAudio) {
+                while (!audioDone && s.isMuxerStarted() && s.audioCopyMayProceed(videoDone)) {
+                    s.control.checkpoint();
+                    if (!s.copyAudioSample(copyBuffer, copyInfo)) {
+                        audioDone = true;
+                        Log.d(TAG, "Audio copy EOS.");
+                    }
+                }
+            }
+            if (videoDone && audioDone) {
+                break;
+            }
+
+            // With callbacks, waiting for encoded output is the muxer stage's idle time on this queue.
+            long t = System.nanoTime();
+            EncodedSample sample = muxQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            s.metrics.addElapsed(PipelineMetrics.ENCODER_OUTPUT_WAIT_NS, t);
+            if (sample != null) {
+                heldUntilStart.add(sample);
+            }
+            if (!s.isMuxerStarted()) {
+                continue;
+            }
+            while (!heldUntilStart.isEmpty()) {
+                int eosTrack = write(heldUntilStart.poll());
+                if (eosTrack == TRACK_VIDEO) {
+                    videoDone = true;
+                    Log.d(TAG, "Video encoder EOS.");
+                } else if (eosTrack == TRACK_AUDIO) {
+                    audioDone = true;
+                    Log.d(TAG, "Audio encoder EOS.");
+                }
+            }
+        }
+    }
+
+    /** Writes a sample and returns it to the pool. Returns the sample's track if it carried EOS, else -1. */
+    private int write(EncodedSample sample) {
+        if (sample.track == TRACK_VIDEO) {
+            session.writeVideoSample(sample.data, sample.info);
+        } else {
+            session.writeAudioSample(sample.data, sample.info);
+        }
+        int eosTrack = (sample.info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 ? sample.track : -1;
+        freeSamples.offer(sample);
+        return eosTrack;
+    }
+
+    // ---- extractor stage ----
+
+    private void feedDecoders() {
+        TranscodeSession s = session;
+        boolean videoInputDone = s.videoDecoder == null;
+        boolean audioInputDone = s.audioDecoder == null;
+        try {
+            while (!stopped && (!videoInputDone || !audioInputDone)) {
+                long t = System.nanoTime();
+                Integer slot = inputSlots.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                s.metrics.addElapsed(PipelineMetrics.DECODER_INPUT_WAIT_NS, t);
+                if (slot == null) {
+                    continue;
+                }
+                int index = slot;
+                if (index >= 0) {
+                    if (!videoInputDone) {
+                        videoInputDone = queueSample(s.videoDecoder, index, s.videoInput);
+                    }
+                } else if (!audioInputDone) {
+                    audioInputDone = queueSample(s.audioDecoder, -index - 1, s.audioInput);
+                }
+            }
+        } catch (InterruptedException ignore) {
+            // shutting down
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /** Fills one decoder input buffer from the extractor. Returns true once end of stream was queued. */
+    private boolean queueSample(MediaCodec decoder, int index, SampleSource input) {
+        ByteBuffer inBuf = decoder.getInputBuffer(index);
+        long t = System.nanoTime();
+        int size = inBuf == null ? -1 : input.readSampleData(inBuf, 0);
+        if (size < 0) {
+            session.metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return true;
+        }
+        long pts = input.getSampleTime();
+        int flags = input.getSampleFlags();
+        if (flags < 0) flags = 0;
+        input.advance();
+        session.metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+        session.metrics.add(PipelineMetrics.INPUT_BYTES, size);
+        decoder.queueInputBuffer(index, 0, size, pts, flags);
+        return false;
+    }
+
+    // ---- codec callbacks ----
+
+    private final class VideoDecoderCallback extends MediaCodec.Callback {
+        private final FrameRateSelector frameRate = new FrameRateSelector(session.decimateToFrameRate, session.clip);
+        private boolean eosSignaled = false;
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            offerSlot(index);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            try {
+                boolean render = info.size != 0 && frameRate.accept(info.presentationTimeUs);
+                if (info.size != 0) {
+                    session.metrics.increment(render ? PipelineMetrics.FRAMES_DECODED : PipelineMetrics.FRAMES_DROPPED);
+                }
+                codec.releaseOutputBuffer(index, render);
+                if (render && session.videoRenderer != null) {
+                    session.videoRenderer.relay(info.presentationTimeUs);
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 && !eosSignaled) {
+                    eosSignaled = true;
+                    Log.d(TAG, "Video decoder EOS.");
+                    session.videoEncoder.signalEndOfInputStream();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            fail(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            // Rendering to a surface; the encoder does not care about the decoder's output format.
+        }
+    }
+
+    private final class AudioDecoderCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            offerSlot(-index - 1);
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            try {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0 && !session.inClip(info.presentationTimeUs)) {
+                    // Lead-in decoded from before a clip range
+                    codec.releaseOutputBuffer(index, false);
+                    return;
+                }
+                synchronized (audioLock) {
+                    if (!pcm.offer(index, codec.getOutputBuffer(index), info)) {
+                        throw new IllegalStateException("Audio PCM ring overflow");
+                    }
+                }
+                pumpAudio();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            fail(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            synchronized (audioLock) {
+                pcm.setPcmFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+            }
+        }
+    }
+
+    private final class EncoderCallback extends MediaCodec.Callback {
+        private final int track;
+
+        EncoderCallback(int track) {
+            this.track = track;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Only the audio encoder has input buffers; the video encoder is fed through its surface.
+            if (track != TRACK_AUDIO) {
+                return;
+            }
+            synchronized (audioLock) {
+                freeEncoderInputs.add(index);
+            }
+            pumpAudio();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            try {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    codec.releaseOutputBuffer(index, false);
+                    return;
+                }
+                EncodedSample sample = takeFreeSample();
+                if (sample == null) {
+                    codec.releaseOutputBuffer(index, false);
+                    return;
+                }
+                sample.copyFrom(track, codec.getOutputBuffer(index), info);
+                codec.releaseOutputBuffer(index, false);
+                putSample(sample);
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            fail(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (track == TRACK_VIDEO) {
+                session.addVideoTrack(format);
+            } else {
+                session.addAudioTrack(format);
+            }
+        }
+    }
+
+    /**
+     * Moves decoded PCM into free audio encoder inputs while both are available, then forwards EOS.
+     * Called from both audio codec threads; never blocks.
+     */
+    private void pumpAudio() {
+        MediaCodec encoder = session.audioEncoder;
+        if (encoder == null) {
+            return;
+        }
+        try {
+            synchronized (audioLock) {
+                while (!stopped && !audioEncoderEosQueued && !freeEncoderInputs.isEmpty()) {
+                    if (pcm.hasData()) {
+                        int inIdx = freeEncoderInputs.poll();
+                        ByteBuffer encIn = encoder.getInputBuffer(inIdx);
+                        long pts = pcm.nextPts();
+                        encIn.clear();
+                        encoder.queueInputBuffer(inIdx, 0, pcm.drainInto(encIn), pts, 0);
+                    } else if (pcm.isDrainedToEndOfStream()) {
+                        Log.d(TAG, "Audio decoder EOS.");
+                        int inIdx = freeEncoderInputs.poll();
+                        encoder.queueInputBuffer(inIdx, 0, 0, pcm.nextPts(), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        audioEncoderEosQueued = true;
+                    } else {
+                        break;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    // ---- plumbing ----
+
+    private void offerSlot(int slot) {
+        if (!inputSlots.offer(slot)) {
+            fail(new IllegalStateException("Decoder input queue overflow"));
+        }
+    }
+
+    private EncodedSample takeFreeSample() throws InterruptedException {
+        while (!stopped) {
+            EncodedSample sample = freeSamples.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (sample != null) {
+                return sample;
+            }
+        }
+        return null;
+    }
+
+    private void putSample(EncodedSample sample) throws InterruptedException {
+        while (!stopped) {
+            if (muxQueue.offer(sample, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    private void fail(Exception e) {
+        if (failure == null) {
+            Log.e(TAG, "Async pipeline failure", e);
+            failure = e;
+        }
+        stopped = true;
+    }
+
+    private static HandlerThread startThread(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return thread;
+    }
+
+    private static void quit(HandlerThread thread) {
+        if (thread != null) {
+            thread.quitSafely();
+        }
+    }
+
+    /** An encoded access unit copied out of a codec buffer so the buffer can be returned immediately. */
+    private static final class EncodedSample {
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer data = ByteBuffer.allocateDirect(INITIAL_SAMPLE_CAPACITY);
+        int track;
+
+        void copyFrom(int track, ByteBuffer src, MediaCodec.BufferInfo srcInfo) {
+            this.track = track;
+            int size = src == null ? 0 : srcInfo.size;
+            if (data.capacity() < size) {
+                data = ByteBuffer.allocateDirect(size);
+            }
+            data.clear();
+            if (size > 0) {
+                src.position(srcInfo.offset);
+                src.limit(srcInfo.offset + size);
+                data.put(src);
+            }
+            data.flip();
+            info.set(0, size, srcInfo.presentationTimeUs, srcInfo.flags);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Audio decode → encode stage running on its own thread, so the video loop is never held up by
+ * audio encoder back-pressure. PCM moves through a {@link PcmRing}; encoded output goes to the
+ * session's muxer via {@link TranscodeSession#awaitWriteTurn}, which keeps the two tracks within a
+ * bounded distance of each other.
+ */
+final class AudioTranscoder implements Runnable {
+
+    private static final String TAG = "VideoCompressor";
+
+    /** Blocking wait used when a pass made no progress; the thread sleeps in the codec instead of spinning. */
+    private static final long IDLE_TIMEOUT_US = 10_000;
+    private static final int RING_CAPACITY = 8;
+
+    private final TranscodeSession session;
+    private Thread thread;
+    private volatile Exception failure;
+
+    AudioTranscoder(TranscodeSession session) {
+        this.session = session;
+    }
+
+    void start() {
+        thread = new Thread(this, "VideoCompressor-audio");
+        thread.start();
+    }
+
+    /** Waits for the audio track to finish and rethrows anything that failed on the audio thread. */
+    void join() throws Exception {
+        while (thread.isAlive()) {
+            session.control.checkpoint();
+            thread.join(100);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /** Stops the thread if it is still running (the video side failed) and waits briefly so codecs are not released under it. */
+    void stop() {
+        if (thread != null && thread.isAlive()) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        TranscodeSession s = session;
+        MediaCodec decoder = s.audioDecoder;
+        MediaCodec encoder = s.audioEncoder;
+        PcmRing ring = new PcmRing(decoder, RING_CAPACITY, s.newPcmProcessor());
+        MediaCodec.BufferInfo decInfo = new MediaCodec.BufferInfo();
+        MediaCodec.BufferInfo encInfo = new MediaCodec.BufferInfo();
+        boolean inputDone = false, decDone = false, encEosQueued = false, encDone = false;
+        PipelineMetrics metrics = s.metrics;
+
+        try {
+            while (!encDone) {
+                s.control.checkpoint();
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                boolean progressed = false;
+
+                // Extractor -> decoder
+                if (!inputDone) {
+                    long t = System.nanoTime();
+                    int inIdx = decoder.dequeueInputBuffer(0);
+                    metrics.addElapsed(PipelineMetrics.DECODER_INPUT_WAIT_NS, t);
+                    if (inIdx >= 0) {
+                        ByteBuffer inBuf = decoder.getInputBuffer(inIdx);
+                        t = System.nanoTime();
+                        int size = s.audioInput.readSampleData(inBuf, 0);
+                        if (size < 0) {
+                            metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+                            decoder.queueInputBuffer(inIdx, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            long pts = s.audioInput.getSampleTime();
+                            int flags = s.audioInput.getSampleFlags();
+                            if (flags < 0) flags = 0;
+                            s.audioInput.advance();
+                            metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+                            metrics.add(PipelineMetrics.INPUT_BYTES, size);
+                            decoder.queueInputBuffer(inIdx, 0, size, pts, flags);
+                        }
+                        progressed = true;
+                    }
+                }
+
+                // Decoder -> ring (the ring keeps the decoder's buffers, no copy)
+                while (!decDone && !ring.isFull()) {
+                    long t = System.nanoTime();
+                    int outIdx = decoder.dequeueOutputBuffer(decInfo, 0);
+                    metrics.addElapsed(PipelineMetrics.DECODER_OUTPUT_WAIT_NS, t);
+                    if (outIdx == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        break;
+                    } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        MediaFormat pcm = decoder.getOutputFormat();
+                        ring.setPcmFormat(pcm.getInteger(MediaFormat.KEY_SAMPLE_RATE), pcm.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                        Log.d(TAG, "Audio decoder output format: " + pcm);
+                    } else if (outIdx >= 0 && (decInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) == 0
+                            && !s.inClip(decInfo.presentationTimeUs)) {
+                        // Lead-in decoded from before a clip range
+                        decoder.releaseOutputBuffer(outIdx, false);
+                        progressed = true;
+                    } else if (outIdx >= 0) {
+                        ring.offer(outIdx, decoder.getOutputBuffer(outIdx), decInfo);
+                        if ((decInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            decDone = true;
+                            Log.d(TAG, "Audio decoder EOS.");
+                        }
+                        progressed = true;
+                    }
+                }
+
+                // Ring -> encoder inputs
+                while (!encEosQueued && (ring.hasData() || ring.isDrainedToEndOfStream())) {
+                    int inIdx = encoder.dequeueInputBuffer(0);
+                    if (inIdx < 0) {
+                        break;
+                    }
+                    long pts = ring.nextPts();
+                    if (ring.hasData()) {
+                        ByteBuffer encIn = encoder.getInputBuffer(inIdx);
+                        encIn.clear();
+                        int written = ring.drainInto(encIn);
+                        encoder.queueInputBuffer(inIdx, 0, written, pts, 0);
+                    } else {
+                        encoder.queueInputBuffer(inIdx, 0, 0, pts, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        encEosQueued = true;
+                    }
+                    progressed = true;
+                }
+
+                // Encoder -> muxer
+                while (true) {
+                    long t = System.nanoTime();
+                    int outIdx = encoder.dequeueOutputBuffer(encInfo, progressed ? 0 : IDLE_TIMEOUT_US);
+                    metrics.addElapsed(PipelineMetrics.ENCODER_OUTPUT_WAIT_NS, t);
+                    if (outIdx == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        break;
+                    } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        s.addAudioTrack(encoder.getOutputFormat());
+                    } else if (outIdx >= 0) {
+                        if (encInfo.size > 0 && (encInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                            s.awaitWriteTurn(false, encInfo.presentationTimeUs);
+                        }
+                        s.writeAudioSample(encoder.getOutputBuffer(outIdx), encInfo);
+                        encoder.releaseOutputBuffer(outIdx, false);
+                        if ((encInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            encDone = true;
+                            Log.d(TAG, "Audio encoder EOS.");
+                            break;
+                        }
+                    }
+                    progressed = true;
+                }
+            }
+        } catch (Exception e) {
+            failure = e;
+            s.fail(e);
+        } finally {
+            ring.clear();
+            s.markAudioDone();
+        }
+    }
+}
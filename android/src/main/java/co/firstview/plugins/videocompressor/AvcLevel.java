@@ -0,0 +1,57 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+/**
+ * The lowest H.264 level whose limits (ITU-T H.264 Table A-1) fit a stream. Players and hardware decoders
+ * decide from the advertised level, not from the stream itself, and many refuse 5.x; an encoder's highest
+ * level is therefore the wrong thing to ask for.
+ * <p>
+ * Only the constants are taken from the platform, so this stays plain Java.
+ */
+final class AvcLevel {
+
+    private static final int[] LEVELS = {
+            CodecProfileLevel.AVCLevel1, CodecProfileLevel.AVCLevel11, CodecProfileLevel.AVCLevel12,
+            CodecProfileLevel.AVCLevel13, CodecProfileLevel.AVCLevel2, CodecProfileLevel.AVCLevel21,
+            CodecProfileLevel.AVCLevel22, CodecProfileLevel.AVCLevel3, CodecProfileLevel.AVCLevel31,
+            CodecProfileLevel.AVCLevel32, CodecProfileLevel.AVCLevel4, CodecProfileLevel.AVCLevel41,
+            CodecProfileLevel.AVCLevel42, CodecProfileLevel.AVCLevel5, CodecProfileLevel.AVCLevel51,
+            CodecProfileLevel.AVCLevel52,
+    };
+    /** Macroblocks per second. */
+    private static final long[] MAX_MBPS = {
+            1485, 3000, 6000, 11880, 11880, 19800, 20250, 40500, 108000, 216000, 245760, 245760, 522240,
+            589824, 983040, 2073600,
+    };
+    /** Macroblocks per frame. */
+    private static final int[] MAX_FS = {
+            99, 396, 396, 396, 396, 792, 1620, 1620, 3600, 5120, 8192, 8192, 8704, 22080, 36864, 36864,
+    };
+    /** Video bitrate in kbit/s for Baseline and Main; High allows 1.25 times as much. */
+    private static final int[] MAX_BR = {
+            64, 192, 384, 768, 2000, 4000, 4000, 10000, 14000, 20000, 20000, 50000, 50000, 135000, 240000, 240000,
+    };
+
+    private AvcLevel() {}
+
+    /**
+     * @param high whether the stream uses High profile, which raises the bitrate limits
+     * @return a {@code CodecProfileLevel.AVCLevel*} constant, or 0 if the stream exceeds level 5.2
+     */
+    static int minimum(int width, int height, int frameRate, int bitrate, boolean high) {
+        long mbWidth = (width + 15) / 16;
+        long mbHeight = (height + 15) / 16;
+        long frameSize = mbWidth * mbHeight;
+        long mbPerSecond = frameSize * Math.max(1, frameRate);
+        for (int i = 0; i < LEVELS.length; i++) {
+            long maxBitrate = MAX_BR[i] * (high ? 1250L : 1000L);
+            // Neither side may exceed sqrt(8 * MaxFS) macroblocks
+            boolean sides = mbWidth * mbWidth <= 8L * MAX_FS[i] && mbHeight * mbHeight <= 8L * MAX_FS[i];
+            if (frameSize <= MAX_FS[i] && sides && mbPerSecond <= MAX_MBPS[i] && bitrate <= maxBitrate) {
+                return LEVELS[i];
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,139 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The parts of the source a job keeps: sorted, non-overlapping {@code [start, end)} ranges in source
+ * microseconds. On the output timeline the ranges follow each other without gaps, starting at 0;
+ * {@link #toOutputUs} maps a source time onto it.
+ * <p>
+ * Only the last range may be open-ended ({@code Long.MAX_VALUE}), running to the end of the source.
+ */
+final class ClipRanges {
+
+    private final long[] starts;
+    private final long[] ends;
+    /** Output time at which each range begins. */
+    private final long[] offsets;
+
+    private ClipRanges(long[] starts, long[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+        this.offsets = new long[starts.length];
+        for (int i = 1; i < starts.length; i++) {
+            offsets[i] = offsets[i - 1] + ends[i - 1] - starts[i - 1];
+        }
+    }
+
+    /**
+     * Ranges from {@code {start, end}} pairs in ms, in any order; overlapping and touching ones are merged.
+     * An end of 0 or less runs to the end of the source.
+     *
+     * @throws IllegalArgumentException if there is no range, or one ends before it starts
+     */
+    static ClipRanges fromMs(long[][] rangesMs) {
+        if (rangesMs == null || rangesMs.length == 0) {
+            throw new IllegalArgumentException("No clip range given");
+        }
+        long[][] sorted = new long[rangesMs.length][];
+        for (int i = 0; i < rangesMs.length; i++) {
+            long[] r = rangesMs[i];
+            if (r == null || r.length != 2) {
+                throw new IllegalArgumentException("A clip range needs a start and an end");
+            }
+            long start = Math.max(0, r[0]) * 1000;
+            long end = r[1] > 0 ? r[1] * 1000 : Long.MAX_VALUE;
+            if (end <= start) {
+                throw new IllegalArgumentException("Clip range ends before it starts: " + r[0] + "-" + r[1] + " ms");
+            }
+            sorted[i] = new long[]{start, end};
+        }
+        Arrays.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+
+        List<long[]> merged = new ArrayList<>();
+        for (long[] r : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && r[0] <= last[1]) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                merged.add(r);
+            }
+        }
+        long[] starts = new long[merged.size()];
+        long[] ends = new long[merged.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = merged.get(i)[0];
+            ends[i] = merged.get(i)[1];
+        }
+        return new ClipRanges(starts, ends);
+    }
+
+    /** A single range. */
+    static ClipRanges of(long startUs, long endUs) {
+        return new ClipRanges(new long[]{startUs}, new long[]{endUs});
+    }
+
+    int size() {
+        return starts.length;
+    }
+
+    long startUs(int range) {
+        return starts[range];
+    }
+
+    long endUs(int range) {
+        return ends[range];
+    }
+
+    /** Start of the first range. */
+    long startUs() {
+        return starts[0];
+    }
+
+    /** End of the last range; {@code Long.MAX_VALUE} if it runs to the end of the source. */
+    long endUs() {
+        return ends[ends.length - 1];
+    }
+
+    boolean contains(long ptsUs) {
+        for (int i = 0; i < starts.length; i++) {
+            if (ptsUs < starts[i]) return false;
+            if (ptsUs < ends[i]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Position of source time {@code ptsUs} on the output timeline. Times before the first range map to 0
+     * and times in a gap to where the next range begins, so the mapping never goes backwards.
+     */
+    long toOutputUs(long ptsUs) {
+        for (int i = starts.length - 1; i >= 0; i--) {
+            if (ptsUs >= starts[i]) {
+                return offsets[i] + Math.min(ptsUs, ends[i]) - starts[i];
+            }
+        }
+        return 0;
+    }
+
+    /** Total length of the ranges within a source of {@code sourceDurationUs}. */
+    long durationUs(long sourceDurationUs) {
+        long total = 0;
+        for (int i = 0; i < starts.length && starts[i] < sourceDurationUs; i++) {
+            total += Math.min(ends[i], sourceDurationUs) - starts[i];
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < starts.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(starts[i] / 1000).append('-').append(ends[i] == Long.MAX_VALUE ? "end" : String.valueOf(ends[i] / 1000));
+        }
+        return sb.toString();
+    }
+}
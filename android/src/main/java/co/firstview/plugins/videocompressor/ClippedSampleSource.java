@@ -0,0 +1,102 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link SampleSource} that only yields the samples needed to decode the {@link ClipRanges}: each range
+ * is entered by seeking to the sync sample before its start and left once the end is passed, after which
+ * the source reports end of stream or jumps to the next range. Content outside the ranges is never read,
+ * except the lead-in from the sync sample, which the decoder needs and the caller drops after decoding.
+ * <p>
+ * A range ends at the first sync sample at or after its end, or at the first sample more than
+ * {@link #REORDER_SLACK_US} past it. Stopping at the first later sample would cut off frames that come
+ * after it in decode order but before the end in presentation order.
+ * <p>
+ * When the next range starts in a GOP that was already partly read, reading continues where it stopped
+ * instead of seeking back, so the decoder never sees a sample twice.
+ */
+final class ClippedSampleSource implements SampleSource {
+
+    /** How far past a range end a B-frame can still be reordered to before it. */
+    static final long REORDER_SLACK_US = 250_000;
+    private static final int SAMPLE_FLAG_SYNC = 1;
+
+    private final SampleSource source;
+    private final ClipRanges ranges;
+    private int range = 0;
+    private boolean ended = false;
+
+    ClippedSampleSource(SampleSource source, ClipRanges ranges) {
+        this.source = source;
+        this.ranges = ranges;
+        if (ranges.startUs() > 0) {
+            source.seekTo(ranges.startUs());
+        }
+        position();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return ended ? -1 : source.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public long getSampleTime() {
+        return ended ? -1 : source.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return ended ? -1 : source.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        if (ended) {
+            return false;
+        }
+        source.advance();
+        position();
+        return !ended;
+    }
+
+    /** Restarts at the range containing or following {@code timeUs}. */
+    @Override
+    public void seekTo(long timeUs) {
+        range = 0;
+        while (range < ranges.size() && ranges.endUs(range) <= timeUs) range++;
+        ended = range == ranges.size();
+        if (!ended) {
+            source.seekTo(Math.max(timeUs, ranges.startUs(range)));
+            position();
+        }
+    }
+
+    /** Moves past the current range's end if the source has reached it. */
+    private void position() {
+        while (!ended) {
+            long t = source.getSampleTime();
+            if (t < 0) {
+                ended = true;
+                return;
+            }
+            long end = ranges.endUs(range);
+            boolean sync = (source.getSampleFlags() & SAMPLE_FLAG_SYNC) != 0;
+            if (t < end || (!sync && t - end < REORDER_SLACK_US)) {
+                return;
+            }
+            if (++range == ranges.size()) {
+                ended = true;
+                return;
+            }
+            source.seekTo(ranges.startUs(range));
+            long landed = source.getSampleTime();
+            if (landed >= 0 && landed < t) {
+                // Everything from that sync sample up to t was read already; skip back to t
+                while (source.getSampleTime() >= 0 && source.getSampleTime() != t) {
+                    source.advance();
+                }
+            }
+        }
+    }
+}
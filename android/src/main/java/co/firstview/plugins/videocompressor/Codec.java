@@ -0,0 +1,38 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@code MediaCodec}'s synchronous buffer API the transcode loop uses. Constants have the
+ * same values as MediaCodec's, so the device adapter passes them through unchanged.
+ *
+ * @see MediaCodecAdapter
+ */
+interface Codec {
+
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    int BUFFER_FLAG_KEY_FRAME = 1;
+    int BUFFER_FLAG_CODEC_CONFIG = 2;
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    /** {@code render} sends a decoded frame to the output surface, i.e. into the encoder. */
+    void releaseOutputBuffer(int index, boolean render);
+
+    /** End of stream for surface input. */
+    void signalEndOfInputStream();
+
+    TrackFormat getOutputFormat();
+}
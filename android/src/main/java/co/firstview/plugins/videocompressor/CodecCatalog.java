@@ -0,0 +1,476 @@
+package co.firstview.plugins.videocompressor;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What the device's codecs can do, for the mime types this plugin uses.
+ * <p>
+ * {@link MediaCodecList} is enumerated once per OS build: the result is kept in memory for the process
+ * and persisted to {@code files/video-compressor/codecs.json} under {@link Build#FINGERPRINT}, so later
+ * cold starts read a small file instead of instantiating every codec's capabilities. An OS update
+ * changes the fingerprint and triggers a rescan.
+ * <p>
+ * Encoders are ranked hardware-accelerated first, then in platform order.
+ */
+final class CodecCatalog {
+
+    private static final String TAG = "VideoCompressor";
+    private static final int FORMAT_VERSION = 3;
+    /** Width step of {@link Entry#minHeights}/{@link Entry#maxHeights}; a macroblock. */
+    static final int SIZE_STEP = 16;
+    private static final String[] MIME_TYPES = {
+            MediaFormat.MIMETYPE_VIDEO_AVC,
+            MediaFormat.MIMETYPE_VIDEO_HEVC,
+            "video/av01",
+            MediaFormat.MIMETYPE_AUDIO_AAC,
+    };
+
+    private static CodecCatalog instance;
+
+    /** One codec/mime pair. Video limits are 0 for audio codecs. */
+    static final class Entry {
+        final String name;
+        final String mime;
+        final boolean encoder;
+        final boolean hardware;
+        final int maxInstances;
+        final int minWidth, maxWidth, minHeight, maxHeight;
+        final int widthAlignment, heightAlignment;
+        final int minBitrate, maxBitrate;
+        /** Profile/level pairs, as in {@code CodecCapabilities.profileLevels}. */
+        final int[] profiles;
+        final int[] levels;
+        /** Bit {@code 1 << mode} per supported {@code EncoderCapabilities.BITRATE_MODE_*}; 0 for decoders. */
+        final int bitrateModes;
+        /** Encoder complexity range; equal when the encoder has no complexity setting. */
+        final int minComplexity, maxComplexity;
+        /** Highest frame rate the codec supports at any size; 0 if unknown. */
+        final int maxFrameRate;
+        /**
+         * Supported heights for width {@code SIZE_STEP * (i + 1)} (rounded up to the width alignment and
+         * capped at {@link #maxWidth}), from {@code getSupportedHeightsFor}; 0 where that width is unsupported.
+         * The frame-size limit and aspect range make these narrower than the overall height range, so e.g. a
+         * 1280x720 encoder can refuse 720x1280. Empty if unknown.
+         */
+        final int[] minHeights, maxHeights;
+        /** Pixels per second the codec can process, from {@code getSupportedFrameRatesFor}; 0 if unknown. */
+        final long maxPixelRate;
+
+        Entry(String name, String mime, boolean encoder, boolean hardware, int maxInstances,
+              int minWidth, int maxWidth, int minHeight, int maxHeight, int widthAlignment, int heightAlignment,
+              int minBitrate, int maxBitrate, int[] profiles, int[] levels, int bitrateModes,
+              int minComplexity, int maxComplexity, int maxFrameRate, int[] minHeights, int[] maxHeights,
+              long maxPixelRate) {
+            this.name = name;
+            this.mime = mime;
+            this.encoder = encoder;
+            this.hardware = hardware;
+            this.maxInstances = maxInstances;
+            this.minWidth = minWidth;
+            this.maxWidth = maxWidth;
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.widthAlignment = widthAlignment;
+            this.heightAlignment = heightAlignment;
+            this.minBitrate = minBitrate;
+            this.maxBitrate = maxBitrate;
+            this.profiles = profiles;
+            this.levels = levels;
+            this.bitrateModes = bitrateModes;
+            this.minComplexity = minComplexity;
+            this.maxComplexity = maxComplexity;
+            this.maxFrameRate = maxFrameRate;
+            this.minHeights = minHeights;
+            this.maxHeights = maxHeights;
+            this.maxPixelRate = maxPixelRate;
+        }
+
+        /**
+         * Like {@code VideoCapabilities.areSizeAndRateSupported}, from the persisted limits. Widths between
+         * two samples are judged by the wider one, which is never more permissive.
+         *
+         * @param frameRate 0 to check the size only
+         */
+        boolean supports(int width, int height, int frameRate) {
+            if (maxWidth <= 0) return true;
+            if (width < minWidth || width > maxWidth || height < minHeight || height > maxHeight
+                    || width % Math.max(1, widthAlignment) != 0 || height % Math.max(1, heightAlignment) != 0) {
+                return false;
+            }
+            if (maxHeights.length > 0) {
+                int i = Math.min(maxHeights.length - 1, Math.max(0, (width + SIZE_STEP - 1) / SIZE_STEP - 1));
+                if (height < minHeights[i] || height > maxHeights[i]) {
+                    return false;
+                }
+            }
+            if (frameRate <= 0) return true;
+            if (maxFrameRate > 0 && frameRate > maxFrameRate) return false;
+            // The codec counts whole blocks; rounding to macroblocks keeps the estimate on the safe side
+            long pixels = (long) roundUp(width, SIZE_STEP) * roundUp(height, SIZE_STEP);
+            return maxPixelRate <= 0 || pixels * frameRate <= maxPixelRate;
+        }
+
+        boolean supportsProfile(int profile) {
+            for (int p : profiles) {
+                if (p == profile) return true;
+            }
+            return false;
+        }
+
+        /** Highest level advertised for {@code profile}, or 0 if the profile is not supported. */
+        int maxLevel(int profile) {
+            int level = 0;
+            for (int i = 0; i < profiles.length; i++) {
+                if (profiles[i] == profile) level = Math.max(level, levels[i]);
+            }
+            return level;
+        }
+
+        boolean supportsBitrateMode(int mode) {
+            return (bitrateModes & (1 << mode)) != 0;
+        }
+
+        int clampBitrate(int bitrate) {
+            if (maxBitrate <= 0) return bitrate;
+            return Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+        }
+
+        @Override
+        public String toString() {
+            return name + (hardware ? " (hw)" : " (sw)") + " " + mime + " " + maxWidth + "x" + maxHeight
+                    + " bitrate " + minBitrate + ".." + maxBitrate + " instances " + maxInstances;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private CodecCatalog(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /** The catalog for this process: memory, then the persisted file, then a fresh scan. */
+    static synchronized CodecCatalog get(Context context) {
+        if (instance == null) {
+            File file = new File(new File(context.getFilesDir(), "video-compressor"), "codecs.json");
+            List<Entry> cached = load(file);
+            if (cached != null) {
+                instance = new CodecCatalog(cached);
+                Log.d(TAG, "Codec catalog loaded: " + cached.size() + " entries");
+            } else {
+                long startNs = System.nanoTime();
+                List<Entry> scanned = scan();
+                instance = new CodecCatalog(scanned);
+                Log.d(TAG, "Codec catalog scanned in " + (System.nanoTime() - startNs) / 1_000_000 + " ms: " + scanned.size() + " entries");
+                save(file, scanned);
+            }
+        }
+        return instance;
+    }
+
+    /** Encoders for {@code mime}, hardware first. */
+    List<Entry> encoders(String mime) {
+        List<Entry> hardware = new ArrayList<>();
+        List<Entry> software = new ArrayList<>();
+        for (Entry e : entries) {
+            if (e.encoder && e.mime.equalsIgnoreCase(mime)) {
+                (e.hardware ? hardware : software).add(e);
+            }
+        }
+        hardware.addAll(software);
+        return hardware;
+    }
+
+    /**
+     * The best-ranked encoder that accepts the size at the frame rate, or null if none does. An encoder
+     * with coarser alignment is judged at the size {@link TargetPlanner#fitAlignment} gives for it.
+     *
+     * @param frameRate 0 to check the size only
+     */
+    Entry findEncoder(String mime, int width, int height, int frameRate) {
+        for (Entry e : encoders(mime)) {
+            int[] size = TargetPlanner.fitAlignment(width, height, e.widthAlignment, e.heightAlignment);
+            if (e.supports(size[0], size[1], frameRate)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** The first decoder for {@code mime} in platform order (what {@code createDecoderByType} would pick). */
+    Entry findDecoder(String mime) {
+        for (Entry e : entries) {
+            if (!e.encoder && e.mime.equalsIgnoreCase(mime)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** How many {@code decoderMime} decoders, each paired with an {@code encoderMime} encoder, can be open at once; at least 1. */
+    int instanceLimit(String decoderMime, String encoderMime) {
+        List<Entry> encoders = encoders(encoderMime);
+        Entry decoder = findDecoder(decoderMime);
+        int enc = encoders.isEmpty() ? 1 : encoders.get(0).maxInstances;
+        int dec = decoder == null ? 1 : decoder.maxInstances;
+        return Math.max(1, Math.min(enc, dec));
+    }
+
+    /**
+     * The lowest {@link #instanceLimit} of an AVC source paired with any output codec this device can write,
+     * so concurrent jobs fit whichever codec each of them picks.
+     */
+    int jobInstanceLimit() {
+        int limit = Integer.MAX_VALUE;
+        for (OutputCodec c : OutputCodec.values()) {
+            if (Build.VERSION.SDK_INT >= c.minSdk && !encoders(c.mime).isEmpty()) {
+                limit = Math.min(limit, instanceLimit(MediaFormat.MIMETYPE_VIDEO_AVC, c.mime));
+            }
+        }
+        return limit == Integer.MAX_VALUE ? 1 : limit;
+    }
+
+    // ---- scanning ----
+
+    private static List<Entry> scan() {
+        List<Entry> out = new ArrayList<>();
+        MediaCodecInfo[] infos;
+        try {
+            infos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } catch (Exception e) {
+            Log.w(TAG, "MediaCodecList unavailable", e);
+            return out;
+        }
+        for (MediaCodecInfo info : infos) {
+            if (Build.VERSION.SDK_INT >= 29 && info.isAlias()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!isWanted(type)) continue;
+                try {
+                    out.add(describe(info, type));
+                } catch (Exception e) {
+                    // Some vendor codecs throw for capabilities they advertise; leave them out.
+                    Log.w(TAG, "Skipping codec " + info.getName() + " for " + type, e);
+                }
+            }
+        }
+        return out;
+    }
+
+    private static boolean isWanted(String type) {
+        for (String mime : MIME_TYPES) {
+            if (mime.equalsIgnoreCase(type)) return true;
+        }
+        return false;
+    }
+
+    private static Entry describe(MediaCodecInfo info, String type) {
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(type);
+        int minW = 0, maxW = 0, minH = 0, maxH = 0, alignW = 1, alignH = 1, minBr = 0, maxBr = 0, maxFps = 0;
+        int[] minHeights = new int[0];
+        int[] maxHeights = new int[0];
+        long maxPixelRate = 0;
+        MediaCodecInfo.VideoCapabilities video = caps.getVideoCapabilities();
+        if (video != null) {
+            Range<Integer> widths = video.getSupportedWidths();
+            Range<Integer> heights = video.getSupportedHeights();
+            minW = widths.getLower();
+            maxW = widths.getUpper();
+            minH = heights.getLower();
+            maxH = heights.getUpper();
+            alignW = video.getWidthAlignment();
+            alignH = video.getHeightAlignment();
+            minBr = video.getBitrateRange().getLower();
+            maxBr = video.getBitrateRange().getUpper();
+            maxFps = video.getSupportedFrameRates().getUpper();
+            int samples = (maxW + SIZE_STEP - 1) / SIZE_STEP;
+            minHeights = new int[samples];
+            maxHeights = new int[samples];
+            for (int i = 0; i < samples; i++) {
+                int w = Math.min(maxW, roundUp(SIZE_STEP * (i + 1), alignW));
+                if (w < minW) continue;
+                try {
+                    Range<Integer> h = video.getSupportedHeightsFor(w);
+                    minHeights[i] = h.getLower();
+                    maxHeights[i] = h.getUpper();
+                    // Each supported size bounds the pixel rate from below; the largest bound is the best estimate
+                    Range<Double> fps = video.getSupportedFrameRatesFor(w, maxHeights[i]);
+                    maxPixelRate = Math.max(maxPixelRate, (long) ((long) w * maxHeights[i] * fps.getUpper()));
+                } catch (IllegalArgumentException e) {
+                    // Width unsupported: both stay 0, which rejects every height
+                }
+            }
+        } else if (caps.getAudioCapabilities() != null) {
+            minBr = caps.getAudioCapabilities().getBitrateRange().getLower();
+            maxBr = caps.getAudioCapabilities().getBitrateRange().getUpper();
+        }
+        int[] profiles = new int[caps.profileLevels.length];
+        int[] levels = new int[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = caps.profileLevels[i].profile;
+            levels[i] = caps.profileLevels[i].level;
+        }
+        int modes = 0, minComplexity = 0, maxComplexity = 0;
+        MediaCodecInfo.EncoderCapabilities encoder = info.isEncoder() ? caps.getEncoderCapabilities() : null;
+        if (encoder != null) {
+            for (int mode : new int[]{MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR}) {
+                if (encoder.isBitrateModeSupported(mode)) modes |= 1 << mode;
+            }
+            minComplexity = encoder.getComplexityRange().getLower();
+            maxComplexity = encoder.getComplexityRange().getUpper();
+        }
+        return new Entry(info.getName(), type.toLowerCase(Locale.US), info.isEncoder(), isHardware(info),
+                caps.getMaxSupportedInstances(), minW, maxW, minH, maxH, alignW, alignH, minBr, maxBr, profiles, levels,
+                modes, minComplexity, maxComplexity, maxFps, minHeights, maxHeights, maxPixelRate);
+    }
+
+    private static int roundUp(int value, int multiple) {
+        int m = Math.max(1, multiple);
+        return (value + m - 1) / m * m;
+    }
+
+    private static boolean isHardware(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= 29) {
+            return info.isHardwareAccelerated();
+        }
+        // Before Q the platform does not say; its software codecs follow these naming conventions.
+        String name = info.getName().toLowerCase(Locale.US);
+        return !(name.startsWith("omx.google.") || name.startsWith("c2.android.") || name.startsWith("c2.google.")
+                || name.contains(".sw."));
+    }
+
+    // ---- persistence ----
+
+    private static List<Entry> load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            JSONObject root = new JSONObject(new String(bytes, 0, read, StandardCharsets.UTF_8));
+            if (root.optInt("version") != FORMAT_VERSION || !Build.FINGERPRINT.equals(root.optString("fingerprint"))) {
+                Log.d(TAG, "Codec catalog is for another build; rescanning");
+                return null;
+            }
+            JSONArray codecs = root.getJSONArray("codecs");
+            List<Entry> out = new ArrayList<>(codecs.length());
+            for (int i = 0; i < codecs.length(); i++) {
+                JSONObject c = codecs.getJSONObject(i);
+                JSONArray p = c.getJSONArray("profiles");
+                JSONArray l = c.getJSONArray("levels");
+                int[] profiles = new int[p.length()];
+                int[] levels = new int[profiles.length];
+                for (int j = 0; j < profiles.length; j++) {
+                    profiles[j] = p.getInt(j);
+                    levels[j] = l.getInt(j);
+                }
+                JSONArray hMin = c.getJSONArray("minHeights");
+                JSONArray hMax = c.getJSONArray("maxHeights");
+                int[] minHeights = new int[hMin.length()];
+                int[] maxHeights = new int[minHeights.length];
+                for (int j = 0; j < minHeights.length; j++) {
+                    minHeights[j] = hMin.getInt(j);
+                    maxHeights[j] = hMax.getInt(j);
+                }
+                out.add(new Entry(c.getString("name"), c.getString("mime"), c.getBoolean("encoder"),
+                        c.getBoolean("hardware"), c.getInt("maxInstances"),
+                        c.getInt("minWidth"), c.getInt("maxWidth"), c.getInt("minHeight"), c.getInt("maxHeight"),
+                        c.getInt("widthAlignment"), c.getInt("heightAlignment"),
+                        c.getInt("minBitrate"), c.getInt("maxBitrate"), profiles, levels, c.getInt("bitrateModes"),
+                        c.getInt("minComplexity"), c.getInt("maxComplexity"), c.getInt("maxFrameRate"),
+                        minHeights, maxHeights, c.getLong("maxPixelRate")));
+            }
+            return out;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Codec catalog unreadable; rescanning", e);
+            return null;
+        }
+    }
+
+    private static void save(File file, List<Entry> entries) {
+        try {
+            JSONArray codecs = new JSONArray();
+            for (Entry e : entries) {
+                JSONArray profiles = new JSONArray();
+                for (int p : e.profiles) profiles.put(p);
+                JSONArray levels = new JSONArray();
+                for (int l : e.levels) levels.put(l);
+                JSONArray minHeights = new JSONArray();
+                for (int h : e.minHeights) minHeights.put(h);
+                JSONArray maxHeights = new JSONArray();
+                for (int h : e.maxHeights) maxHeights.put(h);
+                codecs.put(new JSONObject()
+                        .put("name", e.name)
+                        .put("mime", e.mime)
+                        .put("encoder", e.encoder)
+                        .put("hardware", e.hardware)
+                        .put("maxInstances", e.maxInstances)
+                        .put("minWidth", e.minWidth)
+                        .put("maxWidth", e.maxWidth)
+                        .put("minHeight", e.minHeight)
+                        .put("maxHeight", e.maxHeight)
+                        .put("widthAlignment", e.widthAlignment)
+                        .put("heightAlignment", e.heightAlignment)
+                        .put("minBitrate", e.minBitrate)
+                        .put("maxBitrate", e.maxBitrate)
+                        .put("profiles", profiles)
+                        .put("levels", levels)
+                        .put("bitrateModes", e.bitrateModes)
+                        .put("minComplexity", e.minComplexity)
+                        .put("maxComplexity", e.maxComplexity)
+                        .put("maxFrameRate", e.maxFrameRate)
+                        .put("minHeights", minHeights)
+                        .put("maxHeights", maxHeights)
+                        .put("maxPixelRate", e.maxPixelRate));
+            }
+            JSONObject root = new JSONObject()
+                    .put("version", FORMAT_VERSION)
+                    .put("fingerprint", Build.FINGERPRINT)
+                    .put("codecs", codecs);
+
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            // Write then rename, so a crash mid-write never leaves a truncated catalog behind.
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                out.write(root.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp);
+            }
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not persist codec catalog", e);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps allocated codecs between jobs. Allocating a MediaCodec instantiates the component in the media
+ * server, which is slow on many devices; a codec that was {@link MediaCodec#reset() reset} instead of
+ * released skips that and only needs configuring for the next job's format.
+ * <p>
+ * Only the allocation is saved, not the configuration: a started codec cannot return to the configured
+ * state, and both {@code stop()} and {@code reset()} leave it unconfigured. Pooled codecs are therefore
+ * always handed out unconfigured, whatever format they ran with before.
+ * <p>
+ * Idle codecs are matched by codec name (encoders, as chosen from {@link CodecCatalog}) or by mime
+ * (decoders, as {@code createDecoderByType} would pick), and released after {@link #IDLE_TIMEOUT_MS}.
+ * Idle codecs still hold hardware instances, so a failed allocation drops the idle ones and retries once.
+ */
+final class CodecPool {
+
+    private static final String TAG = "VideoCompressor";
+
+    static final long IDLE_TIMEOUT_MS = 30_000;
+    /** Idle codecs kept per name; one job's worth, plus one for a job starting while another finishes. */
+    private static final int MAX_IDLE_PER_CODEC = 2;
+
+    private static final ScheduledExecutorService EVICTION = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "VideoCompressor-codec-pool");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Idle {
+        final MediaCodec codec;
+        final String name;
+        final String mime;
+        final boolean encoder;
+        final long sinceNs = System.nanoTime();
+
+        Idle(MediaCodec codec, String mime, boolean encoder) {
+            this.codec = codec;
+            this.name = codec.getName();
+            this.mime = mime;
+            this.encoder = encoder;
+        }
+    }
+
+    private final CodecCatalog catalog;
+    private final List<Idle> idle = new ArrayList<>();
+    private final ScheduledFuture<?> eviction;
+    /** Set by {@link #shutdown}; recycled codecs are released from then on. Guarded by this. */
+    private boolean shutDown;
+
+    CodecPool(CodecCatalog catalog) {
+        this.catalog = catalog;
+        eviction = EVICTION.scheduleWithFixedDelay(this::evictExpired, IDLE_TIMEOUT_MS, IDLE_TIMEOUT_MS / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /** An unconfigured encoder: the named one if given, else the platform default for {@code mime}. */
+    MediaCodec acquireEncoder(String name, String mime) throws IOException {
+        MediaCodec pooled = take(name, mime, true);
+        if (pooled != null) {
+            return pooled;
+        }
+        try {
+            return TranscodeSession.createEncoder(name, mime);
+        } catch (IOException | RuntimeException e) {
+            // Likely out of codec instances; ours that sit idle are the ones we can give back
+            if (clear() == 0) throw e;
+            return TranscodeSession.createEncoder(name, mime);
+        }
+    }
+
+    /** An unconfigured decoder for {@code mime}. */
+    MediaCodec acquireDecoder(String mime) throws IOException {
+        MediaCodec pooled = take(null, mime, false);
+        if (pooled != null) {
+            return pooled;
+        }
+        try {
+            return MediaCodec.createDecoderByType(mime);
+        } catch (IOException | RuntimeException e) {
+            if (clear() == 0) throw e;
+            return MediaCodec.createDecoderByType(mime);
+        }
+    }
+
+    /**
+     * Returns a codec acquired from this pool, in any state. It is reset and kept for reuse, or released if
+     * it cannot be reset or enough of its kind are idle already.
+     */
+    void recycle(MediaCodec codec, String mime, boolean encoder) {
+        if (codec == null) return;
+        try {
+            codec.reset();
+            // Async callbacks are per job; the next user installs its own or runs synchronously
+            codec.setCallback(null);
+        } catch (Exception e) {
+            Log.w(TAG, "Codec " + safeName(codec) + " not reusable, releasing", e);
+            try { codec.release(); } catch (Exception ignore) {}
+            return;
+        }
+        synchronized (this) {
+            int same = 0;
+            for (Idle i : idle) {
+                if (i.name.equals(codec.getName())) same++;
+            }
+            if (!shutDown && same < MAX_IDLE_PER_CODEC) {
+                idle.add(new Idle(codec, mime, encoder));
+                return;
+            }
+        }
+        try { codec.release(); } catch (Exception ignore) {}
+    }
+
+    /** Allocates the codecs a job at {@code quality} would use and parks them idle, unconfigured. */
+    void prewarm(String quality) throws IOException {
+        TargetPlanner.Preset preset = TargetPlanner.preset(quality);
+        CodecCatalog.Entry avc = catalog.findEncoder(MediaFormat.MIMETYPE_VIDEO_AVC, preset.boxLong, preset.boxShort, 0);
+        String encoderName = avc != null ? avc.name : null;
+
+        recycle(acquireEncoder(encoderName, MediaFormat.MIMETYPE_VIDEO_AVC), MediaFormat.MIMETYPE_VIDEO_AVC, true);
+        recycle(acquireDecoder(MediaFormat.MIMETYPE_VIDEO_AVC), MediaFormat.MIMETYPE_VIDEO_AVC, false);
+        recycle(acquireEncoder(null, MediaFormat.MIMETYPE_AUDIO_AAC), MediaFormat.MIMETYPE_AUDIO_AAC, true);
+        recycle(acquireDecoder(MediaFormat.MIMETYPE_AUDIO_AAC), MediaFormat.MIMETYPE_AUDIO_AAC, false);
+        Log.d(TAG, "Prewarmed codecs for quality=" + quality + ", idle=" + idleCount());
+    }
+
+    synchronized int idleCount() {
+        return idle.size();
+    }
+
+    /** Releases every idle codec; returns how many. */
+    int clear() {
+        List<Idle> released;
+        synchronized (this) {
+            released = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (Idle i : released) {
+            try { i.codec.release(); } catch (Exception ignore) {}
+        }
+        return released.size();
+    }
+
+    /**
+     * Stops the eviction task and releases the idle codecs. Codecs still in use are released when they
+     * are recycled, so nothing outlives the owner.
+     */
+    void shutdown() {
+        synchronized (this) {
+            shutDown = true;
+        }
+        eviction.cancel(false);
+        int released = clear();
+        Log.d(TAG, "Codec pool shut down, released " + released + " idle codecs");
+    }
+
+    private synchronized MediaCodec take(String name, String mime, boolean encoder) {
+        for (Iterator<Idle> it = idle.iterator(); it.hasNext(); ) {
+            Idle i = it.next();
+            boolean matches = i.encoder == encoder && (name != null ? i.name.equals(name) : i.mime.equalsIgnoreCase(mime));
+            if (matches) {
+                it.remove();
+                Log.d(TAG, "Reusing pooled codec " + i.name);
+                return i.codec;
+            }
+        }
+        return null;
+    }
+
+    private void evictExpired() {
+        List<Idle> expired = new ArrayList<>();
+        long cutoff = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_MS);
+        synchronized (this) {
+            for (Iterator<Idle> it = idle.iterator(); it.hasNext(); ) {
+                Idle i = it.next();
+                if (i.sinceNs - cutoff < 0) {
+                    expired.add(i);
+                    it.remove();
+                }
+            }
+        }
+        for (Idle i : expired) {
+            try { i.codec.release(); } catch (Exception ignore) {}
+        }
+        if (!expired.isEmpty()) {
+            Log.d(TAG, "Released " + expired.size() + " idle codecs");
+        }
+    }
+
+    private static String safeName(MediaCodec codec) {
+        try {
+            return codec.getName();
+        } catch (Exception e) {
+            return "?";
+        }
+    }
+}
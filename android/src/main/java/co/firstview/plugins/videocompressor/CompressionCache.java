@@ -0,0 +1,221 @@
+package co.firstview.plugins.videocompressor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compressed outputs keyed by source content and encode settings, so re-sharing a clip skips the transcode.
+ * <p>
+ * The key is a fingerprint, not a full hash: source length, modification time and SHA-256 of the first
+ * and last {@link #BLOCK_SIZE} bytes, plus the settings string. That reads at most 128 KiB however large
+ * the video is, and recorded or downloaded files do not change in the middle without changing size or
+ * mtime.
+ * <p>
+ * Entries are evicted least recently used first once their total size exceeds the byte budget. The
+ * index is a text file listing entries oldest first; it and every entry are written to a temp file and
+ * renamed into place, and on open the index is reconciled with the directory, so a crash at any point
+ * leaves at worst an orphan file that is removed on the next start.
+ * <p>
+ * Plain Java and thread-safe.
+ */
+final class CompressionCache {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    /** Bump when a change in the encoder would make existing outputs stale. */
+    private static final int KEY_VERSION = 2;
+    private static final String INDEX = "index";
+    private static final String SUFFIX = ".mp4";
+
+    private final File dir;
+    private final long budgetBytes;
+    /** key → size in bytes, in access order (eldest first). */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /** @param budgetBytes total size the entries may occupy; older entries are evicted beyond it */
+    CompressionCache(File dir, long budgetBytes) throws IOException {
+        this.dir = dir;
+        this.budgetBytes = budgetBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create cache directory " + dir);
+        }
+        load();
+    }
+
+    /** Fingerprint of {@code source} combined with {@code settings}; changes whenever either does. */
+    static String key(File source, String settings) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(source, "r")) {
+            return key(file.getChannel(), source.length(), source.lastModified(), settings);
+        }
+    }
+
+    /** {@link #key(File, String)} of content read through {@code source}, e.g. an open descriptor. */
+    static String key(FileChannel source, long length, long lastModified, String settings) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update((KEY_VERSION + "|" + length + "|" + lastModified + "|" + settings + "|")
+                .getBytes(StandardCharsets.UTF_8));
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        digestRange(source, 0, block, digest);
+        if (length > BLOCK_SIZE) {
+            digestRange(source, Math.max(BLOCK_SIZE, length - BLOCK_SIZE), block, digest);
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static void digestRange(FileChannel source, long offset, ByteBuffer block, MessageDigest digest) throws IOException {
+        block.clear();
+        while (block.hasRemaining()) {
+            if (source.read(block, offset + block.position()) < 0) break;
+        }
+        block.flip();
+        digest.update(block);
+    }
+
+    /** The cached output for {@code key}, or null. Counts as a use for eviction order. */
+    synchronized File get(String key) throws IOException {
+        // get() rather than containsKey() so the hit moves the entry to the young end
+        if (entries.get(key) == null) {
+            return null;
+        }
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            // Removed behind our back, e.g. the system trimming the cache directory
+            totalBytes -= entries.remove(key);
+            writeIndex();
+            return null;
+        }
+        writeIndex();
+        return file;
+    }
+
+    /** Copies {@code output} into the cache under {@code key} and evicts down to the budget. */
+    synchronized void put(String key, File output) throws IOException {
+        long size = output.length();
+        if (size > budgetBytes) {
+            return;
+        }
+        File tmp = new File(dir, key + SUFFIX + ".tmp");
+        copy(output, tmp);
+        if (!tmp.renameTo(fileFor(key))) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Could not move " + tmp + " into the cache");
+        }
+        Long previous = entries.put(key, size);
+        totalBytes += size - (previous == null ? 0 : previous);
+        evict();
+        writeIndex();
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            //noinspection ResultOfMethodCallIgnored
+            fileFor(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(dir, key + SUFFIX);
+    }
+
+    private void load() throws IOException {
+        File index = new File(dir, INDEX);
+        if (index.isFile()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space <= 0) continue;
+                    String key = line.substring(0, space);
+                    File file = fileFor(key);
+                    // Trust the file over the index for the size; skip entries whose file is gone
+                    if (file.isFile()) {
+                        entries.put(key, file.length());
+                        totalBytes += file.length();
+                    }
+                }
+            }
+        }
+        // Anything not in the index is a leftover of an interrupted put or an evicted entry
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                boolean indexed = name.endsWith(SUFFIX)
+                        && entries.containsKey(name.substring(0, name.length() - SUFFIX.length()));
+                if (!indexed && !name.equals(INDEX)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+                }
+            }
+        }
+        evict();
+        writeIndex();
+    }
+
+    private void writeIndex() throws IOException {
+        File tmp = new File(dir, INDEX + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> e : entries.entrySet()) {
+                out.write(e.getKey() + " " + e.getValue() + "\n");
+            }
+        }
+        if (!tmp.renameTo(new File(dir, INDEX))) {
+            throw new IOException("Could not replace cache index");
+        }
+    }
+
+    static void copy(File from, File to) throws IOException {
+        try (OutputStream out = new FileOutputStream(to)) {
+            copy(from, out);
+        }
+    }
+
+    static void copy(File from, OutputStream to) throws IOException {
+        try (InputStream in = new FileInputStream(from)) {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                to.write(buffer, 0, n);
+            }
+        }
+    }
+}
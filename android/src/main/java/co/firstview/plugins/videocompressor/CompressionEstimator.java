@@ -0,0 +1,58 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Predicts output size and wall time of a job from its {@link TargetPlanner.Plan}, without running it.
+ * <p>
+ * Size follows from the planned bitrates, which the encoders hit closely over a whole file. Time is output
+ * pixels over a transcode rate learned from this device's finished jobs (an exponentially weighted average,
+ * so it follows thermal and codec changes), starting from a mid-range guess. Copied video costs storage
+ * time only.
+ * <p>
+ * Plain Java and thread-safe.
+ */
+final class CompressionEstimator {
+
+    /** Transcode rate assumed before any job was measured: 720p at 60 fps, a mid-range hardware encoder. */
+    static final double DEFAULT_PIXELS_PER_SECOND = 1280.0 * 720 * 60;
+    /** Remux rate, bound by flash storage reading and writing at once. */
+    static final double COPY_BYTES_PER_SECOND = 50e6;
+    /** Weight of the newest measurement in the average. */
+    private static final double WEIGHT = 0.3;
+
+    private double pixelsPerSecond = DEFAULT_PIXELS_PER_SECOND;
+    private boolean measured;
+
+    /** Feeds back a finished transcode: {@code outputPixels} (frames times frame size) took {@code wallMs}. */
+    synchronized void record(long outputPixels, long wallMs) {
+        if (outputPixels <= 0 || wallMs <= 0) {
+            return;
+        }
+        double rate = outputPixels * 1000.0 / wallMs;
+        pixelsPerSecond = measured ? pixelsPerSecond + WEIGHT * (rate - pixelsPerSecond) : rate;
+        measured = true;
+    }
+
+    synchronized double pixelsPerSecond() {
+        return pixelsPerSecond;
+    }
+
+    /**
+     * @param sourceVideoBitrate what a copied video track keeps, bits/s
+     * @param audioBitrate       output audio bits/s; 0 without audio
+     */
+    static long outputBytes(TargetPlanner.Plan plan, boolean copyVideo, long sourceVideoBitrate, long audioBitrate,
+                            long durationUs) {
+        long videoBitrate = copyVideo ? sourceVideoBitrate : plan.videoBitrate;
+        double bits = (Math.max(0, videoBitrate) + Math.max(0, audioBitrate)) * (durationUs / 1e6);
+        return (long) (bits / 8 / (1 - TargetPlanner.CONTAINER_OVERHEAD));
+    }
+
+    /** @param sourceBytes size of the source, which a copy reads once */
+    long wallMs(TargetPlanner.Plan plan, boolean copyVideo, long durationUs, long sourceBytes) {
+        if (copyVideo) {
+            return (long) (sourceBytes / COPY_BYTES_PER_SECOND * 1000);
+        }
+        double pixels = (double) plan.width * plan.height * plan.frameRate * (durationUs / 1e6);
+        return (long) (pixels / pixelsPerSecond() * 1000);
+    }
+}
@@ -0,0 +1,64 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Where the time of one finished job went, per pipeline stage. Stage times are summed across the threads
+ * that ran the stage. Delivered to {@link MetricsListener} and included in the plugin's resolve payload.
+ */
+public class CompressionMetrics {
+
+    /** Engine that ran the job ({@code "SyncTranscoder"}, {@code "AsyncTranscoder"}, {@code "cache"} for a cache hit, or {@code "none"} if it failed before one started). */
+    public final String engine;
+    /** Parallel video segments; 1 when the video was not split. */
+    public final int segments;
+    /** Output video codec id ({@code "avc"}, {@code "hevc"}, {@code "av1"}); null when unknown, e.g. for a cache hit. */
+    public final String videoCodec;
+    public final String deviceModel;
+    public final long wallMs;
+    /** Time in {@code MediaExtractor} reads and advances. */
+    public final long extractorMs;
+    /** Time waiting for free decoder input buffers. */
+    public final long decoderInputWaitMs;
+    /** Time waiting for decoded output. */
+    public final long decoderOutputWaitMs;
+    /** Time waiting for encoded output. */
+    public final long encoderOutputWaitMs;
+    /** Time in {@code MediaMuxer.writeSampleData}. */
+    public final long muxerWriteMs;
+    public final long framesDecoded;
+    /** Video frames written to the output, whether encoded here or copied. */
+    public final long framesEncoded;
+    /** Decoded frames that were not passed on to the encoder. */
+    public final long framesDropped;
+    /** Compressed bytes read from the source, both tracks. */
+    public final long inputBytes;
+    /** Compressed bytes written to the muxer, both tracks. */
+    public final long outputBytes;
+
+    CompressionMetrics(String engine, int segments, String videoCodec, String deviceModel, long wallMs,
+                       long extractorMs, long decoderInputWaitMs, long decoderOutputWaitMs, long encoderOutputWaitMs,
+                       long muxerWriteMs, long framesDecoded, long framesEncoded, long framesDropped, long inputBytes, long outputBytes) {
+        this.engine = engine;
+        this.segments = segments;
+        this.videoCodec = videoCodec;
+        this.deviceModel = deviceModel;
+        this.wallMs = wallMs;
+        this.extractorMs = extractorMs;
+        this.decoderInputWaitMs = decoderInputWaitMs;
+        this.decoderOutputWaitMs = decoderOutputWaitMs;
+        this.encoderOutputWaitMs = encoderOutputWaitMs;
+        this.muxerWriteMs = muxerWriteMs;
+        this.framesDecoded = framesDecoded;
+        this.framesEncoded = framesEncoded;
+        this.framesDropped = framesDropped;
+        this.inputBytes = inputBytes;
+        this.outputBytes = outputBytes;
+    }
+
+    @Override
+    public String toString() {
+        return engine + " x" + segments + " " + videoCodec + " on " + deviceModel + ": wall=" + wallMs + "ms extractor=" + extractorMs
+                + "ms decIn=" + decoderInputWaitMs + "ms decOut=" + decoderOutputWaitMs + "ms encOut=" + encoderOutputWaitMs
+                + "ms mux=" + muxerWriteMs + "ms frames=" + framesDecoded + "/" + framesEncoded + " dropped=" + framesDropped
+                + " bytes=" + inputBytes + "->" + outputBytes;
+    }
+}
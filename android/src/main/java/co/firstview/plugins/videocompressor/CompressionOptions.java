@@ -0,0 +1,141 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.Arrays;
+
+/**
+ * Per-job settings for {@link VideoCompressor#compress}. Defaults match the plugin's behaviour when the
+ * corresponding option is omitted from the JS call.
+ */
+public class CompressionOptions {
+
+    /** Which codec driver runs the transcode. */
+    public enum Engine {
+        /** Single-thread loop polling every codec in turn. */
+        SYNC,
+        /** {@code MediaCodec.setCallback} driven pipeline, one handler thread per codec. */
+        ASYNC;
+
+        static Engine from(String value) {
+            if (value != null && value.equalsIgnoreCase("async")) {
+                return ASYNC;
+            }
+            return SYNC;
+        }
+    }
+
+    /** {@code low}, {@code medium} or {@code high}: bounds the output resolution and sets the default density. */
+    public String quality = "high";
+    /** Output size budget in MiB for the whole file; 0 disables. Takes precedence over {@link #bitsPerPixel}. */
+    public double targetSizeMb = 0;
+    /** Video bits per pixel per frame; 0 uses the quality preset's value. */
+    public double bitsPerPixel = 0;
+    /**
+     * Output frame rate cap; frames of faster sources are dropped by presentation time before encoding.
+     * 0 keeps the source rate (up to 60).
+     */
+    public int targetFrameRate = 30;
+    /**
+     * Output video codec: {@code avc}, {@code hevc}, {@code av1}, or {@code auto} for the most efficient one
+     * in {@link #allowedVideoCodecs} with a hardware encoder. Unavailable codecs fall back to {@code avc}.
+     */
+    public String videoCodec = "avc";
+    /** Codec ids {@code auto} may choose from, i.e. what every consumer of the output can play; null allows all. */
+    public String[] allowedVideoCodecs;
+    /**
+     * Video encoder trade-off: {@code fastest}, {@code balanced} or {@code smallest}. All of them run the
+     * encoder as fast as it goes rather than at real-time pace; settings the encoder lacks are skipped.
+     */
+    public String encoderTuning = "balanced";
+    public Engine engine = Engine.SYNC;
+    /** Caller-chosen id; a random one is assigned when null. */
+    public String jobId;
+    /** One of the {@code CompressionScheduler.PRIORITY_*} values; higher runs first. */
+    public int priority = CompressionScheduler.PRIORITY_NORMAL;
+    /**
+     * Number of video segments to transcode in parallel at sync-sample boundaries. 1 disables splitting,
+     * 0 uses as many as the device has encoder instances for. Falls back to 1 on single-instance devices.
+     */
+    public int segments = 1;
+    /**
+     * Write fragmented MP4 and report each finished piece through
+     * {@link VideoCompressor.VideoCompressionCallback#onChunk}, so it can be uploaded during compression.
+     * H.264/AAC only.
+     */
+    public boolean fragmented = false;
+    /** Target fragment length; fragments start at key frames, which are placed at this interval. */
+    public int fragmentDurationMs = 2000;
+    /**
+     * Checkpoint the video at key frames every {@link #checkpointIntervalMs}, so that compressing the same
+     * source with the same options again after the process was killed continues from the last checkpoint.
+     * Needs free space for the compressed video twice until the job finishes.
+     */
+    public boolean resumable = false;
+    /** Source time between two checkpoints of a {@link #resumable} job; rounded to key frames, at least 10 s. */
+    public int checkpointIntervalMs = 30_000;
+    /**
+     * Move the finished output over the source file, so the caller finds the compressed video where the
+     * original was. When false, or when either location is a content URI, the output stays at the destination
+     * and the source is left untouched.
+     */
+    public boolean replaceSource = true;
+    /** Serve repeated compressions of the same content and settings from the output cache. */
+    public boolean useCache = true;
+    /**
+     * Directory to write poster frames to, captured from the decoded frames during the transcode and
+     * reported through {@link VideoCompressor.VideoCompressionCallback#onPosterFrame}; null captures none.
+     * Video that is copied rather than re-encoded, and cache hits, have no decoded frames and get no posters.
+     */
+    public String posterDirectory;
+    /** Source times in ms to capture; each poster is the first frame at or after its time. */
+    public long[] posterTimesMs;
+    /** Also capture one poster every this many ms, starting with the first frame; 0 disables. */
+    public long posterIntervalMs = 0;
+    /** {@code jpeg} or {@code webp}. */
+    public String posterFormat = "jpeg";
+    /** Longest edge of a poster in pixels; posters are never larger than the output video. */
+    public int posterMaxSize = 320;
+    /** Image encoder quality, 0–100. */
+    public int posterQuality = 80;
+    /**
+     * Source time in ms where the output starts; the sync sample before it is where decoding starts.
+     * Ignored when {@link #clipRangesMs} is set.
+     */
+    public long startMs = 0;
+    /** Source time in ms where the output ends; 0 runs to the end. Ignored when {@link #clipRangesMs} is set. */
+    public long endMs = 0;
+    /**
+     * Source ranges to keep, as {@code {startMs, endMs}} pairs (end 0 = to the end), joined back to back in
+     * the output. Overlapping ranges are merged. Jobs with more than one range are neither split into
+     * parallel segments nor {@link #resumable}.
+     */
+    public long[][] clipRangesMs;
+    /** Minimum time between two progress events; intermediate updates are coalesced. 0 reports every muxed frame. */
+    public long progressIntervalMs = 250;
+
+    /**
+     * The settings that determine the output, for {@link CompressionCache} keys. Options that only affect
+     * scheduling or reporting are left out.
+     */
+    String settingsKey() {
+        return quality + "|" + targetSizeMb + "|" + bitsPerPixel + "|" + targetFrameRate
+                + "|" + videoCodec + (allowedVideoCodecs == null ? "" : "=" + Arrays.toString(allowedVideoCodecs))
+                + "|" + EncoderTuning.from(encoderTuning).id
+                + "|" + (fragmented ? "frag" + fragmentDurationMs : "mp4")
+                + (clipRanges() == null ? "" : "|clip=" + clipRanges());
+    }
+
+    /**
+     * The parts of the source to keep, or null for all of it.
+     *
+     * @throws IllegalArgumentException if a range ends before it starts
+     */
+    ClipRanges clipRanges() {
+        if (clipRangesMs != null) {
+            return ClipRanges.fromMs(clipRangesMs);
+        }
+        if (startMs <= 0 && endMs <= 0) {
+            return null;
+        }
+        return ClipRanges.fromMs(new long[][]{{startMs, endMs}});
+    }
+}
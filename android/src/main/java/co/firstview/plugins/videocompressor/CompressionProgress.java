@@ -0,0 +1,43 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.Locale;
+
+/**
+ * Immutable progress snapshot delivered to {@link VideoCompressor.VideoCompressionCallback#onProgress}.
+ * Everything is measured on the output side: a frame counts once the muxer has written it.
+ */
+public class CompressionProgress {
+
+    /** 0–100; 100 only once the output file is complete. */
+    public final int percent;
+    /** Presentation time of the furthest encoded video sample, in microseconds. */
+    public final long encodedPtsUs;
+    /** Source duration the percentage is computed against, in microseconds; 0 when unknown. */
+    public final long durationUs;
+    public final long framesEncoded;
+    /** Video frames per second written since the previous snapshot. */
+    public final double fps;
+    /** Encoded payload written to the muxer so far (both tracks, without container overhead). */
+    public final long bytesWritten;
+    public final long elapsedMs;
+    /** Estimated time to completion, or -1 while there is not enough data to tell. */
+    public final long etaMs;
+
+    CompressionProgress(int percent, long encodedPtsUs, long durationUs, long framesEncoded, double fps,
+                        long bytesWritten, long elapsedMs, long etaMs) {
+        this.percent = percent;
+        this.encodedPtsUs = encodedPtsUs;
+        this.durationUs = durationUs;
+        this.framesEncoded = framesEncoded;
+        this.fps = fps;
+        this.bytesWritten = bytesWritten;
+        this.elapsedMs = elapsedMs;
+        this.etaMs = etaMs;
+    }
+
+    @Override
+    public String toString() {
+        return percent + "% (" + framesEncoded + " frames, " + String.format(Locale.US, "%.1f", fps)
+                + " fps, " + bytesWritten + " bytes, eta " + etaMs + " ms)";
+    }
+}
@@ -0,0 +1,188 @@
+package co.firstview.plugins.videocompressor;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs compression jobs on a fixed number of worker threads, highest priority first and FIFO within a
+ * priority. Concurrency is capped by how many video encoder/decoder instances the device reports, and the
+ * number of waiting jobs is bounded so a burst of recordings is rejected early instead of piling up.
+ * <p>
+ * Jobs submitted before {@link #start} wait in the queue without a worker thread.
+ */
+final class CompressionScheduler {
+
+    private static final String TAG = "VideoCompressor";
+
+    static final int PRIORITY_LOW = -1;
+    static final int PRIORITY_NORMAL = 0;
+    static final int PRIORITY_HIGH = 1;
+
+    /** Even with plenty of codec instances, more parallel jobs only contend for memory bandwidth. */
+    private static final int MAX_CONCURRENCY = 4;
+
+    private final ThreadPoolExecutor executor;
+    private final int requestedConcurrency;
+    private final int maxQueuedJobs;
+    private volatile int concurrency;
+    /** Guarded by this. */
+    private boolean started;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    CompressionScheduler(int requestedConcurrency, int maxQueuedJobs) {
+        this.requestedConcurrency = requestedConcurrency;
+        this.concurrency = Math.max(1, Math.min(requestedConcurrency, MAX_CONCURRENCY));
+        this.maxQueuedJobs = Math.max(1, maxQueuedJobs);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "VideoCompressor-job-" + threadCount.incrementAndGet()));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Lets jobs run, including those already queued.
+     *
+     * @param codecInstanceLimit how many video decoder+encoder pairs the device can run at once, for the
+     *                           scarcest output codec ({@link CodecCatalog#jobInstanceLimit}); each job holds
+     *                           one pair for video
+     */
+    synchronized void start(int codecInstanceLimit) {
+        int limit = Math.min(MAX_CONCURRENCY, codecInstanceLimit);
+        concurrency = Math.max(1, Math.min(requestedConcurrency, limit));
+        // Never grows: the executor was sized for the requested concurrency
+        executor.setCorePoolSize(concurrency);
+        executor.setMaximumPoolSize(concurrency);
+        started = true;
+        if (!executor.getQueue().isEmpty()) {
+            executor.prestartAllCoreThreads();
+        }
+        Log.d(TAG, "Scheduler: concurrency=" + concurrency + " (requested " + requestedConcurrency +
+                ", codec limit " + limit + "), maxQueued=" + maxQueuedJobs);
+    }
+
+    int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Queues {@code work} under {@code jobId}.
+     *
+     * @param queued    run on the calling thread once the job is accepted, before it can start
+     * @param cancelled run instead of {@code work} if the job is cancelled before it starts
+     * @throws RejectedExecutionException if the id is already in use or the queue is full
+     */
+    synchronized void submit(String jobId, int priority, JobControl control, Runnable work, Runnable queued,
+                             Runnable cancelled) {
+        Job job = new Job(jobId, priority, sequence.getAndIncrement(), control, work, cancelled);
+        if (jobs.putIfAbsent(jobId, job) != null) {
+            throw new RejectedExecutionException("A job with id " + jobId + " is already queued or running.");
+        }
+        if (executor.getQueue().size() >= maxQueuedJobs) {
+            jobs.remove(jobId);
+            throw new RejectedExecutionException("Compression queue is full (" + maxQueuedJobs + " jobs waiting).");
+        }
+        queued.run();
+        if (started) {
+            executor.execute(job);
+        } else {
+            // No worker takes it until start() creates them
+            executor.getQueue().add(job);
+        }
+        Log.d(TAG, "Job queued: id=" + jobId + ", priority=" + priority + ", waiting=" + executor.getQueue().size());
+    }
+
+    /**
+     * Cancels a queued or running job. A queued job is taken out of the queue and its cancellation reported
+     * on the calling thread; it never starts.
+     *
+     * @return false if no job with that id is queued or running
+     */
+    boolean cancel(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) return false;
+        job.control.cancel();
+        if (executor.remove(job)) {
+            Log.d(TAG, "Job cancelled while queued: id=" + jobId);
+            jobs.remove(jobId);
+            job.cancelled.run();
+        } else {
+            Log.d(TAG, "Job cancellation requested: id=" + jobId);
+        }
+        return true;
+    }
+
+    /** Pauses a job at its next checkpoint. A queued job stays queued and pauses as soon as it starts. */
+    boolean pause(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) return false;
+        job.control.pause();
+        Log.d(TAG, "Job paused: id=" + jobId);
+        return true;
+    }
+
+    boolean resume(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job == null) return false;
+        job.control.resume();
+        Log.d(TAG, "Job resumed: id=" + jobId);
+        return true;
+    }
+
+    static int parsePriority(String value) {
+        if (value == null) return PRIORITY_NORMAL;
+        switch (value.toLowerCase()) {
+            case "high":
+                return PRIORITY_HIGH;
+            case "low":
+                return PRIORITY_LOW;
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }
+
+    private final class Job implements Runnable, Comparable<Job> {
+        final String id;
+        final int priority;
+        final long seq;
+        final JobControl control;
+        final Runnable work;
+        final Runnable cancelled;
+
+        Job(String id, int priority, long seq, JobControl control, Runnable work, Runnable cancelled) {
+            this.id = id;
+            this.priority = priority;
+            this.seq = seq;
+            this.control = control;
+            this.work = work;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public void run() {
+            try {
+                work.run();
+            } finally {
+                jobs.remove(id);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(seq, other.seq);
+        }
+    }
+}
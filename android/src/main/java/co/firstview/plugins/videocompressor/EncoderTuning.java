@@ -0,0 +1,171 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Speed-versus-size trade-offs for the video encoder, applied on top of the plan's bitrate, frame rate and
+ * key frame interval.
+ * <p>
+ * Every profile marks the session as offline work: non-realtime priority and an operating rate well above
+ * real time, tiered by output size as the platform's own media transcoder does. Without these, many vendor
+ * encoders pace themselves to real time. On top of that, {@link #FASTEST} asks for the lowest encoder
+ * complexity, and {@link #SMALLEST} for the highest complexity, AVC High profile at the lowest level that
+ * fits the output, and twice the key frame spacing.
+ * <p>
+ * Each setting is checked against the encoder's {@link CodecCatalog.Entry} and left out if not advertised.
+ * Encoders still reject some advertised combinations, so {@link #configure} falls back to the untuned
+ * format rather than failing the job.
+ */
+enum EncoderTuning {
+    FASTEST("fastest"),
+    BALANCED("balanced"),
+    SMALLEST("smallest");
+
+    private static final String TAG = "VideoCompressor";
+
+    /** Option value, as passed from JS. */
+    final String id;
+
+    EncoderTuning(String id) {
+        this.id = id;
+    }
+
+    /** {@link #BALANCED} for null or an unknown value. */
+    static EncoderTuning from(String value) {
+        if (value != null) {
+            String v = value.toLowerCase(Locale.US);
+            for (EncoderTuning t : values()) {
+                if (t.id.equals(v)) return t;
+            }
+        }
+        return BALANCED;
+    }
+
+    /**
+     * Adds this profile's keys to {@code format}, as far as {@code encoder} supports them.
+     *
+     * @param keepKeyFrameInterval true when the key frame interval is fixed by the output, e.g. fragments
+     */
+    void apply(MediaFormat format, OutputCodec codec, CodecCatalog.Entry encoder, boolean keepKeyFrameInterval) {
+        List<String> applied = new ArrayList<>();
+        List<String> unsupported = new ArrayList<>();
+
+        format.setInteger(MediaFormat.KEY_PRIORITY, 1);
+        applied.add("priority=1");
+        int width = format.getInteger(MediaFormat.KEY_WIDTH);
+        int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+        int frameRate = format.getInteger(MediaFormat.KEY_FRAME_RATE);
+        int operatingRate = operatingRate(width, height);
+        if (encoder.maxFrameRate > 0) {
+            operatingRate = Math.min(operatingRate, encoder.maxFrameRate);
+        }
+        if (operatingRate > frameRate) {
+            format.setInteger(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+            applied.add("operating-rate=" + operatingRate);
+        } else {
+            unsupported.add("operating-rate");
+        }
+
+        if (encoder.supportsBitrateMode(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR)) {
+            format.setInteger(MediaFormat.KEY_BITRATE_MODE, MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR);
+            applied.add("vbr");
+        } else {
+            unsupported.add("vbr");
+        }
+
+        if (this != BALANCED) {
+            if (encoder.minComplexity < encoder.maxComplexity) {
+                int complexity = this == FASTEST ? encoder.minComplexity : encoder.maxComplexity;
+                format.setInteger(MediaFormat.KEY_COMPLEXITY, complexity);
+                applied.add("complexity=" + complexity);
+            } else {
+                unsupported.add("complexity");
+            }
+        }
+
+        if (this == SMALLEST) {
+            int high = MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+            int level = codec == OutputCodec.AVC
+                    ? AvcLevel.minimum(width, height, frameRate, format.getInteger(MediaFormat.KEY_BIT_RATE), true)
+                    : 0;
+            if (level > 0 && encoder.maxLevel(high) >= level) {
+                format.setInteger(MediaFormat.KEY_PROFILE, high);
+                format.setInteger(MediaFormat.KEY_LEVEL, level);
+                applied.add("profile=high, level=" + level);
+            } else if (codec == OutputCodec.AVC) {
+                unsupported.add("profile=high");
+            }
+            if (!keepKeyFrameInterval) {
+                int interval = format.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) * 2;
+                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, interval);
+                applied.add("i-frame-interval=" + interval);
+            }
+        }
+        Log.d(TAG, "Encoder tuning " + id + " for " + encoder.name + ": " + applied
+                + (unsupported.isEmpty() ? "" : ", not supported: " + unsupported));
+    }
+
+    /**
+     * Operating rate for offline encoding at this size; the values the platform's media transcoder uses.
+     * Encoders advertise frame rates regardless of size, and some reject those as an operating rate.
+     */
+    static int operatingRate(int width, int height) {
+        long pixels = (long) width * height;
+        if (pixels <= 1280 * 720) return 480;
+        if (pixels <= 1920 * 1080) return 240;
+        return 120;
+    }
+
+    /**
+     * Configures {@code encoder} with a format tuned by {@link #apply}. If the encoder's capabilities rule
+     * the format out, or configure() rejects it, configures the plan's settings alone instead. Returns the
+     * format the encoder was configured with.
+     *
+     * @param callback the async callback already set on {@code encoder}, or null in synchronous mode;
+     *                 set again if the encoder has to be reset, since a reset also clears it
+     */
+    static MediaFormat configure(MediaCodec encoder, MediaFormat format, MediaCodec.Callback callback, Handler handler) {
+        if (isSupported(encoder, format)) {
+            try {
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                return format;
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Log.w(TAG, "Encoder " + encoder.getName() + " rejected the tuned format, using the untuned one", e);
+            }
+            encoder.reset();
+            if (callback != null) {
+                encoder.setCallback(callback, handler);
+            }
+        } else {
+            Log.w(TAG, "Encoder " + encoder.getName() + " does not support the tuned format, using the untuned one");
+        }
+        MediaFormat plain = MediaFormat.createVideoFormat(format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT));
+        for (String key : new String[]{MediaFormat.KEY_BIT_RATE, MediaFormat.KEY_FRAME_RATE,
+                MediaFormat.KEY_I_FRAME_INTERVAL, MediaFormat.KEY_COLOR_FORMAT}) {
+            if (format.containsKey(key)) {
+                plain.setInteger(key, format.getInteger(key));
+            }
+        }
+        encoder.configure(plain, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return plain;
+    }
+
+    private static boolean isSupported(MediaCodec encoder, MediaFormat format) {
+        try {
+            return encoder.getCodecInfo().getCapabilitiesForType(format.getString(MediaFormat.KEY_MIME))
+                    .isFormatSupported(format);
+        } catch (RuntimeException e) {
+            // No capabilities to check against; let configure() decide
+            return true;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/** {@link SampleReader} over a track already selected on a {@link MediaExtractor}; the extractor is not owned. */
+final class ExtractorSampleReader implements SampleReader {
+
+    private final MediaExtractor extractor;
+    private final MediaFormat format;
+
+    ExtractorSampleReader(MediaExtractor extractor, MediaFormat format) {
+        this.extractor = extractor;
+        this.format = format;
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public long peekSampleTime() {
+        return extractor.getSampleTime();
+    }
+
+    @Override
+    public boolean readSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        buffer.clear();
+        int size = extractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            return false;
+        }
+        info.offset = 0;
+        info.size = size;
+        info.presentationTimeUs = extractor.getSampleTime();
+        info.flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        extractor.advance();
+        return true;
+    }
+
+    @Override
+    public int maxSampleSize() {
+        return format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) : 0;
+    }
+
+    @Override
+    public void release() {
+        // The extractor belongs to the session.
+    }
+}
@@ -0,0 +1,602 @@
+package co.firstview.plugins.videocompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes fragmented MP4: an init segment ({@code ftyp} + {@code moov} without samples) followed by
+ * {@code moof}/{@code mdat} fragments, each of which is complete and playable once written. Every piece
+ * is reported to the {@link Listener} with its offset and length, so a consumer can upload the file while
+ * it is still growing.
+ * <p>
+ * A fragment is closed at the first video key frame at least {@code fragmentDurationUs} after the
+ * fragment's first one; audio up to that point goes into the same fragment. Samples of a fragment are
+ * buffered in memory until it is closed.
+ * <p>
+ * Supports one H.264 and one AAC track. H.264 samples are expected in Annex-B form, which is what both
+ * MediaCodec and MediaExtractor deliver, and are stored with 4-byte NAL lengths. Decode times are derived from
+ * the sorted presentation times of each fragment, with signed composition offsets ({@code trun} version 1)
+ * for reordered frames.
+ * <p>
+ * Plain Java, not thread-safe.
+ */
+final class FragmentedMp4Writer {
+
+    interface Listener {
+        /**
+         * Called after {@code length} bytes at {@code offset} have been written. Sequence 0 is the init
+         * segment, fragments count up from 1.
+         */
+        void onChunk(int sequence, long offset, int length);
+    }
+
+    static final int VIDEO_TIMESCALE = 90_000;
+    /** AAC-LC frame length, the duration of an audio sample when no later one tells otherwise. */
+    static final int AAC_FRAME_SAMPLES = 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final OutputStream out;
+    private final long fragmentDurationUs;
+    private final Listener listener;
+    private final List<Track> tracks = new ArrayList<>();
+    private int rotation;
+
+    private long position;
+    private int sequence;
+    private boolean started;
+    private Track video;
+    private long fragmentStartUs = -1;
+
+    FragmentedMp4Writer(OutputStream out, long fragmentDurationUs, Listener listener) {
+        this.out = out;
+        this.fragmentDurationUs = fragmentDurationUs;
+        this.listener = listener;
+    }
+
+    /** @param parameterSets SPS and PPS NAL units, each Annex-B or bare; as in a MediaFormat's csd-0/csd-1 */
+    int addVideoTrack(int width, int height, byte[]... parameterSets) {
+        List<byte[]> sps = new ArrayList<>();
+        List<byte[]> pps = new ArrayList<>();
+        for (byte[] csd : parameterSets) {
+            for (byte[] nal : splitNalUnits(csd)) {
+                int type = nal[0] & 0x1f;
+                if (type == 7) sps.add(nal);
+                else if (type == 8) pps.add(nal);
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("H.264 track needs SPS and PPS");
+        }
+        Track t = new Track(tracks.size() + 1, true, VIDEO_TIMESCALE);
+        t.width = width;
+        t.height = height;
+        t.sps = sps;
+        t.pps = pps;
+        tracks.add(t);
+        video = t;
+        return tracks.size() - 1;
+    }
+
+    /** @param audioSpecificConfig the AAC decoder config, as in a MediaFormat's csd-0 */
+    int addAudioTrack(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        Track t = new Track(tracks.size() + 1, false, sampleRate);
+        t.channelCount = channelCount;
+        t.audioSpecificConfig = audioSpecificConfig;
+        tracks.add(t);
+        return tracks.size() - 1;
+    }
+
+    /** Clockwise display rotation, 0/90/180/270; must be set before {@link #start()}. */
+    void setRotation(int degrees) {
+        rotation = degrees;
+    }
+
+    /** Writes the init segment. */
+    void start() throws IOException {
+        if (started) throw new IllegalStateException("Already started");
+        started = true;
+        byte[] init = concat(ftyp(), moov());
+        emit(init);
+    }
+
+    void writeSample(int trackIndex, byte[] data, int offset, int size, long ptsUs, boolean keyFrame) throws IOException {
+        if (!started) throw new IllegalStateException("Not started");
+        Track t = tracks.get(trackIndex);
+        if (t == video && keyFrame && t.queue.count > 0 && ptsUs - fragmentStartUs >= fragmentDurationUs) {
+            flushFragment(ptsUs);
+        }
+        if (t == video && fragmentStartUs < 0) {
+            fragmentStartUs = ptsUs;
+        }
+        if (t.video) {
+            t.queue.addNalSample(data, offset, size, ptsUs, keyFrame);
+        } else {
+            t.queue.add(data, offset, size, ptsUs, true);
+        }
+    }
+
+    /** Writes everything still buffered as a last fragment. */
+    void finish() throws IOException {
+        if (!started) return;
+        flushFragment(-1);
+    }
+
+    // ---- fragments ----
+
+    /** @param boundaryUs pts of the key frame starting the next fragment, or -1 to flush everything */
+    private void flushFragment(long boundaryUs) throws IOException {
+        List<Run> runs = new ArrayList<>();
+        for (Track t : tracks) {
+            int n = t.queue.count;
+            if (!t.video && boundaryUs >= 0) {
+                n = 0;
+                while (n < t.queue.count && t.queue.pts[n] < boundaryUs) n++;
+            }
+            if (n > 0) {
+                runs.add(t.video ? videoRun(t, n, boundaryUs) : audioRun(t, n));
+            }
+        }
+        fragmentStartUs = boundaryUs;
+        if (runs.isEmpty()) {
+            return;
+        }
+        sequence++;
+
+        // The moof size does not depend on the data offsets, so measure it once with zeros
+        int moofSize = moof(runs, new int[runs.size()]).length;
+        int[] dataOffsets = new int[runs.size()];
+        long mdatPayload = 0;
+        for (int i = 0; i < runs.size(); i++) {
+            dataOffsets[i] = (int) (moofSize + 8 + mdatPayload);
+            mdatPayload += runs.get(i).bytes;
+        }
+        byte[] moof = moof(runs, dataOffsets);
+        Box mdatHeader = new Box("mdat");
+        byte[] header = mdatHeader.toBytes(8 + mdatPayload);
+
+        long offset = position;
+        out.write(moof);
+        out.write(header);
+        for (Run run : runs) {
+            out.write(run.track.queue.data, 0, run.bytes);
+        }
+        out.flush();
+        int length = (int) (moof.length + header.length + mdatPayload);
+        position += length;
+        for (Run run : runs) {
+            run.track.queue.remove(run.count, run.bytes);
+        }
+        listener.onChunk(sequence, offset, length);
+    }
+
+    private Run videoRun(Track t, int n, long boundaryUs) {
+        SampleQueue q = t.queue;
+        long[] pts = new long[n];
+        for (int i = 0; i < n; i++) pts[i] = t.toTimescale(q.pts[i]);
+        long[] sorted = Arrays.copyOf(pts, n);
+        Arrays.sort(sorted);
+        if (t.nextDecodeTime < 0) t.nextDecodeTime = sorted[0];
+
+        Run run = new Run(t, n, q.bytesOf(n), t.nextDecodeTime);
+        long span = 0;
+        for (int i = 0; i < n - 1; i++) {
+            run.durations[i] = (int) (sorted[i + 1] - sorted[i]);
+            span += run.durations[i];
+        }
+        // Ending the fragment's decode span at the next key frame keeps decode and presentation time
+        // from drifting apart over many fragments when GOPs are open.
+        long last = boundaryUs >= 0 ? t.toTimescale(boundaryUs) - t.nextDecodeTime - span : t.lastDuration;
+        run.durations[n - 1] = (int) Math.max(1, last > 0 ? last : t.lastDuration);
+        long dts = t.nextDecodeTime;
+        for (int i = 0; i < n; i++) {
+            run.sizes[i] = q.sizes[i];
+            run.flags[i] = q.key[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+            run.compositionOffsets[i] = (int) (pts[i] - dts);
+            dts += run.durations[i];
+        }
+        t.lastDuration = run.durations[n - 1];
+        t.nextDecodeTime = dts;
+        return run;
+    }
+
+    private Run audioRun(Track t, int n) {
+        SampleQueue q = t.queue;
+        long first = t.toTimescale(q.pts[0]);
+        long base = Math.max(t.nextDecodeTime, first);
+        Run run = new Run(t, n, q.bytesOf(n), base);
+        long dts = base;
+        for (int i = 0; i < n; i++) {
+            long next = i + 1 < q.count ? t.toTimescale(q.pts[i + 1]) : -1;
+            long duration = next > dts ? next - dts : AAC_FRAME_SAMPLES;
+            run.durations[i] = (int) duration;
+            run.sizes[i] = q.sizes[i];
+            run.flags[i] = SAMPLE_FLAGS_SYNC;
+            dts += duration;
+        }
+        t.nextDecodeTime = dts;
+        return run;
+    }
+
+    private byte[] moof(List<Run> runs, int[] dataOffsets) {
+        Box moof = new Box("moof");
+        moof.add(new Box("mfhd", 0, 0).u32(sequence));
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            Box traf = new Box("traf");
+            traf.add(new Box("tfhd", 0, 0x020000).u32(run.track.id)); // default-base-is-moof
+            traf.add(new Box("tfdt", 1, 0).u64(run.baseDecodeTime));
+            boolean video = run.track.video;
+            int flags = 0x000001 | 0x000100 | 0x000200 | 0x000400 | (video ? 0x000800 : 0);
+            Box trun = new Box("trun", video ? 1 : 0, flags).u32(run.count).u32(dataOffsets[i]);
+            for (int s = 0; s < run.count; s++) {
+                trun.u32(run.durations[s]).u32(run.sizes[s]).u32(run.flags[s]);
+                if (video) trun.u32(run.compositionOffsets[s]);
+            }
+            traf.add(trun);
+            moof.add(traf);
+        }
+        return moof.toBytes();
+    }
+
+    // ---- init segment ----
+
+    private static byte[] ftyp() {
+        return new Box("ftyp").fourcc("isom").u32(0x200)
+                .fourcc("isom").fourcc("iso6").fourcc("avc1").fourcc("mp41").toBytes();
+    }
+
+    private byte[] moov() {
+        Box moov = new Box("moov");
+        moov.add(new Box("mvhd", 0, 0)
+                .u32(0).u32(0).u32(1000).u32(0)
+                .u32(0x00010000).u16(0x0100).u16(0).u32(0).u32(0)
+                .matrix(0)
+                .zeros(24)
+                .u32(tracks.size() + 1));
+        for (Track t : tracks) {
+            moov.add(trak(t));
+        }
+        Box mvex = new Box("mvex");
+        for (Track t : tracks) {
+            mvex.add(new Box("trex", 0, 0).u32(t.id).u32(1).u32(0).u32(0).u32(0));
+        }
+        moov.add(mvex);
+        return moov.toBytes();
+    }
+
+    private Box trak(Track t) {
+        Box tkhd = new Box("tkhd", 0, 0x3)
+                .u32(0).u32(0).u32(t.id).u32(0).u32(0)
+                .zeros(8)
+                .u16(0).u16(0).u16(t.video ? 0 : 0x0100).u16(0)
+                .matrix(t.video ? rotation : 0)
+                .u32(t.video ? t.width << 16 : 0).u32(t.video ? t.height << 16 : 0);
+
+        Box mdhd = new Box("mdhd", 0, 0).u32(0).u32(0).u32(t.timescale).u32(0).u16(0x55c4).u16(0); // "und"
+        Box hdlr = new Box("hdlr", 0, 0).u32(0).fourcc(t.video ? "vide" : "soun").zeros(12)
+                .string(t.video ? "VideoHandler" : "SoundHandler");
+
+        Box header = t.video
+                ? new Box("vmhd", 0, 1).u16(0).u16(0).u16(0).u16(0)
+                : new Box("smhd", 0, 0).u16(0).u16(0);
+        Box dinf = new Box("dinf").add(new Box("dref", 0, 0).u32(1).add(new Box("url ", 0, 1)));
+
+        Box stbl = new Box("stbl")
+                .add(new Box("stsd", 0, 0).u32(1).add(t.video ? avc1(t) : mp4a(t)))
+                .add(new Box("stts", 0, 0).u32(0))
+                .add(new Box("stsc", 0, 0).u32(0))
+                .add(new Box("stsz", 0, 0).u32(0).u32(0))
+                .add(new Box("stco", 0, 0).u32(0));
+
+        return new Box("trak")
+                .add(tkhd)
+                .add(new Box("mdia").add(mdhd).add(hdlr)
+                        .add(new Box("minf").add(header).add(dinf).add(stbl)));
+    }
+
+    private static Box avc1(Track t) {
+        byte[] sps = t.sps.get(0);
+        Box avcC = new Box("avcC").u8(1).u8(sps[1]).u8(sps[2]).u8(sps[3])
+                .u8(0xff)                     // 4-byte NAL lengths
+                .u8(0xe0 | t.sps.size());
+        for (byte[] s : t.sps) avcC.u16(s.length).bytes(s);
+        avcC.u8(t.pps.size());
+        for (byte[] p : t.pps) avcC.u16(p.length).bytes(p);
+
+        return new Box("avc1").zeros(6).u16(1)
+                .u16(0).u16(0).zeros(12)
+                .u16(t.width).u16(t.height)
+                .u32(0x00480000).u32(0x00480000).u32(0)
+                .u16(1).zeros(32).u16(0x0018).u16(0xffff)
+                .add(avcC);
+    }
+
+    private static Box mp4a(Track t) {
+        byte[] asc = t.audioSpecificConfig;
+        // ES_Descriptor > DecoderConfigDescriptor > DecoderSpecificInfo, plus SLConfigDescriptor
+        Box esds = new Box("esds", 0, 0)
+                .u8(0x03).u8(23 + asc.length).u16(0).u8(0)
+                .u8(0x04).u8(15 + asc.length).u8(0x40).u8(0x15).zeros(3).u32(0).u32(0)
+                .u8(0x05).u8(asc.length).bytes(asc)
+                .u8(0x06).u8(1).u8(0x02);
+        return new Box("mp4a").zeros(6).u16(1)
+                .zeros(8)
+                .u16(t.channelCount).u16(16).u16(0).u16(0)
+                .u32(t.timescale << 16)
+                .add(esds);
+    }
+
+    private void emit(byte[] bytes) throws IOException {
+        long offset = position;
+        out.write(bytes);
+        out.flush();
+        position += bytes.length;
+        listener.onChunk(sequence, offset, bytes.length);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    // ---- NAL units ----
+
+    /** Start of the first Annex-B start code at or after {@code from}, or -1. Returns the index of its {@code 01}. */
+    private static int findStartCode(byte[] data, int from, int end) {
+        for (int i = from + 2; i < end; i++) {
+            if (data[i] == 1 && data[i - 1] == 0 && data[i - 2] == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isAnnexB(byte[] data, int offset, int size) {
+        return size >= 4 && data[offset] == 0 && data[offset + 1] == 0
+                && (data[offset + 2] == 1 || (data[offset + 2] == 0 && data[offset + 3] == 1));
+    }
+
+    /** NAL units of an Annex-B buffer, or the whole buffer if it has no start code. */
+    static List<byte[]> splitNalUnits(byte[] data) {
+        List<byte[]> nals = new ArrayList<>();
+        if (!isAnnexB(data, 0, data.length)) {
+            nals.add(data);
+            return nals;
+        }
+        int start = findStartCode(data, 0, data.length) + 1;
+        while (start > 0 && start < data.length) {
+            int next = findStartCode(data, start, data.length);
+            int end = next < 0 ? data.length : next - 2;
+            while (end > start && data[end - 1] == 0) end--; // zero_byte / trailing_zero_8bits
+            if (end > start) nals.add(Arrays.copyOfRange(data, start, end));
+            start = next < 0 ? -1 : next + 1;
+        }
+        return nals;
+    }
+
+    // ---- buffering ----
+
+    private static final class Track {
+        final int id;
+        final boolean video;
+        final int timescale;
+        final SampleQueue queue = new SampleQueue();
+        int width, height, channelCount;
+        List<byte[]> sps, pps;
+        byte[] audioSpecificConfig;
+        long nextDecodeTime = -1;
+        int lastDuration;
+
+        Track(int id, boolean video, int timescale) {
+            this.id = id;
+            this.video = video;
+            this.timescale = timescale;
+            this.lastDuration = video ? timescale / 30 : AAC_FRAME_SAMPLES;
+        }
+
+        long toTimescale(long us) {
+            return (us * timescale + 500_000) / 1_000_000;
+        }
+    }
+
+    /** Samples of the open fragment for one track: payload bytes back to back plus per-sample metadata. */
+    private static final class SampleQueue {
+        byte[] data = new byte[256 * 1024];
+        int length;
+        int count;
+        int[] sizes = new int[64];
+        long[] pts = new long[64];
+        boolean[] key = new boolean[64];
+
+        void add(byte[] src, int offset, int size, long ptsUs, boolean keyFrame) {
+            ensureData(size);
+            System.arraycopy(src, offset, data, length, size);
+            length += size;
+            append(size, ptsUs, keyFrame);
+        }
+
+        /**
+         * Stores an H.264 access unit with 4-byte NAL lengths. Input is Annex-B; a sample without a
+         * leading start code is taken as a single NAL unit.
+         */
+        void addNalSample(byte[] src, int offset, int size, long ptsUs, boolean keyFrame) {
+            int end = offset + size;
+            int before = length;
+            if (!isAnnexB(src, offset, size)) {
+                appendNal(src, offset, size);
+            } else {
+                int start = findStartCode(src, offset, end) + 1;
+                while (start > 0 && start < end) {
+                    int next = findStartCode(src, start, end);
+                    int nalEnd = next < 0 ? end : next - 2;
+                    while (nalEnd > start && src[nalEnd - 1] == 0) nalEnd--; // zero_byte / trailing_zero_8bits
+                    if (nalEnd > start) appendNal(src, start, nalEnd - start);
+                    start = next < 0 ? -1 : next + 1;
+                }
+            }
+            append(length - before, ptsUs, keyFrame);
+        }
+
+        private void appendNal(byte[] src, int offset, int n) {
+            ensureData(4 + n);
+            data[length] = (byte) (n >>> 24);
+            data[length + 1] = (byte) (n >>> 16);
+            data[length + 2] = (byte) (n >>> 8);
+            data[length + 3] = (byte) n;
+            System.arraycopy(src, offset, data, length + 4, n);
+            length += 4 + n;
+        }
+
+        private void append(int size, long ptsUs, boolean keyFrame) {
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+                pts = Arrays.copyOf(pts, count * 2);
+                key = Arrays.copyOf(key, count * 2);
+            }
+            sizes[count] = size;
+            pts[count] = ptsUs;
+            key[count] = keyFrame;
+            count++;
+        }
+
+        private void ensureData(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+
+        int bytesOf(int n) {
+            int total = 0;
+            for (int i = 0; i < n; i++) total += sizes[i];
+            return total;
+        }
+
+        /** Drops the first {@code n} samples ({@code bytes} long) and keeps the rest. */
+        void remove(int n, int bytes) {
+            System.arraycopy(data, bytes, data, 0, length - bytes);
+            length -= bytes;
+            System.arraycopy(sizes, n, sizes, 0, count - n);
+            System.arraycopy(pts, n, pts, 0, count - n);
+            System.arraycopy(key, n, key, 0, count - n);
+            count -= n;
+        }
+    }
+
+    /** One {@code trun}: the first {@code count} samples of a track's queue. */
+    private static final class Run {
+        final Track track;
+        final int count;
+        final int bytes;
+        final long baseDecodeTime;
+        final int[] durations;
+        final int[] sizes;
+        final int[] flags;
+        final int[] compositionOffsets;
+
+        Run(Track track, int count, int bytes, long baseDecodeTime) {
+            this.track = track;
+            this.count = count;
+            this.bytes = bytes;
+            this.baseDecodeTime = baseDecodeTime;
+            this.durations = new int[count];
+            this.sizes = new int[count];
+            this.flags = new int[count];
+            this.compositionOffsets = new int[count];
+        }
+    }
+
+    // ---- boxes ----
+
+    /** ISO BMFF box under construction; the size field is filled in by {@link #toBytes()}. */
+    private static final class Box {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        Box(String type) {
+            u32(0).fourcc(type);
+        }
+
+        /** Full box with version and flags. */
+        Box(String type, int version, int flags) {
+            this(type);
+            u32((version << 24) | flags);
+        }
+
+        Box u8(int v) {
+            bytes.write(v);
+            return this;
+        }
+
+        Box u16(int v) {
+            return u8(v >>> 8).u8(v);
+        }
+
+        Box u32(int v) {
+            return u16(v >>> 16).u16(v);
+        }
+
+        Box u64(long v) {
+            return u32((int) (v >>> 32)).u32((int) v);
+        }
+
+        Box zeros(int n) {
+            for (int i = 0; i < n; i++) bytes.write(0);
+            return this;
+        }
+
+        Box bytes(byte[] b) {
+            bytes.write(b, 0, b.length);
+            return this;
+        }
+
+        Box fourcc(String s) {
+            return bytes(s.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Box string(String s) {
+            return bytes(s.getBytes(StandardCharsets.UTF_8)).u8(0);
+        }
+
+        /** Transformation matrix for a clockwise rotation, as MediaMuxer writes it. */
+        Box matrix(int degrees) {
+            int one = 0x00010000, minusOne = 0xffff0000, w = 0x40000000;
+            switch (degrees) {
+                case 90: return u32(0).u32(one).u32(0).u32(minusOne).u32(0).u32(0).u32(0).u32(0).u32(w);
+                case 180: return u32(minusOne).u32(0).u32(0).u32(0).u32(minusOne).u32(0).u32(0).u32(0).u32(w);
+                case 270: return u32(0).u32(minusOne).u32(0).u32(one).u32(0).u32(0).u32(0).u32(0).u32(w);
+                default: return u32(one).u32(0).u32(0).u32(0).u32(one).u32(0).u32(0).u32(0).u32(w);
+            }
+        }
+
+        Box add(Box child) {
+            return bytes(child.toBytes());
+        }
+
+        byte[] toBytes() {
+            byte[] b = bytes.toByteArray();
+            int size = b.length;
+            b[0] = (byte) (size >>> 24);
+            b[1] = (byte) (size >>> 16);
+            b[2] = (byte) (size >>> 8);
+            b[3] = (byte) size;
+            return b;
+        }
+
+        /** Header only, for a box whose {@code size} bytes of payload are written separately. */
+        byte[] toBytes(long size) {
+            byte[] b = bytes.toByteArray();
+            b[0] = (byte) (size >>> 24);
+            b[1] = (byte) (size >>> 16);
+            b[2] = (byte) (size >>> 8);
+            b[3] = (byte) size;
+            return b;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link OutputMuxer} over {@link FragmentedMp4Writer}: maps MediaFormats to track configs and copies
+ * each sample out of its codec buffer. Accepts H.264 video and AAC audio only.
+ */
+final class FragmentedMuxer implements OutputMuxer {
+
+    private final FileOutputStream out;
+    private final FragmentedMp4Writer writer;
+    private byte[] scratch = new byte[256 * 1024];
+
+    /** Takes ownership of {@code out}, which must be positioned at the start of an empty file. */
+    FragmentedMuxer(FileOutputStream out, long fragmentDurationUs, FragmentedMp4Writer.Listener listener) {
+        this.out = out;
+        writer = new FragmentedMp4Writer(out, fragmentDurationUs, listener);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        writer.setRotation(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return writer.addVideoTrack(format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                    bytes(format, "csd-0"), bytes(format, "csd-1"));
+        }
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            return writer.addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), bytes(format, "csd-0"));
+        }
+        throw new IllegalArgumentException("Fragmented output supports H.264 and AAC only, not " + mime);
+    }
+
+    private static byte[] bytes(MediaFormat format, String key) {
+        ByteBuffer buffer = format.getByteBuffer(key);
+        if (buffer == null) {
+            throw new IllegalArgumentException("Track format has no " + key);
+        }
+        ByteBuffer b = buffer.duplicate();
+        b.position(0);
+        byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+
+    @Override
+    public void start() {
+        try {
+            writer.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write init segment", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (scratch.length < info.size) {
+            scratch = new byte[Math.max(info.size, scratch.length * 2)];
+        }
+        ByteBuffer b = buffer.duplicate();
+        b.limit(info.offset + info.size);
+        b.position(info.offset);
+        b.get(scratch, 0, info.size);
+        try {
+            writer.writeSample(trackIndex, scratch, 0, info.size, info.presentationTimeUs,
+                    (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write fragment", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            writer.finish();
+            out.getFD().sync();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write last fragment", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try { out.close(); } catch (Exception ignore) {}
+    }
+}
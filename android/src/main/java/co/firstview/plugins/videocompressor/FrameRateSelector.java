@@ -0,0 +1,53 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Decides per decoded frame whether it is rendered into the encoder, so a high-frame-rate source is
+ * encoded at the target rate instead of at its own.
+ * <p>
+ * Works on presentation times only, so it handles variable-frame-rate recordings and needs no knowledge
+ * of the source rate. Kept frames follow a fixed schedule of one per target interval; a frame is kept if
+ * it lands within a quarter interval before its slot, which absorbs capture jitter without letting the
+ * average rate drift. After a gap longer than one interval the schedule restarts at the next frame.
+ * <p>
+ * Frames outside the job's {@link ClipRanges} are rejected before they reach the schedule.
+ * <p>
+ * One instance per decoder; frames must be offered in presentation order, as decoders output them.
+ */
+final class FrameRateSelector {
+
+    private final long intervalUs;
+    private final long toleranceUs;
+    /** Null keeps frames at any time. */
+    private final ClipRanges clip;
+    private long nextUs = Long.MIN_VALUE;
+
+    /** @param targetFrameRate frames per second to keep; 0 or less keeps every frame */
+    FrameRateSelector(int targetFrameRate) {
+        this(targetFrameRate, null);
+    }
+
+    FrameRateSelector(int targetFrameRate, ClipRanges clip) {
+        this.intervalUs = targetFrameRate > 0 ? 1_000_000L / targetFrameRate : 0;
+        this.toleranceUs = intervalUs / 4;
+        this.clip = clip;
+    }
+
+    /** Returns true if the frame at {@code ptsUs} should be encoded. */
+    boolean accept(long ptsUs) {
+        if (clip != null && !clip.contains(ptsUs)) {
+            return false;
+        }
+        if (intervalUs == 0) {
+            return true;
+        }
+        if (nextUs == Long.MIN_VALUE || ptsUs >= nextUs + intervalUs) {
+            nextUs = ptsUs + intervalUs;
+            return true;
+        }
+        if (ptsUs + toleranceUs >= nextUs) {
+            nextUs += intervalUs;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,15 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Something between a video decoder's output surface and the encoder's input surface that has to see
+ * every rendered frame, e.g. {@link FrameRenderer} capturing poster frames. Without one the decoder
+ * renders straight into the encoder.
+ */
+interface FrameRelay {
+
+    /**
+     * Called on the decoding thread right after a frame was released for rendering; returns once the frame
+     * was passed on to the encoder.
+     */
+    void relay(long presentationTimeUs) throws Exception;
+}
@@ -0,0 +1,338 @@
+package co.firstview.plugins.videocompressor;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaFormat;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * GLES pass between a video decoder and encoder, used instead of rendering the decoder straight into the
+ * encoder's input surface when poster frames are wanted. Each decoded frame arrives as an external texture
+ * and is drawn into the encoder; frames its {@link PosterSchedule} picks are also drawn, downscaled, into
+ * a small framebuffer, read back and handed to the {@link PosterWriter}. That way posters come from the
+ * frames the transcode decodes anyway, instead of from a second decode afterwards.
+ * <p>
+ * Created on any thread; the EGL context moves to the thread calling {@link #relay} on its first frame,
+ * and that thread must stay the same. Frames are consumed one at a time, as the decoder renders them.
+ */
+final class FrameRenderer implements FrameRelay, SurfaceTexture.OnFrameAvailableListener {
+
+    private static final String TAG = "VideoCompressor";
+
+    /** EGL_RECORDABLE_ANDROID: the config can render into a codec input surface. */
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final long FRAME_TIMEOUT_MS = 2_500;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTexCoord;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTexCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(sTexture, vTexCoord);\n" +
+            "}\n";
+
+    private static final float[] QUAD = {-1, -1, 1, -1, -1, 1, 1, 1};
+    /** Upside down, so glReadPixels, which reads bottom row first, returns the top row first. */
+    private static final float[] QUAD_FLIPPED = {-1, 1, 1, 1, -1, -1, 1, -1};
+    private static final float[] TEX_COORDS = {0, 0, 1, 0, 0, 1, 1, 1};
+
+    private final int width;
+    private final int height;
+    private final PosterWriter posters;
+    private final PosterSchedule schedule;
+    private final int posterWidth;
+    private final int posterHeight;
+
+    private final HandlerThread callbackThread = new HandlerThread("VideoCompressor-frames");
+    private final Object frameLock = new Object();
+    private boolean frameAvailable;
+
+    private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+    private EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface encoderSurface = EGL14.EGL_NO_SURFACE;
+    private Thread boundThread;
+
+    private int program;
+    private int positionLoc;
+    private int texCoordLoc;
+    private int texMatrixLoc;
+    private int textureId;
+    private int posterFramebuffer;
+    private int posterTexture;
+    private final float[] texMatrix = new float[16];
+    private final FloatBuffer quad = floats(QUAD);
+    private final FloatBuffer quadFlipped = floats(QUAD_FLIPPED);
+    private final FloatBuffer texCoords = floats(TEX_COORDS);
+    private final ByteBuffer pixels;
+
+    private SurfaceTexture surfaceTexture;
+    private Surface inputSurface;
+
+    /**
+     * A renderer between a decoder and {@code encoderInput} capturing the posters within {@code [startUs, endUs)},
+     * or null when there are none to capture or GLES is unusable; the decoder then renders straight into the
+     * encoder.
+     */
+    static FrameRenderer create(Surface encoderInput, MediaFormat encoderFormat, PosterWriter posters, long startUs, long endUs) {
+        if (posters == null) {
+            return null;
+        }
+        try {
+            return new FrameRenderer(encoderInput, encoderFormat.getInteger(MediaFormat.KEY_WIDTH),
+                    encoderFormat.getInteger(MediaFormat.KEY_HEIGHT), posters, posters.schedule(startUs, endUs));
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Poster capture unavailable, transcoding without it", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param encoderInput the encoder's input surface, {@code width} x {@code height}
+     * @param schedule     the posters this decoder is responsible for
+     */
+    FrameRenderer(Surface encoderInput, int width, int height, PosterWriter posters, PosterSchedule schedule) {
+        this.width = width;
+        this.height = height;
+        this.posters = posters;
+        this.schedule = schedule;
+        int[] size = posters.size(width, height);
+        this.posterWidth = size[0];
+        this.posterHeight = size[1];
+        this.pixels = ByteBuffer.allocateDirect(posterWidth * posterHeight * 4).order(ByteOrder.nativeOrder());
+        try {
+            setUpEgl(encoderInput);
+            setUpGl();
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        callbackThread.start();
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setOnFrameAvailableListener(this, new Handler(callbackThread.getLooper()));
+        inputSurface = new Surface(surfaceTexture);
+        // Free the context for whichever thread ends up draining the decoder
+        EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+    }
+
+    /** The surface to configure the decoder with. */
+    Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture texture) {
+        synchronized (frameLock) {
+            frameAvailable = true;
+            frameLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void relay(long presentationTimeUs) throws Exception {
+        if (boundThread != Thread.currentThread()) {
+            makeCurrent();
+            boundThread = Thread.currentThread();
+        }
+        awaitFrame();
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(texMatrix);
+
+        if (schedule.take(presentationTimeUs)) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, posterFramebuffer);
+            GLES20.glViewport(0, 0, posterWidth, posterHeight);
+            draw(quadFlipped);
+            pixels.clear();
+            GLES20.glReadPixels(0, 0, posterWidth, posterHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            checkGl("poster readback");
+            posters.write(pixels, posterWidth, posterHeight, presentationTimeUs);
+        }
+
+        GLES20.glViewport(0, 0, width, height);
+        draw(quad);
+        EGLExt.eglPresentationTimeANDROID(display, encoderSurface, presentationTimeUs * 1000);
+        if (!EGL14.eglSwapBuffers(display, encoderSurface)) {
+            throw new IOException("eglSwapBuffers failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    private void awaitFrame() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+        synchronized (frameLock) {
+            while (!frameAvailable) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new IOException("Decoded frame never reached the renderer");
+                }
+                frameLock.wait(left);
+            }
+            frameAvailable = false;
+        }
+    }
+
+    private void draw(FloatBuffer positions) {
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(texMatrixLoc, 1, false, texMatrix, 0);
+        GLES20.glEnableVertexAttribArray(positionLoc);
+        GLES20.glVertexAttribPointer(positionLoc, 2, GLES20.GL_FLOAT, false, 0, positions);
+        GLES20.glEnableVertexAttribArray(texCoordLoc);
+        GLES20.glVertexAttribPointer(texCoordLoc, 2, GLES20.GL_FLOAT, false, 0, texCoords);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private void setUpEgl(Surface encoderInput) {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (display == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(display, version, 0, version, 1)) {
+            throw new IllegalStateException("No EGL display");
+        }
+        int[] configAttribs = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] count = new int[1];
+        if (!EGL14.eglChooseConfig(display, configAttribs, 0, configs, 0, 1, count, 0) || count[0] == 0) {
+            throw new IllegalStateException("No recordable EGL config");
+        }
+        context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                new int[]{EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        if (context == EGL14.EGL_NO_CONTEXT) {
+            throw new IllegalStateException("eglCreateContext failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+        encoderSurface = EGL14.eglCreateWindowSurface(display, configs[0], encoderInput, new int[]{EGL14.EGL_NONE}, 0);
+        if (encoderSurface == EGL14.EGL_NO_SURFACE) {
+            throw new IllegalStateException("eglCreateWindowSurface failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+        makeCurrent();
+    }
+
+    private void makeCurrent() {
+        if (!EGL14.eglMakeCurrent(display, encoderSurface, encoderSurface, context)) {
+            throw new IllegalStateException("eglMakeCurrent failed: 0x" + Integer.toHexString(EGL14.eglGetError()));
+        }
+    }
+
+    private void setUpGl() {
+        program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, compile(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER));
+        GLES20.glAttachShader(program, compile(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER));
+        GLES20.glLinkProgram(program);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            throw new IllegalStateException("Program link failed: " + GLES20.glGetProgramInfoLog(program));
+        }
+        positionLoc = GLES20.glGetAttribLocation(program, "aPosition");
+        texCoordLoc = GLES20.glGetAttribLocation(program, "aTexCoord");
+        texMatrixLoc = GLES20.glGetUniformLocation(program, "uTexMatrix");
+
+        int[] ids = new int[1];
+        GLES20.glGenTextures(1, ids, 0);
+        textureId = ids[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        // The downscale happens in the draw into this small target, not on the CPU
+        GLES20.glGenTextures(1, ids, 0);
+        posterTexture = ids[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, posterTexture);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, posterWidth, posterHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glGenFramebuffers(1, ids, 0);
+        posterFramebuffer = ids[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, posterFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, posterTexture, 0);
+        if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new IllegalStateException("Poster framebuffer incomplete");
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        checkGl("setup");
+    }
+
+    private static int compile(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("Shader compile failed: " + log);
+        }
+        return shader;
+    }
+
+    private static void checkGl(String what) {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new IllegalStateException("GL error 0x" + Integer.toHexString(error) + " in " + what);
+        }
+    }
+
+    private static FloatBuffer floats(float[] values) {
+        FloatBuffer b = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        b.put(values).position(0);
+        return b;
+    }
+
+    /**
+     * Releases the EGL objects and the decoder's surface. Call after the decoder was stopped; GL objects go
+     * away with the context.
+     */
+    void release() {
+        try { if (inputSurface != null) inputSurface.release(); } catch (Exception ignore) {}
+        try { if (surfaceTexture != null) surfaceTexture.release(); } catch (Exception ignore) {}
+        inputSurface = null;
+        surfaceTexture = null;
+        callbackThread.quitSafely();
+        if (display != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (encoderSurface != EGL14.EGL_NO_SURFACE) EGL14.eglDestroySurface(display, encoderSurface);
+            if (context != EGL14.EGL_NO_CONTEXT) EGL14.eglDestroyContext(display, context);
+            // No eglTerminate: the display is shared with every other renderer in the process
+            EGL14.eglReleaseThread();
+        }
+        display = EGL14.EGL_NO_DISPLAY;
+        context = EGL14.EGL_NO_CONTEXT;
+        encoderSurface = EGL14.EGL_NO_SURFACE;
+    }
+}
@@ -0,0 +1,70 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancel / pause switch for one job. The pipeline calls {@link #checkpoint()} between
+ * buffer operations; it returns immediately while the job runs normally, blocks while paused and
+ * throws {@link CancellationException} once cancelled so the engine unwinds and releases its codecs.
+ */
+final class JobControl {
+
+    private final Object lock = new Object();
+    private volatile boolean cancelled = false;
+    private volatile boolean paused = false;
+
+    void cancel() {
+        synchronized (lock) {
+            cancelled = true;
+            lock.notifyAll();
+        }
+    }
+
+    void pause() {
+        synchronized (lock) {
+            paused = true;
+        }
+    }
+
+    void resume() {
+        synchronized (lock) {
+            paused = false;
+            lock.notifyAll();
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @throws CancellationException if the job was cancelled, including while it was paused
+     * @throws IllegalStateException if the thread was interrupted while paused; the interrupt flag is kept
+     *                               and the job is not marked cancelled, so its checkpoints survive
+     */
+    void checkpoint() {
+        if (cancelled) {
+            throw new CancellationException("Compression cancelled");
+        }
+        if (!paused) {
+            return;
+        }
+        synchronized (lock) {
+            while (paused && !cancelled) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while paused", e);
+                }
+            }
+        }
+        if (cancelled) {
+            throw new CancellationException("Compression cancelled");
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaFormat;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * On-disk record of a resumable job's video segments: the sync-sample boundaries it was split at, the
+ * encoder output format, and which segment spools in the same directory are complete. A job restarted
+ * for the same source and settings after the process died reuses those spools and only transcodes the rest.
+ * <p>
+ * A segment is recorded only after its spool was synced to storage, and the journal itself is written to
+ * a temp file and renamed, so a crash at any point leaves at worst a segment that is transcoded again.
+ * The {@code config} string identifies the encoder; a journal written with a different one is discarded,
+ * since its segments' parameter sets would not match new ones.
+ */
+final class JobJournal {
+
+    private static final String TAG = "VideoCompressor";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String FILE = "journal.json";
+    /** Journals of jobs that were never retried are removed after this long. */
+    static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File dir;
+    private final String config;
+    private long[] starts;
+    private MediaFormat format;
+    /** Completed segment → its spool's size in bytes and sample count. */
+    private final Map<Integer, SegmentTranscoder.Result> done = new TreeMap<>();
+
+    private JobJournal(File dir, String config) {
+        this.dir = dir;
+        this.config = config;
+    }
+
+    /** Loads the journal in {@code dir}, or starts an empty one if there is none usable. */
+    static JobJournal open(File dir, String config) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create job directory " + dir);
+        }
+        JobJournal journal = new JobJournal(dir, config);
+        File file = new File(dir, FILE);
+        if (file.isFile()) {
+            try {
+                journal.load(new JSONObject(readText(file)));
+            } catch (IOException | JSONException | IllegalArgumentException e) {
+                Log.w(TAG, "Unreadable job journal, starting over: " + dir, e);
+                journal.reset();
+            }
+        }
+        return journal;
+    }
+
+    /** Deletes job directories not touched for {@link #MAX_AGE_MS}. */
+    static void pruneStale(File root) {
+        File[] jobs = root.listFiles();
+        if (jobs == null) return;
+        long cutoff = System.currentTimeMillis() - MAX_AGE_MS;
+        for (File job : jobs) {
+            if (new File(job, FILE).lastModified() < cutoff) {
+                Log.d(TAG, "Removing abandoned job checkpoints: " + job);
+                deleteDir(job);
+            }
+        }
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    File spoolFile(int segment) {
+        return new File(dir, "segment-" + segment + ".spool");
+    }
+
+    /** Segment boundaries of the interrupted run, or null for a new job. */
+    synchronized long[] getStarts() {
+        return starts;
+    }
+
+    /** Records the boundaries a new job is split at. */
+    synchronized void begin(long[] starts) throws IOException {
+        this.starts = starts.clone();
+        done.clear();
+        write();
+    }
+
+    /** Segment 0's encoder output format, or null until it was recorded. */
+    synchronized MediaFormat getFormat() {
+        return format;
+    }
+
+    synchronized void setFormat(MediaFormat format) throws IOException {
+        this.format = format;
+        write();
+    }
+
+    /** The spool of a segment finished in an earlier run, or null if it has to be transcoded. */
+    synchronized SegmentTranscoder.Result getResult(int segment) {
+        // Segment 0 is only useful together with the format the muxer track is created from
+        if (segment == 0 && format == null) return null;
+        return done.get(segment);
+    }
+
+    synchronized int getCompletedCount() {
+        return done.size();
+    }
+
+    /** Records a segment whose spool was synced to storage. */
+    synchronized void markDone(int segment, SegmentTranscoder.Result result) throws IOException {
+        done.put(segment, result);
+        write();
+    }
+
+    /** Removes the journal and every spool. */
+    void delete() {
+        deleteDir(dir);
+    }
+
+    private void reset() {
+        starts = null;
+        format = null;
+        done.clear();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+
+    private void load(JSONObject json) throws JSONException {
+        if (json.getInt("version") != FORMAT_VERSION || !config.equals(json.getString("config"))) {
+            Log.d(TAG, "Job journal from another encoder configuration, starting over: " + dir);
+            reset();
+            return;
+        }
+        JSONArray s = json.getJSONArray("starts");
+        if (s.length() == 0) {
+            return;
+        }
+        starts = new long[s.length()];
+        for (int i = 0; i < starts.length; i++) starts[i] = s.getLong(i);
+
+        JSONObject f = json.optJSONObject("format");
+        if (f != null) {
+            format = MediaFormat.createVideoFormat(f.getString("mime"), f.getInt("width"), f.getInt("height"));
+            for (String csd : new String[]{"csd-0", "csd-1"}) {
+                if (f.has(csd)) {
+                    format.setByteBuffer(csd, ByteBuffer.wrap(Base64.decode(f.getString(csd), Base64.NO_WRAP)));
+                }
+            }
+        }
+
+        JSONArray d = json.getJSONArray("done");
+        for (int i = 0; i < d.length(); i++) {
+            JSONObject segment = d.getJSONObject(i);
+            int index = segment.getInt("segment");
+            File spool = spoolFile(index);
+            // A spool of another length was rewritten by a run that died before recording it
+            if (index < starts.length && spool.length() == segment.getLong("bytes")) {
+                done.put(index, new SegmentTranscoder.Result(spool, segment.getInt("maxSampleSize"), segment.getLong("samples")));
+            }
+        }
+        Log.d(TAG, "Job journal loaded: " + done.size() + "/" + starts.length + " segments done, " + dir);
+    }
+
+    private void write() throws IOException {
+        File tmp = new File(dir, FILE + ".tmp");
+        try {
+            JSONObject json = new JSONObject();
+            json.put("version", FORMAT_VERSION);
+            json.put("config", config);
+            JSONArray s = new JSONArray();
+            if (starts != null) {
+                for (long start : starts) s.put(start);
+            }
+            json.put("starts", s);
+            if (format != null) {
+                JSONObject f = new JSONObject();
+                f.put("mime", format.getString(MediaFormat.KEY_MIME));
+                f.put("width", format.getInteger(MediaFormat.KEY_WIDTH));
+                f.put("height", format.getInteger(MediaFormat.KEY_HEIGHT));
+                for (String csd : new String[]{"csd-0", "csd-1"}) {
+                    if (format.containsKey(csd)) {
+                        ByteBuffer b = format.getByteBuffer(csd).duplicate();
+                        byte[] bytes = new byte[b.remaining()];
+                        b.get(bytes);
+                        f.put(csd, Base64.encodeToString(bytes, Base64.NO_WRAP));
+                    }
+                }
+                json.put("format", f);
+            }
+            JSONArray d = new JSONArray();
+            for (Map.Entry<Integer, SegmentTranscoder.Result> e : done.entrySet()) {
+                d.put(new JSONObject()
+                        .put("segment", e.getKey())
+                        .put("bytes", e.getValue().file.length())
+                        .put("maxSampleSize", e.getValue().maxSampleSize)
+                        .put("samples", e.getValue().sampleCount));
+            }
+            json.put("done", d);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        if (!tmp.renameTo(new File(dir, FILE))) {
+            throw new IOException("Could not replace job journal in " + dir);
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new String(data, 0, read, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+}
@@ -0,0 +1,119 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Device implementations of the loop interfaces. Thin pass-throughs: the only work is copying
+ * {@link MediaCodec.BufferInfo} into a reused {@link SampleInfo}, so nothing is allocated per buffer.
+ */
+final class MediaCodecAdapter implements Codec {
+
+    private final MediaCodec codec;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    MediaCodecAdapter(MediaCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo out, long timeoutUs) {
+        int index = codec.dequeueOutputBuffer(info, timeoutUs);
+        if (index >= 0) {
+            out.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        codec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        codec.signalEndOfInputStream();
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return new Format(codec.getOutputFormat());
+    }
+
+    /** {@link TrackFormat} backed by a {@link MediaFormat}. */
+    static final class Format implements TrackFormat {
+        final MediaFormat format;
+
+        Format(MediaFormat format) {
+            this.format = format;
+        }
+
+        @Override
+        public String getMime() {
+            return format.getString(MediaFormat.KEY_MIME);
+        }
+
+        @Override
+        public ByteBuffer getCodecSpecificData(int index) {
+            String key = "csd-" + index;
+            return format.containsKey(key) ? format.getByteBuffer(key) : null;
+        }
+    }
+
+    /** {@link SampleSource} over the selected track of a {@link MediaExtractor}; the extractor is not owned. */
+    static final class Extractor implements SampleSource {
+        private final MediaExtractor extractor;
+
+        Extractor(MediaExtractor extractor) {
+            this.extractor = extractor;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            return extractor.readSampleData(buffer, offset);
+        }
+
+        @Override
+        public long getSampleTime() {
+            return extractor.getSampleTime();
+        }
+
+        @Override
+        public int getSampleFlags() {
+            return extractor.getSampleFlags();
+        }
+
+        @Override
+        public boolean advance() {
+            return extractor.advance();
+        }
+
+        @Override
+        public void seekTo(long timeUs) {
+            extractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package co.firstview.plugins.videocompressor;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.MediaExtractor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Where a job reads its source or writes its output: a filesystem path, or a {@code content://} URI that is
+ * accessed through file descriptors from the {@link ContentResolver}, so gallery videos need no copy into
+ * app storage first.
+ * <p>
+ * Every reader gets a descriptor of its own. Extractors that shared one would also share its file offset,
+ * and a job runs several extractors at once.
+ */
+final class MediaLocation {
+
+    private final File file;
+    private final Uri uri;
+    private final ContentResolver resolver;
+
+    private MediaLocation(File file, Uri uri, ContentResolver resolver) {
+        this.file = file;
+        this.uri = uri;
+        this.resolver = resolver;
+    }
+
+    /** A path, a {@code file://} URI or a {@code content://} URI. */
+    static MediaLocation parse(Context context, String location) {
+        if (location.startsWith("content://")) {
+            return new MediaLocation(null, Uri.parse(location), context.getContentResolver());
+        }
+        if (location.startsWith("file://")) {
+            return of(new File(Uri.parse(location).getPath()));
+        }
+        return of(new File(location));
+    }
+
+    static MediaLocation of(File file) {
+        return new MediaLocation(file, null, null);
+    }
+
+    boolean isFile() {
+        return file != null;
+    }
+
+    /** The file behind a path location; null for a content URI. */
+    File getFile() {
+        return file;
+    }
+
+    boolean exists() {
+        if (file != null) {
+            return file.isFile();
+        }
+        try (ParcelFileDescriptor pfd = openForRead()) {
+            return pfd != null;
+        } catch (IOException | SecurityException e) {
+            return false;
+        }
+    }
+
+    long length() throws IOException {
+        if (file != null) {
+            return file.length();
+        }
+        try (ParcelFileDescriptor pfd = openForRead()) {
+            return pfd.getStatSize();
+        }
+    }
+
+    void setDataSource(MediaExtractor extractor) throws IOException {
+        if (file != null) {
+            extractor.setDataSource(file.getPath());
+            return;
+        }
+        // The extractor keeps a duplicate of the descriptor; ours can be closed right away
+        try (ParcelFileDescriptor pfd = openForRead()) {
+            extractor.setDataSource(pfd.getFileDescriptor());
+        }
+    }
+
+    /** {@link CompressionCache#key} of the content at this location. */
+    String fingerprint(String settings) throws IOException {
+        if (file != null) {
+            return CompressionCache.key(file, settings);
+        }
+        try (ParcelFileDescriptor pfd = openForRead();
+             FileInputStream in = new FileInputStream(pfd.getFileDescriptor())) {
+            long modifiedMs;
+            try {
+                modifiedMs = Os.fstat(pfd.getFileDescriptor()).st_mtime * 1000;
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+            return CompressionCache.key(in.getChannel(), pfd.getStatSize(), modifiedMs, settings);
+        }
+    }
+
+    /** A descriptor for writing, truncating what was there. Seekable, as {@code MediaMuxer} requires. */
+    ParcelFileDescriptor openForWrite() throws IOException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "rwt");
+        if (pfd == null) {
+            throw new FileNotFoundException("No descriptor for " + uri);
+        }
+        return pfd;
+    }
+
+    /** A stream writing this location from the start; closing it closes the underlying descriptor. */
+    FileOutputStream openOutputStream() throws IOException {
+        if (file != null) {
+            return new FileOutputStream(file);
+        }
+        return new ParcelFileDescriptor.AutoCloseOutputStream(openForWrite());
+    }
+
+    private ParcelFileDescriptor openForRead() throws IOException {
+        ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+        if (pfd == null) {
+            throw new FileNotFoundException("No descriptor for " + uri);
+        }
+        return pfd;
+    }
+
+    @Override
+    public String toString() {
+        return file != null ? file.getPath() : uri.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+/**
+ * Container and track metadata read from a {@link MediaExtractor} without decoding anything.
+ * Used to decide per track whether the source can be copied as-is or has to be transcoded.
+ */
+final class MediaProbe {
+
+    int videoTrackIndex = -1;
+    int audioTrackIndex = -1;
+
+    MediaFormat videoFormat;
+    MediaFormat audioFormat;
+
+    String videoMime;
+    String audioMime;
+
+    int width;
+    int height;
+    int rotation;
+    int frameRate;
+    /** Source video bitrate in bits/s, estimated from the file size when the container does not declare it; -1 if unknown. */
+    int videoBitrate = -1;
+    long durationUs;
+
+    int audioSampleRate;
+    int audioChannelCount;
+    /** Source audio bitrate in bits/s, -1 if unknown. */
+    int audioBitrate = -1;
+
+    private MediaProbe() {}
+
+    boolean hasAudio() {
+        return audioTrackIndex != -1;
+    }
+
+    static MediaProbe from(MediaExtractor extractor, long fileSizeBytes) {
+        MediaProbe probe = new MediaProbe();
+        probe.videoTrackIndex = selectTrack(extractor, "video/");
+        probe.audioTrackIndex = selectTrack(extractor, "audio/");
+
+        long videoDurationUs = 0L;
+        long audioDurationUs = 0L;
+
+        if (probe.videoTrackIndex != -1) {
+            MediaFormat format = extractor.getTrackFormat(probe.videoTrackIndex);
+            probe.videoFormat = format;
+            probe.videoMime = format.getString(MediaFormat.KEY_MIME);
+            probe.width = getInt(format, MediaFormat.KEY_WIDTH, 0);
+            probe.height = getInt(format, MediaFormat.KEY_HEIGHT, 0);
+            probe.rotation = getInt(format, MediaFormat.KEY_ROTATION, 0);
+            probe.frameRate = getInt(format, MediaFormat.KEY_FRAME_RATE, 0);
+            probe.videoBitrate = getInt(format, MediaFormat.KEY_BIT_RATE, -1);
+            videoDurationUs = getLong(format, MediaFormat.KEY_DURATION, 0L);
+        }
+
+        if (probe.audioTrackIndex != -1) {
+            MediaFormat format = extractor.getTrackFormat(probe.audioTrackIndex);
+            probe.audioFormat = format;
+            probe.audioMime = format.getString(MediaFormat.KEY_MIME);
+            probe.audioSampleRate = getInt(format, MediaFormat.KEY_SAMPLE_RATE, 44100);
+            probe.audioChannelCount = getInt(format, MediaFormat.KEY_CHANNEL_COUNT, 2);
+            probe.audioBitrate = getInt(format, MediaFormat.KEY_BIT_RATE, -1);
+            audioDurationUs = getLong(format, MediaFormat.KEY_DURATION, 0L);
+        }
+
+        probe.durationUs = Math.max(videoDurationUs, audioDurationUs);
+
+        // Most camera recordings do not declare a video bitrate; derive an upper bound from the file size.
+        // The whole file is attributed to video minus any known audio bitrate, so this errs on the high side.
+        if (probe.videoBitrate <= 0 && videoDurationUs > 0 && fileSizeBytes > 0) {
+            long totalBitrate = fileSizeBytes * 8L * 1_000_000L / videoDurationUs;
+            long estimate = totalBitrate - Math.max(0, probe.audioBitrate);
+            probe.videoBitrate = (int) Math.min(Integer.MAX_VALUE, Math.max(1L, estimate));
+        }
+
+        return probe;
+    }
+
+    static int selectTrack(MediaExtractor extractor, String mimeTypePrefix) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith(mimeTypePrefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getInt(MediaFormat format, String key, int fallback) {
+        try {
+            return format.containsKey(key) ? format.getInteger(key) : fallback;
+        } catch (Exception e) {
+            // Some extractors store numeric keys with a different type (e.g. float frame rate).
+            return fallback;
+        }
+    }
+
+    private static long getLong(MediaFormat format, String key, long fallback) {
+        try {
+            return format.containsKey(key) ? format.getLong(key) : fallback;
+        } catch (Exception e) {
+            return fallback;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MediaProbe{video=" + videoMime + " " + width + "x" + height + " rot=" + rotation + " fps=" + frameRate +
+                " bitrate=" + videoBitrate + ", audio=" + audioMime + " " + audioSampleRate + "Hz x" + audioChannelCount +
+                " bitrate=" + audioBitrate + ", durationUs=" + durationUs + "}";
+    }
+}
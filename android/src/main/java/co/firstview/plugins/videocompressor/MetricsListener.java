@@ -0,0 +1,9 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Receives the stage metrics of every job once it has finished, failed or been cancelled.
+ * Called on the job's worker thread; implementations should hand the data off quickly.
+ */
+public interface MetricsListener {
+    void onJobMetrics(String jobId, CompressionMetrics metrics, boolean succeeded);
+}
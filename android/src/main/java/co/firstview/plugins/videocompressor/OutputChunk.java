@@ -0,0 +1,30 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * A finished piece of a fragmented output file, delivered to
+ * {@link VideoCompressor.VideoCompressionCallback#onChunk}: the bytes at {@code [offset, offset + length)}
+ * of {@link #path} are final and can be uploaded while the rest is still being encoded.
+ */
+public class OutputChunk {
+
+    /**
+     * Path or content URI being written. A path is moved over the source once the job succeeds if
+     * {@link CompressionOptions#replaceSource} applies.
+     */
+    public final String path;
+    /** 0 for the init segment, then 1, 2, ... for each fragment. */
+    public final int sequence;
+    public final long offset;
+    public final int length;
+
+    OutputChunk(String path, int sequence, long offset, int length) {
+        this.path = path;
+        this.sequence = sequence;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public boolean isInitSegment() {
+        return sequence == 0;
+    }
+}
@@ -0,0 +1,54 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.Locale;
+
+/**
+ * Video codecs the output can be encoded with, most efficient last. {@link #bitrateFactor} is the share of
+ * the AVC bitrate a codec needs for about the same visual quality; the plan's bits-per-pixel densities are
+ * AVC figures.
+ */
+enum OutputCodec {
+    AVC("avc", "video/avc", 1.0, 23),
+    HEVC("hevc", "video/hevc", 0.65, 24),
+    AV1("av1", "video/av01", 0.55, 29);
+
+    /** Option value, as passed from JS. */
+    final String id;
+    final String mime;
+    final double bitrateFactor;
+    /** First API level whose MediaMuxer writes this codec to MP4. */
+    final int minSdk;
+
+    OutputCodec(String id, String mime, double bitrateFactor, int minSdk) {
+        this.id = id;
+        this.mime = mime;
+        this.bitrateFactor = bitrateFactor;
+        this.minSdk = minSdk;
+    }
+
+    /** Null for {@code "auto"} or an unknown value. */
+    static OutputCodec from(String value) {
+        if (value == null) return null;
+        String v = value.toLowerCase(Locale.US);
+        for (OutputCodec c : values()) {
+            if (c.id.equals(v) || c.mime.equals(v)) return c;
+        }
+        if (v.equals("h264")) return AVC;
+        if (v.equals("h265")) return HEVC;
+        return null;
+    }
+
+    /** Whether {@code allowed} (codec ids; null allows all) lists this codec. AVC is always allowed. */
+    boolean isAllowed(String[] allowed) {
+        if (allowed == null || this == AVC) return true;
+        for (String a : allowed) {
+            if (from(a) == this) return true;
+        }
+        return false;
+    }
+
+    /** Most efficient first, the order "auto" tries them in. */
+    static OutputCodec[] byEfficiency() {
+        return new OutputCodec[]{AV1, HEVC, AVC};
+    }
+}
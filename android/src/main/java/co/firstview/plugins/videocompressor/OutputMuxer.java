@@ -0,0 +1,99 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.ParcelFileDescriptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The subset of {@link MediaMuxer} a {@link TranscodeSession} uses, so the output container can be
+ * swapped: {@link Platform} writes a regular MP4, {@link FragmentedMuxer} a fragmented one. Same call
+ * order and failure behaviour as MediaMuxer (unchecked exceptions once started).
+ */
+interface OutputMuxer {
+
+    void setOrientationHint(int degrees);
+
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info);
+
+    void stop();
+
+    void release();
+
+    /**
+     * Stops and then releases {@code muxer}. Only a release failure is ignored: a failed stop means the
+     * file is incomplete (e.g. {@link FragmentedMuxer}'s last fragment was not written), so it is rethrown
+     * after the release for the job to fail.
+     */
+    static void finish(OutputMuxer muxer) {
+        try {
+            muxer.stop();
+        } finally {
+            try { muxer.release(); } catch (Exception ignore) {}
+        }
+    }
+
+    /** {@link MediaMuxer} writing a regular MP4, usable once {@link #stop()} returns. */
+    final class Platform implements OutputMuxer {
+        private final MediaMuxer muxer;
+        /** Owned descriptor the muxer writes to; null when it opened a path itself. */
+        private final ParcelFileDescriptor descriptor;
+
+        Platform(String path) throws IOException {
+            muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            descriptor = null;
+        }
+
+        /** Writes to a seekable descriptor, which is closed on {@link #release()}. API 26+. */
+        Platform(ParcelFileDescriptor descriptor) throws IOException {
+            try {
+                muxer = new MediaMuxer(descriptor.getFileDescriptor(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            } catch (IOException | RuntimeException e) {
+                try { descriptor.close(); } catch (Exception ignore) {}
+                throw e;
+            }
+            this.descriptor = descriptor;
+        }
+
+        @Override
+        public void setOrientationHint(int degrees) {
+            muxer.setOrientationHint(degrees);
+        }
+
+        @Override
+        public int addTrack(MediaFormat format) {
+            return muxer.addTrack(format);
+        }
+
+        @Override
+        public void start() {
+            muxer.start();
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+            muxer.writeSampleData(trackIndex, buffer, info);
+        }
+
+        @Override
+        public void stop() {
+            muxer.stop();
+        }
+
+        @Override
+        public void release() {
+            try {
+                muxer.release();
+            } finally {
+                try { if (descriptor != null) descriptor.close(); } catch (Exception ignore) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Converts decoded 16-bit PCM to the layout the audio encoder was configured with: downmixes to mono or
+ * stereo and resamples to the output rate, so a low-bitrate preset does not spend encoder time and bytes on
+ * channels and bandwidth it cannot carry.
+ * <p>
+ * Downmixing uses fixed-point coefficients: 5.1 folds centre and surrounds in at -3 dB (LFE is dropped) and
+ * is normalized so full-scale input cannot clip; other layouts alternate channels between left and right.
+ * <p>
+ * Resampling interpolates linearly between neighbouring frames. When the rate goes down, the downmixed
+ * input first runs through a windowed-sinc low-pass at 90% of the output Nyquist frequency; without it,
+ * everything above that (sibilants, at the 22.05 kHz preset) would fold back into the audible band. The
+ * filter lags by {@link #FILTER_HALF_LENGTH} input frames, which is offset by reading that far ahead: output
+ * stays aligned with the input, and the last {@code FILTER_HALF_LENGTH} input frames (under a millisecond)
+ * are not emitted.
+ * <p>
+ * Streaming: state carries over between calls, so input may be split across buffers anywhere on a frame
+ * boundary.
+ * <p>
+ * No allocation per call; only {@link #setInputFormat} allocates. Not thread-safe.
+ */
+final class PcmProcessor {
+
+    private static final int SHIFT = 14;
+    private static final int ONE = 1 << SHIFT;
+    /** -3 dB */
+    private static final double HALF_POWER = Math.sqrt(0.5);
+    /** Taps on each side of the anti-alias filter's centre; also its delay in input frames. */
+    static final int FILTER_HALF_LENGTH = 32;
+    private static final int FILTER_SHIFT = 15;
+    /** Filter cutoff as a share of the output Nyquist frequency. */
+    private static final double CUTOFF = 0.9;
+
+    private final int outRate;
+    private final int outChannels;
+
+    private int inRate;
+    private int inChannels;
+    private boolean identity;
+    /** {@code [out channel][in channel]} weights, {@link #ONE} = unity. */
+    private int[][] matrix;
+    private int[] in;
+    /** The last downmixed input frame, before filtering. */
+    private int[] mixed;
+    /** Anti-alias filter coefficients, {@code 1 << FILTER_SHIFT} = unity; null when the rate does not go down. */
+    private int[] taps;
+    /**
+     * {@code [out channel][2 * taps]} downmixed input frames, each written twice ({@code i} and
+     * {@code i + taps}) so the last {@code taps} frames are always contiguous from {@link #historyPos}.
+     */
+    private int[][] history;
+    private int historyPos;
+    /** Input frames still to read before the filter yields its first output; -1 before the first frame. */
+    private int leadIn;
+    /** The two input frames (downmixed, filtered) the next output frame lies between. */
+    private int[] a;
+    private int[] b;
+    private int[] next;
+    /** Position of the next output frame past {@link #a}, in units of 1/{@code outRate} input frames. */
+    private long phase;
+
+    /** @param outChannels 1 or 2 */
+    PcmProcessor(int outRate, int outChannels) {
+        if (outChannels < 1 || outChannels > 2) {
+            throw new IllegalArgumentException("Only mono or stereo output: " + outChannels);
+        }
+        this.outRate = Math.max(1, outRate);
+        this.outChannels = outChannels;
+        setInputFormat(outRate, outChannels);
+    }
+
+    /** Sets the decoder's PCM layout, e.g. from its output format, and restarts the stream. */
+    void setInputFormat(int sampleRate, int channelCount) {
+        inRate = Math.max(1, sampleRate);
+        inChannels = Math.max(1, channelCount);
+        identity = inRate == outRate && inChannels == outChannels;
+        matrix = downmix(inChannels, outChannels);
+        in = new int[inChannels];
+        taps = inRate > outRate ? lowPass(CUTOFF * outRate / 2 / inRate) : null;
+        history = taps != null ? new int[outChannels][2 * taps.length] : null;
+        mixed = new int[outChannels];
+        historyPos = 0;
+        leadIn = -1;
+        a = new int[outChannels];
+        b = new int[outChannels];
+        next = new int[outChannels];
+        // Two input frames are read before the first output frame, which then lands exactly on the first
+        phase = 2L * outRate;
+    }
+
+    /** True when input already has the output layout and can be copied as is. */
+    boolean isIdentity() {
+        return identity;
+    }
+
+    int inputFrameSize() {
+        return 2 * inChannels;
+    }
+
+    int outputFrameSize() {
+        return 2 * outChannels;
+    }
+
+    int outputSampleRate() {
+        return outRate;
+    }
+
+    /**
+     * Converts whole frames from {@code src} into {@code dst} until {@code src} has no complete frame left
+     * or {@code dst} has no room for one. Samples are little-endian, as decoders produce them.
+     *
+     * @return number of output frames written
+     */
+    int process(ByteBuffer src, ByteBuffer dst) {
+        int inFrameSize = inputFrameSize();
+        int outFrameSize = outputFrameSize();
+        int frames = 0;
+        while (true) {
+            while (phase >= outRate) {
+                if (!readFrame(src, next)) {
+                    return frames;
+                }
+                int[] t = a;
+                a = b;
+                b = next;
+                next = t;
+                phase -= outRate;
+            }
+            if (dst.remaining() < outFrameSize) {
+                return frames;
+            }
+            for (int c = 0; c < outChannels; c++) {
+                int v = a[c] + (int) ((b[c] - a[c]) * phase / outRate);
+                dst.put((byte) v);
+                dst.put((byte) (v >> 8));
+            }
+            phase += inRate;
+            frames++;
+        }
+    }
+
+    /**
+     * Reads input frames until the next downmixed (and, when downsampling, filtered) frame is in
+     * {@code out}. False if {@code src} ran out first; frames read up to then are kept in the filter.
+     */
+    private boolean readFrame(ByteBuffer src, int[] out) {
+        int frameSize = inputFrameSize();
+        while (src.remaining() >= frameSize) {
+            for (int i = 0; i < inChannels; i++) {
+                in[i] = (short) ((src.get() & 0xff) | (src.get() << 8));
+            }
+            int[] target = taps == null ? out : mixed;
+            for (int c = 0; c < outChannels; c++) {
+                int[] weights = matrix[c];
+                long sum = 0;
+                for (int i = 0; i < inChannels; i++) {
+                    sum += (long) weights[i] * in[i];
+                }
+                target[c] = clamp(sum >> SHIFT);
+            }
+            if (taps == null) {
+                return true;
+            }
+            if (push(out)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the downmixed frame in {@link #mixed} to the filter history and, once enough frames have been read,
+     * writes the filtered frame centred {@link #FILTER_HALF_LENGTH} frames back into {@code out}.
+     */
+    private boolean push(int[] out) {
+        int length = taps.length;
+        if (leadIn < 0) {
+            // Hold the first frame to the left of the stream, so the filter starts without a fade-in
+            for (int c = 0; c < outChannels; c++) {
+                Arrays.fill(history[c], mixed[c]);
+            }
+            leadIn = FILTER_HALF_LENGTH;
+            return false;
+        }
+        for (int c = 0; c < outChannels; c++) {
+            history[c][historyPos] = mixed[c];
+            history[c][historyPos + length] = mixed[c];
+        }
+        historyPos = historyPos + 1 == length ? 0 : historyPos + 1;
+        if (leadIn > 0 && --leadIn > 0) {
+            return false;
+        }
+        for (int c = 0; c < outChannels; c++) {
+            int[] h = history[c];
+            long sum = 1L << (FILTER_SHIFT - 1);
+            for (int i = 0; i < length; i++) {
+                sum += (long) taps[i] * h[historyPos + i];
+            }
+            out[c] = clamp(sum >> FILTER_SHIFT);
+        }
+        return true;
+    }
+
+    private static int clamp(long v) {
+        return (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+    }
+
+    /**
+     * Blackman-windowed sinc low-pass with {@code 2 * FILTER_HALF_LENGTH + 1} taps, cutoff in cycles per
+     * input frame. Taps sum to exactly unity, so DC and slow ramps pass unchanged.
+     */
+    private static int[] lowPass(double cutoff) {
+        int length = 2 * FILTER_HALF_LENGTH + 1;
+        double[] h = new double[length];
+        double total = 0;
+        for (int n = 0; n < length; n++) {
+            int k = n - FILTER_HALF_LENGTH;
+            double sinc = k == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * k) / (Math.PI * k);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+            h[n] = sinc * window;
+            total += h[n];
+        }
+        int[] taps = new int[length];
+        int sum = 0;
+        for (int n = 0; n < length; n++) {
+            taps[n] = (int) Math.round(h[n] / total * (1 << FILTER_SHIFT));
+            sum += taps[n];
+        }
+        taps[FILTER_HALF_LENGTH] += (1 << FILTER_SHIFT) - sum;
+        return taps;
+    }
+
+    private static int[][] downmix(int inChannels, int outChannels) {
+        int[][] stereo = new int[2][inChannels];
+        if (inChannels == 1) {
+            stereo[0][0] = ONE;
+            stereo[1][0] = ONE;
+        } else if (inChannels == 6) {
+            // FL FR FC LFE BL BR, as Android decoders order 5.1
+            double norm = 1 / (1 + 2 * HALF_POWER);
+            stereo[0][0] = fixed(norm);
+            stereo[1][1] = fixed(norm);
+            stereo[0][2] = stereo[1][2] = fixed(HALF_POWER * norm);
+            stereo[0][4] = fixed(HALF_POWER * norm);
+            stereo[1][5] = fixed(HALF_POWER * norm);
+        } else {
+            int left = (inChannels + 1) / 2;
+            int right = inChannels / 2;
+            for (int i = 0; i < inChannels; i++) {
+                stereo[i % 2][i] = i % 2 == 0 ? ONE / left : ONE / right;
+            }
+        }
+        if (outChannels == 2) {
+            return stereo;
+        }
+        int[][] mono = new int[1][inChannels];
+        for (int i = 0; i < inChannels; i++) {
+            mono[0][i] = (stereo[0][i] + stereo[1][i]) / 2;
+        }
+        return mono;
+    }
+
+    private static int fixed(double weight) {
+        return (int) Math.round(weight * ONE);
+    }
+}
@@ -0,0 +1,148 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded ring of decoded PCM buffers between the audio decoder and the audio encoder.
+ * <p>
+ * The ring holds on to the decoder's own output buffers instead of copying them out; each one is
+ * released back to the decoder as soon as it has been fully moved into encoder input. Encoder inputs
+ * are filled completely, coalescing several decoder buffers when they are small, so the only copy is
+ * the unavoidable decoder-to-encoder one. When the encoder's layout differs from the decoder's, that copy
+ * goes through the {@link PcmProcessor} instead.
+ * <p>
+ * Output timestamps come from a frame counter ({@code base + frames * 1e6 / rate}, integer math), so they
+ * neither drift nor depend on how the PCM happens to be split across buffers.
+ * <p>
+ * Not thread-safe; callers serialize access.
+ */
+final class PcmRing {
+
+    private final MediaCodec decoder;
+    private final int[] indices;
+    private final ByteBuffer[] buffers;
+    private int head = 0;
+    private int count = 0;
+
+    private final PcmProcessor processor;
+    private int bytesPerFrame;
+    private long basePts = -1;
+    private long framesOut = 0;
+    private boolean endOfStream = false;
+
+    /** @param processor converts to the encoder's layout; its input format is the expected decoder output */
+    PcmRing(MediaCodec decoder, int capacity, PcmProcessor processor) {
+        this.decoder = decoder;
+        this.indices = new int[capacity];
+        this.buffers = new ByteBuffer[capacity];
+        this.processor = processor;
+        this.bytesPerFrame = processor.inputFrameSize();
+    }
+
+    /** Updates the PCM layout, e.g. after the decoder reported its actual output format. */
+    void setPcmFormat(int sampleRate, int channelCount) {
+        processor.setInputFormat(sampleRate, channelCount);
+        this.bytesPerFrame = processor.inputFrameSize();
+    }
+
+    boolean isFull() {
+        return count == indices.length;
+    }
+
+    /** True when PCM is waiting to be moved into the encoder. */
+    boolean hasData() {
+        return count > 0;
+    }
+
+    /** True once the decoder's EOS buffer was offered and every byte before it has been drained. */
+    boolean isDrainedToEndOfStream() {
+        return endOfStream && count == 0;
+    }
+
+    /**
+     * Takes ownership of decoder output buffer {@code index}. Empty buffers are released immediately.
+     *
+     * @return false if the ring is full; the caller keeps the buffer
+     */
+    boolean offer(int index, ByteBuffer output, MediaCodec.BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            endOfStream = true;
+        }
+        if (output == null || info.size <= 0) {
+            decoder.releaseOutputBuffer(index, false);
+            return true;
+        }
+        if (isFull()) {
+            return false;
+        }
+        if (basePts < 0) {
+            basePts = info.presentationTimeUs;
+        }
+        output.limit(info.offset + info.size);
+        output.position(info.offset);
+        int slot = (head + count) % indices.length;
+        indices[slot] = index;
+        buffers[slot] = output;
+        count++;
+        return true;
+    }
+
+    /** Timestamp of the next frame that {@link #drainInto} will write. */
+    long nextPts() {
+        return Math.max(0, basePts) + framesOut * 1_000_000L / processor.outputSampleRate();
+    }
+
+    /**
+     * Moves whole frames from the head buffers into {@code dst} until either side runs out.
+     *
+     * @return number of bytes written
+     */
+    int drainInto(ByteBuffer dst) {
+        int written = 0;
+        while (count > 0) {
+            ByteBuffer src = buffers[head];
+            if (!processor.isIdentity()) {
+                int frames = processor.process(src, dst);
+                written += frames * processor.outputFrameSize();
+                framesOut += frames;
+                if (src.remaining() >= bytesPerFrame) {
+                    break; // dst is full
+                }
+            } else if (src.remaining() >= bytesPerFrame) {
+                int n = Math.min(src.remaining(), dst.remaining());
+                n -= n % bytesPerFrame;
+                if (n == 0) {
+                    break; // dst is full
+                }
+                int oldLimit = src.limit();
+                src.limit(src.position() + n);
+                dst.put(src);
+                src.limit(oldLimit);
+                written += n;
+                framesOut += n / bytesPerFrame;
+            }
+            if (src.remaining() < bytesPerFrame) {
+                // Consumed (a trailing partial frame cannot be encoded anyway)
+                decoder.releaseOutputBuffer(indices[head], false);
+                buffers[head] = null;
+                head = (head + 1) % indices.length;
+                count--;
+            }
+        }
+        return written;
+    }
+
+    /** Returns every held buffer to the decoder. */
+    void clear() {
+        while (count > 0) {
+            try {
+                decoder.releaseOutputBuffer(indices[head], false);
+            } catch (Exception ignore) {}
+            buffers[head] = null;
+            head = (head + 1) % indices.length;
+            count--;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-job stage counters. All slots are allocated up front and updated with atomic adds, so the codec
+ * threads can record every buffer without allocating or locking. Stage times are summed over every
+ * thread that worked on the stage, so with the audio thread or parallel segments they can exceed the
+ * job's wall time.
+ * <p>
+ * Plain Java, so the transcode loop can be run and measured off-device.
+ */
+final class PipelineMetrics {
+
+    static final int EXTRACTOR_NS = 0;
+    static final int DECODER_INPUT_WAIT_NS = 1;
+    static final int DECODER_OUTPUT_WAIT_NS = 2;
+    static final int ENCODER_OUTPUT_WAIT_NS = 3;
+    static final int MUXER_WRITE_NS = 4;
+    static final int FRAMES_DECODED = 5;
+    static final int FRAMES_ENCODED = 6;
+    static final int FRAMES_DROPPED = 7;
+    static final int INPUT_BYTES = 8;
+    static final int OUTPUT_BYTES = 9;
+    private static final int COUNTERS = 10;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+    private final long startNs = System.nanoTime();
+
+    void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    /** Adds the time since {@code sinceNs} (a {@link System#nanoTime()} value) to a stage. */
+    void addElapsed(int counter, long sinceNs) {
+        counters.addAndGet(counter, System.nanoTime() - sinceNs);
+    }
+
+    long get(int counter) {
+        return counters.get(counter);
+    }
+
+    CompressionMetrics snapshot(String engine, int segments, String videoCodec, String deviceModel) {
+        return new CompressionMetrics(
+                engine,
+                segments,
+                videoCodec,
+                deviceModel,
+                (System.nanoTime() - startNs) / 1_000_000L,
+                get(EXTRACTOR_NS) / 1_000_000L,
+                get(DECODER_INPUT_WAIT_NS) / 1_000_000L,
+                get(DECODER_OUTPUT_WAIT_NS) / 1_000_000L,
+                get(ENCODER_OUTPUT_WAIT_NS) / 1_000_000L,
+                get(MUXER_WRITE_NS) / 1_000_000L,
+                get(FRAMES_DECODED),
+                get(FRAMES_ENCODED),
+                get(FRAMES_DROPPED),
+                get(INPUT_BYTES),
+                get(OUTPUT_BYTES));
+    }
+}
@@ -0,0 +1,22 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * A poster frame captured during a transcode, delivered to
+ * {@link VideoCompressor.VideoCompressionCallback#onPosterFrame} once its file is complete.
+ */
+public class PosterFrame {
+
+    /** Image file in {@link CompressionOptions#posterDirectory}. */
+    public final String path;
+    /** Presentation time of the captured frame, in microseconds. */
+    public final long timeUs;
+    public final int width;
+    public final int height;
+
+    PosterFrame(String path, long timeUs, int width, int height) {
+        this.path = path;
+        this.timeUs = timeUs;
+        this.width = width;
+        this.height = height;
+    }
+}
@@ -0,0 +1,51 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.Arrays;
+
+/**
+ * Decides which rendered frames become poster frames: the first frame at or after each requested time,
+ * and/or one every interval starting with the first frame. Requested times that fall between two frames
+ * all map to the later frame, which is captured once.
+ * <p>
+ * Covers the source range {@code [startUs, endUs)}, so every segment of a split transcode gets its own
+ * schedule and no time is captured twice. Frames must be offered in presentation order.
+ */
+final class PosterSchedule {
+
+    private final long[] timesUs;
+    private final long intervalUs;
+    private final long endUs;
+    private int nextTime;
+    private long nextIntervalUs;
+
+    /**
+     * @param timesUs    requested times, in any order; may be null
+     * @param intervalUs time between interval posters; 0 or less for none
+     */
+    PosterSchedule(long[] timesUs, long intervalUs, long startUs, long endUs) {
+        this.timesUs = timesUs != null ? timesUs.clone() : new long[0];
+        Arrays.sort(this.timesUs);
+        this.intervalUs = intervalUs;
+        this.endUs = endUs;
+        while (nextTime < this.timesUs.length && this.timesUs[nextTime] < startUs) nextTime++;
+        // The first interval slot at or after the start of the range
+        this.nextIntervalUs = intervalUs > 0 ? (startUs + intervalUs - 1) / intervalUs * intervalUs : Long.MAX_VALUE;
+    }
+
+    /** Returns true if the frame at {@code ptsUs} should be captured. */
+    boolean take(long ptsUs) {
+        if (ptsUs >= endUs) {
+            return false;
+        }
+        boolean due = false;
+        while (nextTime < timesUs.length && timesUs[nextTime] <= ptsUs) {
+            nextTime++;
+            due = true;
+        }
+        if (nextIntervalUs <= ptsUs) {
+            nextIntervalUs = (ptsUs / intervalUs + 1) * intervalUs;
+            due = true;
+        }
+        return due;
+    }
+}
@@ -0,0 +1,131 @@
+package co.firstview.plugins.videocompressor;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns pixels read back by {@link FrameRenderer} into image files: upright, in the requested format,
+ * compressed on a thread of its own so the transcode does not wait for the image encoder.
+ * <p>
+ * One per job, shared by every decoder of it. A poster that cannot be written is logged and skipped; it
+ * never fails the job.
+ */
+final class PosterWriter {
+
+    private static final String TAG = "VideoCompressor";
+
+    private final File dir;
+    private final Bitmap.CompressFormat format;
+    private final String extension;
+    private final int quality;
+    private final int maxSize;
+    private final int rotation;
+    private final long[] timesUs;
+    private final long intervalUs;
+    private final VideoCompressor.VideoCompressionCallback callback;
+    private final ExecutorService encoder = Executors.newSingleThreadExecutor(r -> new Thread(r, "VideoCompressor-posters"));
+
+    PosterWriter(CompressionOptions options, int rotation, VideoCompressor.VideoCompressionCallback callback) throws IOException {
+        this.dir = new File(options.posterDirectory);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create poster directory " + dir);
+        }
+        boolean webp = "webp".equalsIgnoreCase(options.posterFormat);
+        this.format = webp ? webpFormat() : Bitmap.CompressFormat.JPEG;
+        this.extension = webp ? ".webp" : ".jpg";
+        this.quality = Math.max(0, Math.min(100, options.posterQuality));
+        this.maxSize = Math.max(16, options.posterMaxSize);
+        this.rotation = rotation;
+        if (options.posterTimesMs != null) {
+            timesUs = new long[options.posterTimesMs.length];
+            for (int i = 0; i < timesUs.length; i++) timesUs[i] = options.posterTimesMs[i] * 1000;
+        } else {
+            timesUs = null;
+        }
+        this.intervalUs = options.posterIntervalMs * 1000;
+        this.callback = callback;
+    }
+
+    /** WEBP is deprecated from API 30 for WEBP_LOSSY, which older systems lack. */
+    private static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : legacyWebpFormat();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat legacyWebpFormat() {
+        return Bitmap.CompressFormat.WEBP;
+    }
+
+    /** Poster times within {@code [startUs, endUs)} of the source, for one decoder. */
+    PosterSchedule schedule(long startUs, long endUs) {
+        return new PosterSchedule(timesUs, intervalUs, startUs, endUs);
+    }
+
+    /** Poster size for frames of {@code width} x {@code height}: same aspect, long edge at most the configured size. */
+    int[] size(int width, int height) {
+        float scale = Math.min(1f, maxSize / (float) Math.max(width, height));
+        return new int[]{Math.max(1, Math.round(width * scale)), Math.max(1, Math.round(height * scale))};
+    }
+
+    /**
+     * Queues the RGBA pixels in {@code rgba} (top row first) for writing. The buffer can be reused as soon
+     * as this returns.
+     */
+    void write(ByteBuffer rgba, int width, int height, long ptsUs) {
+        Bitmap frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        rgba.rewind();
+        frame.copyPixelsFromBuffer(rgba);
+        encoder.execute(() -> {
+            Bitmap upright = frame;
+            if (rotation != 0) {
+                Matrix m = new Matrix();
+                m.postRotate(rotation);
+                upright = Bitmap.createBitmap(frame, 0, 0, width, height, m, true);
+                frame.recycle();
+            }
+            int posterWidth = upright.getWidth();
+            int posterHeight = upright.getHeight();
+            File file = new File(dir, "poster_" + ptsUs / 1000 + extension);
+            try (OutputStream out = new FileOutputStream(file)) {
+                if (!upright.compress(format, quality, out)) {
+                    throw new IOException("Image encoder refused the frame");
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write poster " + file, e);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                return;
+            } finally {
+                upright.recycle();
+            }
+            Log.d(TAG, "Poster written: " + file);
+            try {
+                callback.onPosterFrame(new PosterFrame(file.getPath(), ptsUs, posterWidth, posterHeight));
+            } catch (Exception e) {
+                Log.w(TAG, "Poster callback failed", e);
+            }
+        });
+    }
+
+    /** Waits until every queued poster was written and reported. */
+    void finish() throws InterruptedException {
+        encoder.shutdown();
+        encoder.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /** Drops posters not written yet. */
+    void abort() {
+        encoder.shutdownNow();
+    }
+}
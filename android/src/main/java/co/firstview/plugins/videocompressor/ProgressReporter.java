@@ -0,0 +1,175 @@
+package co.firstview.plugins.videocompressor;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Collects output-side counters for one job and turns them into {@link CompressionProgress} events.
+ * <p>
+ * Counters are updated from the muxer write path on every sample, which is cheap; a snapshot is only
+ * built when at least {@code intervalMs} passed since the previous one. Snapshots are delivered on a
+ * shared background thread, never on the codec threads or the UI thread. If delivery falls behind, only
+ * the newest pending snapshot of a job is delivered.
+ */
+final class ProgressReporter {
+
+    private static final String TAG = "VideoCompressor";
+
+    /** One delivery thread for all jobs, so events of a job arrive in order. */
+    private static final ExecutorService DELIVERY = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "VideoCompressor-progress");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final VideoCompressor.VideoCompressionCallback callback;
+    private final long intervalNs;
+    private final Object deliveryLock = new Object();
+
+    private long durationUs;
+    private long startNs;
+    private long lastEmitNs;
+    private long lastEmitFrames;
+    private long positionUs;
+    private long frames;
+    private long bytes;
+    private long sequence;
+    private int lastPercent = -1;
+
+    private CompressionProgress pending;
+    private long pendingSequence;
+    private boolean deliveryQueued;
+    private long deliveredSequence = -1;
+
+    ProgressReporter(VideoCompressor.VideoCompressionCallback callback, long intervalMs) {
+        this.callback = callback;
+        this.intervalNs = Math.max(0, intervalMs) * 1_000_000L;
+    }
+
+    /** Resets the clock and emits 0%. */
+    synchronized void start(long durationUs) {
+        this.durationUs = Math.max(0, durationUs);
+        startNs = SystemClock.elapsedRealtimeNanos();
+        lastEmitNs = startNs;
+        post(snapshot(startNs, 0));
+    }
+
+    /** A video sample reached the muxer. */
+    synchronized void onVideoSample(long ptsUs, int size) {
+        frames++;
+        bytes += size;
+        if (ptsUs > positionUs) positionUs = ptsUs;
+        maybeEmit();
+    }
+
+    /** An audio sample reached the muxer. */
+    synchronized void onAudioSample(int size) {
+        bytes += size;
+    }
+
+    /**
+     * Encoded position reported by a stage ahead of the muxer (parallel segments finish long before their
+     * samples are muxed). Only ever moves the position forward.
+     */
+    synchronized void onEncodedPosition(long ptsUs) {
+        if (ptsUs > positionUs) {
+            positionUs = ptsUs;
+            maybeEmit();
+        }
+    }
+
+    /** Emits 100% on the calling thread; no earlier snapshot is delivered after it. */
+    void finish() {
+        CompressionProgress done;
+        synchronized (this) {
+            done = new CompressionProgress(100, positionUs, durationUs, frames, 0, bytes,
+                    (SystemClock.elapsedRealtimeNanos() - startNs) / 1_000_000L, 0);
+            pending = null;
+        }
+        synchronized (deliveryLock) {
+            deliveredSequence = Long.MAX_VALUE;
+            callback.onProgress(done);
+        }
+        Log.d(TAG, "Progress: " + done);
+    }
+
+    /** Drops anything not yet delivered; used when the job failed or was cancelled. */
+    void close() {
+        synchronized (this) {
+            pending = null;
+        }
+        synchronized (deliveryLock) {
+            deliveredSequence = Long.MAX_VALUE;
+        }
+    }
+
+    private void maybeEmit() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (now - lastEmitNs < intervalNs) {
+            return;
+        }
+        int percent = percent();
+        if (percent == lastPercent && now - lastEmitNs < 4 * intervalNs) {
+            // Nothing visible changed; still refresh fps/eta every few intervals.
+            return;
+        }
+        double seconds = (now - lastEmitNs) / 1e9;
+        double fps = seconds > 0 ? (frames - lastEmitFrames) / seconds : 0;
+        lastEmitNs = now;
+        lastEmitFrames = frames;
+        post(snapshot(now, fps));
+    }
+
+    private int percent() {
+        if (durationUs <= 0) return 0;
+        return (int) Math.min(99, Math.max(0, positionUs * 100 / durationUs));
+    }
+
+    private CompressionProgress snapshot(long now, double fps) {
+        long elapsedMs = (now - startNs) / 1_000_000L;
+        long etaMs = -1;
+        if (durationUs > 0 && positionUs > 0) {
+            // Media time encoded per wall-clock time so far, extrapolated over the rest of the source
+            etaMs = Math.max(0, (long) (elapsedMs * (double) (durationUs - positionUs) / positionUs));
+        }
+        lastPercent = percent();
+        return new CompressionProgress(lastPercent, positionUs, durationUs, frames, fps, bytes, elapsedMs, etaMs);
+    }
+
+    private void post(CompressionProgress progress) {
+        pending = progress;
+        pendingSequence = ++sequence;
+        if (!deliveryQueued) {
+            deliveryQueued = true;
+            DELIVERY.execute(this::deliverPending);
+        }
+    }
+
+    private void deliverPending() {
+        CompressionProgress progress;
+        long seq;
+        synchronized (this) {
+            deliveryQueued = false;
+            progress = pending;
+            seq = pendingSequence;
+            pending = null;
+        }
+        if (progress == null) {
+            return;
+        }
+        synchronized (deliveryLock) {
+            if (seq <= deliveredSequence) {
+                return;
+            }
+            deliveredSequence = seq;
+            try {
+                callback.onProgress(progress);
+            } catch (Exception e) {
+                Log.w(TAG, "Progress callback failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Platform-free counterpart of {@code MediaCodec.BufferInfo}. Instances are reused across buffers;
+ * flags use the {@code Codec.BUFFER_FLAG_*} values, which equal MediaCodec's.
+ */
+final class SampleInfo {
+
+    int offset;
+    int size;
+    long presentationTimeUs;
+    int flags;
+
+    void set(int offset, int size, long presentationTimeUs, int flags) {
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    boolean isEndOfStream() {
+        return (flags & Codec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    boolean isCodecConfig() {
+        return (flags & Codec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+    }
+}
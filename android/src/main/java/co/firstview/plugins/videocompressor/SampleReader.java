@@ -0,0 +1,32 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sequential source of already-encoded samples for one track. The session's copy path reads video from
+ * one of these instead of a decoder/encoder pair: either straight from the source file or from segments
+ * encoded in parallel. Implementations may block until data is available.
+ */
+interface SampleReader {
+
+    /** Format to register with the muxer. */
+    MediaFormat getFormat() throws IOException;
+
+    /** Presentation time of the next sample, or -1 once the track is exhausted. */
+    long peekSampleTime() throws IOException;
+
+    /**
+     * Reads the next sample into {@code buffer} (position 0, limit = size) and fills {@code info}.
+     * Returns false once the track is exhausted.
+     */
+    boolean readSample(ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException;
+
+    /** Largest sample this reader can produce, for sizing the copy buffer. */
+    int maxSampleSize();
+
+    void release();
+}
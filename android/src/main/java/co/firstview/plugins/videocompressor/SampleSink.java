@@ -0,0 +1,12 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/** Muxer side of the transcode loop: receives the encoder's output format and its encoded samples. */
+interface SampleSink {
+
+    void onOutputFormat(TrackFormat format);
+
+    /** May block, e.g. to interleave with another track. Codec config buffers are passed through too. */
+    void writeSample(ByteBuffer data, SampleInfo info) throws Exception;
+}
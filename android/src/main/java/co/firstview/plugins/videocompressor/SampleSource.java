@@ -0,0 +1,19 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/** The {@code MediaExtractor} calls the transcode loop makes on its selected track. */
+interface SampleSource {
+
+    /** Reads the current sample into {@code buffer} at {@code offset}; -1 at end of stream. */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    boolean advance();
+
+    /** Moves to the sync sample at or before {@code timeUs}, or the first sample if there is none. */
+    void seekTo(long timeUs);
+}
@@ -0,0 +1,135 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Flat on-disk list of encoded samples: {@code [pts:long][flags:int][size:int][data...]} repeated.
+ * Used to park the output of a parallel segment until the muxer reaches it. All I/O goes through a
+ * {@link FileChannel} straight from/to the codec-sized direct buffers, without heap copies.
+ */
+final class SampleSpool {
+
+    private static final int HEADER_SIZE = 16;
+
+    private SampleSpool() {}
+
+    static final class Writer implements Closeable {
+        private final FileOutputStream out;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        private int maxSampleSize;
+        private long sampleCount;
+
+        Writer(File file) throws IOException {
+            out = new FileOutputStream(file);
+            channel = out.getChannel();
+        }
+
+        /** Appends the bytes between {@code info.offset} and {@code info.offset + info.size}. */
+        void write(ByteBuffer data, MediaCodec.BufferInfo info) throws IOException {
+            header.clear();
+            header.putLong(info.presentationTimeUs);
+            header.putInt(info.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            header.putInt(info.size);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            data.position(info.offset);
+            data.limit(info.offset + info.size);
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            maxSampleSize = Math.max(maxSampleSize, info.size);
+            sampleCount++;
+        }
+
+        int getMaxSampleSize() {
+            return maxSampleSize;
+        }
+
+        long getSampleCount() {
+            return sampleCount;
+        }
+
+        /** Flushes to storage, so the spool survives the process being killed right after. */
+        void sync() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    static final class Reader implements Closeable {
+        private final FileInputStream in;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+        private boolean headerLoaded = false;
+        private boolean exhausted = false;
+
+        Reader(File file) throws IOException {
+            in = new FileInputStream(file);
+            channel = in.getChannel();
+        }
+
+        /** Presentation time of the next sample, or -1 at the end of the spool. */
+        long peekSampleTime() throws IOException {
+            return loadHeader() ? header.getLong(0) : -1;
+        }
+
+        boolean read(ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+            if (!loadHeader()) {
+                return false;
+            }
+            long pts = header.getLong(0);
+            int flags = header.getInt(8);
+            int size = header.getInt(12);
+            if (size > buffer.capacity()) {
+                throw new IOException("Spooled sample of " + size + " bytes exceeds buffer of " + buffer.capacity());
+            }
+            buffer.clear();
+            buffer.limit(size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Truncated spool sample");
+                }
+            }
+            buffer.flip();
+            info.set(0, size, pts, flags);
+            headerLoaded = false;
+            return true;
+        }
+
+        private boolean loadHeader() throws IOException {
+            if (headerLoaded) return true;
+            if (exhausted) return false;
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    // A partial header means the writer died mid-sample; treat it as the end.
+                    exhausted = true;
+                    return false;
+                }
+            }
+            headerLoaded = true;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
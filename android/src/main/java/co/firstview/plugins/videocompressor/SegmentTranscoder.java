@@ -0,0 +1,206 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+
+/**
+ * Transcodes the video frames in {@code [startUs, endUs)} of the source with its own extractor,
+ * decoder and encoder, and spools the encoded output to a file. Decoding starts at the sync sample at
+ * or before {@code startUs}, so the segment decodes independently of the ones before it. Output keeps
+ * source timestamps, which makes consecutive segments continue each other's timeline without rebasing.
+ */
+final class SegmentTranscoder implements Callable<SegmentTranscoder.Result> {
+
+    private static final String TAG = "VideoCompressor";
+
+    /** Wait used when a codec has nothing for us; keeps several workers from spinning a core each. */
+    private static final long DEQUEUE_TIMEOUT_US = 5_000;
+
+    interface Listener {
+        /** Called once with the encoder's output format (carries csd-0/csd-1 for the muxer). */
+        void onOutputFormat(int segment, MediaFormat format);
+
+        /** Called after each encoded sample with the number of source microseconds finished so far in this segment. */
+        void onProgress(int segment, long encodedUs);
+    }
+
+    static final class Result {
+        final File file;
+        final int maxSampleSize;
+        final long sampleCount;
+
+        Result(File file, int maxSampleSize, long sampleCount) {
+            this.file = file;
+            this.maxSampleSize = maxSampleSize;
+            this.sampleCount = sampleCount;
+        }
+    }
+
+    private final int segment;
+    private final MediaLocation source;
+    private final int trackIndex;
+    private final MediaFormat inputFormat;
+    private final MediaFormat outputFormat;
+    private final CodecPool pool;
+    private final String encoderName;
+    private final FrameRateSelector frameRate;
+    /** Null when no posters are wanted. */
+    private final PosterWriter posters;
+    private final long startUs;
+    private final long endUs;
+    private final File spoolFile;
+    private final JobControl control;
+    private final PipelineMetrics metrics;
+    private final Listener listener;
+
+    SegmentTranscoder(int segment, MediaLocation source, int trackIndex, MediaFormat inputFormat, MediaFormat outputFormat,
+                      CodecPool pool, String encoderName, int frameRate, PosterWriter posters, long startUs, long endUs,
+                      File spoolFile, JobControl control, PipelineMetrics metrics, Listener listener) {
+        this.segment = segment;
+        this.source = source;
+        this.trackIndex = trackIndex;
+        this.inputFormat = inputFormat;
+        this.outputFormat = outputFormat;
+        this.pool = pool;
+        this.encoderName = encoderName;
+        this.frameRate = new FrameRateSelector(frameRate);
+        this.posters = posters;
+        this.startUs = startUs;
+        this.endUs = endUs;
+        this.spoolFile = spoolFile;
+        this.control = control;
+        this.metrics = metrics;
+        this.listener = listener;
+    }
+
+    @Override
+    public Result call() throws Exception {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        MediaCodec encoder = null;
+        Surface inputSurface = null;
+        FrameRenderer renderer = null;
+        SampleSpool.Writer spool = null;
+        try {
+            Log.d(TAG, "Segment " + segment + " start: [" + startUs + ", " + (endUs == Long.MAX_VALUE ? "end" : endUs) + ")");
+            source.setDataSource(extractor);
+            extractor.selectTrack(trackIndex);
+            SampleSource input = new ClippedSampleSource(new MediaCodecAdapter.Extractor(extractor), ClipRanges.of(startUs, endUs));
+
+            encoder = pool.acquireEncoder(encoderName, outputFormat.getString(MediaFormat.KEY_MIME));
+            EncoderTuning.configure(encoder, outputFormat, null, null);
+            inputSurface = encoder.createInputSurface();
+            encoder.start();
+
+            decoder = pool.acquireDecoder(inputFormat.getString(MediaFormat.KEY_MIME));
+            renderer = FrameRenderer.create(inputSurface, outputFormat, posters, startUs, endUs);
+            decoder.configure(inputFormat, renderer != null ? renderer.getInputSurface() : inputSurface, null, 0);
+            decoder.start();
+
+            spool = new SampleSpool.Writer(spoolFile);
+
+            MediaCodec.BufferInfo decInfo = new MediaCodec.BufferInfo();
+            MediaCodec.BufferInfo encInfo = new MediaCodec.BufferInfo();
+            boolean inputDone = false, decDone = false, encDone = false;
+            // After a pass in which nothing moved, wait in the codec so idle workers sleep instead of spinning
+            boolean idle = false;
+
+            while (!encDone) {
+                control.checkpoint();
+                boolean progressed = false;
+
+                if (!inputDone) {
+                    long t = System.nanoTime();
+                    int inIdx = decoder.dequeueInputBuffer(0);
+                    metrics.addElapsed(PipelineMetrics.DECODER_INPUT_WAIT_NS, t);
+                    if (inIdx >= 0) {
+                        ByteBuffer inBuf = decoder.getInputBuffer(inIdx);
+                        t = System.nanoTime();
+                        int size = input.readSampleData(inBuf, 0);
+                        if (size < 0) {
+                            metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+                            decoder.queueInputBuffer(inIdx, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            long pts = input.getSampleTime();
+                            int flags = input.getSampleFlags();
+                            if (flags < 0) flags = 0;
+                            input.advance();
+                            metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+                            metrics.add(PipelineMetrics.INPUT_BYTES, size);
+                            decoder.queueInputBuffer(inIdx, 0, size, pts, flags);
+                        }
+                        progressed = true;
+                    }
+                }
+
+                if (!decDone) {
+                    long t = System.nanoTime();
+                    int outIdx = decoder.dequeueOutputBuffer(decInfo, idle && !progressed ? DEQUEUE_TIMEOUT_US : 0);
+                    metrics.addElapsed(PipelineMetrics.DECODER_OUTPUT_WAIT_NS, t);
+                    if (outIdx >= 0) {
+                        progressed = true;
+                        long pts = decInfo.presentationTimeUs;
+                        // Reordered frames from the neighbouring GOPs belong to the other segment.
+                        boolean render = decInfo.size != 0 && pts >= startUs && pts < endUs && frameRate.accept(pts);
+                        if (decInfo.size != 0) {
+                            metrics.increment(render ? PipelineMetrics.FRAMES_DECODED : PipelineMetrics.FRAMES_DROPPED);
+                        }
+                        decoder.releaseOutputBuffer(outIdx, render);
+                        if (render && renderer != null) {
+                            renderer.relay(pts);
+                        }
+                        if ((decInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            decDone = true;
+                            encoder.signalEndOfInputStream();
+                        }
+                    }
+                }
+
+                while (true) {
+                    long t = System.nanoTime();
+                    int outIdx = encoder.dequeueOutputBuffer(encInfo, idle && !progressed ? DEQUEUE_TIMEOUT_US : 0);
+                    metrics.addElapsed(PipelineMetrics.ENCODER_OUTPUT_WAIT_NS, t);
+                    if (outIdx == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        break;
+                    } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        listener.onOutputFormat(segment, encoder.getOutputFormat());
+                    } else if (outIdx >= 0) {
+                        if (encInfo.size > 0 && (encInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                            ByteBuffer outBuf = encoder.getOutputBuffer(outIdx);
+                            if (outBuf != null) {
+                                spool.write(outBuf, encInfo);
+                                listener.onProgress(segment, encInfo.presentationTimeUs - startUs);
+                            }
+                        }
+                        encoder.releaseOutputBuffer(outIdx, false);
+                        if ((encInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            encDone = true;
+                            break;
+                        }
+                    }
+                    progressed = true;
+                }
+                idle = !progressed;
+            }
+
+            spool.sync();
+            Log.d(TAG, "Segment " + segment + " done: " + spool.getSampleCount() + " samples");
+            return new Result(spoolFile, spool.getMaxSampleSize(), spool.getSampleCount());
+        } finally {
+            try { if (spool != null) spool.close(); } catch (Exception ignore) {}
+            pool.recycle(decoder, inputFormat.getString(MediaFormat.KEY_MIME), false);
+            pool.recycle(encoder, outputFormat.getString(MediaFormat.KEY_MIME), true);
+            if (renderer != null) renderer.release();
+            try { if (inputSurface != null) inputSurface.release(); } catch (Exception ignore) {}
+            try { extractor.release(); } catch (Exception ignore) {}
+        }
+    }
+}
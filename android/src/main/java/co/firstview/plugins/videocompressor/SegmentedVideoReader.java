@@ -0,0 +1,312 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Splits the video track at sync samples, transcodes the segments concurrently with one
+ * {@link SegmentTranscoder} each, and reads the results back in order as one continuous track.
+ * <p>
+ * Segments are consumed as soon as they complete, so muxing of segment {@code k} overlaps with the
+ * encoding of the later ones. The muxer track format is segment 0's encoder output format. Every segment
+ * uses the same encoder configuration, but encoders are free to pick different parameter sets per
+ * session, and the spools carry no in-band copies. A segment whose csd differs from segment 0's therefore
+ * fails the job instead of being stitched into a file that stops decoding at its boundary.
+ * <p>
+ * With a {@link JobJournal}, segments finished by an earlier run are read from their spools instead of
+ * transcoded, finished ones are recorded as they complete, and spools are kept until the job's owner
+ * deletes the journal.
+ */
+final class SegmentedVideoReader implements SampleReader, SegmentTranscoder.Listener {
+
+    private static final String TAG = "VideoCompressor";
+    private static final long WAIT_SLICE_MS = 100;
+
+    /** Segments shorter than this cost more in codec setup than they gain in parallelism. */
+    static final long MIN_SEGMENT_US = 10_000_000L;
+
+    private final TranscodeSession session;
+    private final File spoolDir;
+    /** Null for a job that is not resumable. */
+    private final JobJournal journal;
+    private final ExecutorService workers;
+    private final List<Future<SegmentTranscoder.Result>> results = new ArrayList<>();
+    private final long[] encodedUs;
+    /** Each segment's encoder output format, as reported; checked against {@link #format} when it finishes. */
+    private final MediaFormat[] segmentFormats;
+    /** Segment 0's result, whose failure means {@link #format} never arrives. */
+    private Future<SegmentTranscoder.Result> first;
+    private final CountDownLatch formatReady = new CountDownLatch(1);
+    private final int maxSampleSize;
+    private volatile MediaFormat format;
+
+    private int current = -1;
+    private SampleSpool.Reader reader;
+
+    /**
+     * Transcodes the segments starting at {@code starts} (ascending sync sample times, except the first, which
+     * is where the video starts), at most
+     * {@code parallelism} at a time and in order. {@code journal}, if not null, lives in {@code spoolDir}.
+     */
+    SegmentedVideoReader(TranscodeSession session, long[] starts, int parallelism, File spoolDir, JobJournal journal)
+            throws IOException {
+        this.session = session;
+        this.spoolDir = spoolDir;
+        this.journal = journal;
+        this.encodedUs = new long[starts.length];
+        this.segmentFormats = new MediaFormat[starts.length];
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            throw new IOException("Could not create segment directory " + spoolDir);
+        }
+        MediaFormat out = session.outVideoFormat;
+        this.maxSampleSize = out.getInteger(MediaFormat.KEY_WIDTH) * out.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+
+        if (journal != null && journal.getFormat() != null) {
+            format = journal.getFormat();
+            formatReady.countDown();
+        }
+        workers = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, starts.length)),
+                r -> new Thread(r, "VideoCompressor-segment"));
+        for (int i = 0; i < starts.length; i++) {
+            long end = i + 1 < starts.length ? starts[i + 1] : session.clip != null ? session.clip.endUs() : Long.MAX_VALUE;
+            SegmentTranscoder.Result previous = journal != null ? journal.getResult(i) : null;
+            if (previous != null) {
+                encodedUs[i] = (i + 1 < starts.length ? starts[i + 1] : session.videoEndUs) - starts[i];
+                FutureTask<SegmentTranscoder.Result> finished = new FutureTask<>(() -> previous);
+                finished.run();
+                results.add(finished);
+                if (i == 0) first = finished;
+                continue;
+            }
+            File file = new File(spoolDir, "segment-" + i + ".spool");
+            SegmentTranscoder transcoder = new SegmentTranscoder(i, session.source, session.probe.videoTrackIndex,
+                    session.inputVideoFormat, session.outVideoFormat, session.pool, session.videoEncoderName,
+                    session.decimateToFrameRate, session.posters, starts[i], end, file, session.control, session.metrics, this);
+            int segment = i;
+            results.add(workers.submit(() -> {
+                SegmentTranscoder.Result result = transcoder.call();
+                checkParameterSets(segment);
+                if (journal != null) journal.markDone(segment, result);
+                return result;
+            }));
+            if (i == 0) first = results.get(0);
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * Picks up to {@code count} segment start times in {@code [startUs, endUs)}: {@code startUs}, then the
+     * sync samples preceding evenly spaced points. Returns fewer boundaries when sync samples are sparse or
+     * the span is short.
+     */
+    static long[] planBoundaries(MediaLocation source, int videoTrackIndex, long startUs, long endUs, int count) throws IOException {
+        long durationUs = endUs - startUs;
+        int maxByDuration = (int) Math.max(1, durationUs / MIN_SEGMENT_US);
+        count = Math.max(1, Math.min(count, maxByDuration));
+        List<Long> starts = new ArrayList<>();
+        starts.add(startUs);
+        if (count > 1) {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                source.setDataSource(extractor);
+                extractor.selectTrack(videoTrackIndex);
+                for (int i = 1; i < count; i++) {
+                    extractor.seekTo(startUs + durationUs * i / count, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    long t = extractor.getSampleTime();
+                    if (t > starts.get(starts.size() - 1)) {
+                        starts.add(t);
+                    }
+                }
+            } finally {
+                extractor.release();
+            }
+        }
+        long[] out = new long[starts.size()];
+        for (int i = 0; i < out.length; i++) out[i] = starts.get(i);
+        return out;
+    }
+
+    int getSegmentCount() {
+        return results.size();
+    }
+
+    @Override
+    public void onOutputFormat(int segment, MediaFormat format) {
+        synchronized (segmentFormats) {
+            segmentFormats[segment] = format;
+        }
+        if (segment == 0 && this.format == null) {
+            this.format = format;
+            if (journal != null) {
+                try {
+                    journal.setFormat(format);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not record segment format; segment 0 will be redone on resume", e);
+                }
+            }
+            formatReady.countDown();
+        }
+    }
+
+    @Override
+    public void onProgress(int segment, long encoded) {
+        long total;
+        synchronized (encodedUs) {
+            encodedUs[segment] = encoded;
+            total = 0;
+            for (long e : encodedUs) total += e;
+        }
+        session.reportEncodedPosition(total);
+    }
+
+    @Override
+    public MediaFormat getFormat() throws IOException {
+        try {
+            while (!formatReady.await(WAIT_SLICE_MS, TimeUnit.MILLISECONDS)) {
+                session.control.checkpoint();
+                if (first.isDone()) {
+                    // Finished or failed without ever reporting a format
+                    await(first);
+                    throw new IOException("Segment 0 produced no output format");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for segment format", e);
+        }
+        return format;
+    }
+
+    /**
+     * Fails {@code segment} unless its encoder produced segment 0's parameter sets, so a mismatching spool
+     * is neither read nor recorded as done. Waits for segment 0's format if it has not arrived yet.
+     */
+    private void checkParameterSets(int segment) throws IOException {
+        if (segment == 0) return;
+        MediaFormat own;
+        synchronized (segmentFormats) {
+            own = segmentFormats[segment];
+        }
+        if (own == null) {
+            throw new IOException("Segment " + segment + " produced no output format");
+        }
+        if (!TrackFormat.sameParameterSets(new MediaCodecAdapter.Format(getFormat()), new MediaCodecAdapter.Format(own))) {
+            throw new IOException("Segment " + segment + " was encoded with other parameter sets than segment 0; "
+                    + "its samples cannot share the muxer track");
+        }
+    }
+
+    @Override
+    public long peekSampleTime() throws IOException {
+        while (openNextIfNeeded()) {
+            long t = reader.peekSampleTime();
+            if (t >= 0) return t;
+            closeCurrent();
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean readSample(ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+        while (openNextIfNeeded()) {
+            if (reader.read(buffer, info)) return true;
+            closeCurrent();
+        }
+        return false;
+    }
+
+    @Override
+    public int maxSampleSize() {
+        return maxSampleSize;
+    }
+
+    /** Makes sure a segment spool is open; waits for the next segment to finish if needed. False when all are consumed. */
+    private boolean openNextIfNeeded() throws IOException {
+        if (reader != null) return true;
+        if (current + 1 >= results.size()) return false;
+        current++;
+        SegmentTranscoder.Result result = await(results.get(current));
+        reader = new SampleSpool.Reader(result.file);
+        return true;
+    }
+
+    private void closeCurrent() {
+        try { reader.close(); } catch (Exception ignore) {}
+        reader = null;
+        if (journal != null) return;
+        File done = new File(spoolDir, "segment-" + current + ".spool");
+        //noinspection ResultOfMethodCallIgnored
+        done.delete();
+    }
+
+    private SegmentTranscoder.Result await(Future<SegmentTranscoder.Result> future) throws IOException {
+        while (true) {
+            session.control.checkpoint();
+            try {
+                return future.get(WAIT_SLICE_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignore) {
+                // keep waiting
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for segment", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CancellationException) throw (CancellationException) cause;
+                throw new IOException("Segment transcode failed", cause);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        boolean outstanding = false;
+        for (Future<SegmentTranscoder.Result> f : results) {
+            outstanding |= !f.isDone();
+        }
+        if (outstanding) {
+            // Only reached when the job already failed; stop the remaining workers at their next checkpoint.
+            session.control.cancel();
+        }
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (reader != null) {
+            try { reader.close(); } catch (Exception ignore) {}
+            reader = null;
+        }
+        if (journal != null) {
+            Log.d(TAG, "Segment spools kept for resume: " + journal.getCompletedCount() + "/" + results.size() + " done");
+            return;
+        }
+        File[] files = spoolDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        spoolDir.delete();
+        Log.d(TAG, "Segment spools released: " + spoolDir);
+    }
+}
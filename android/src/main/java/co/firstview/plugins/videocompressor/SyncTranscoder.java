@@ -0,0 +1,141 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The original polling engine: one loop that polls the video codecs with zero timeouts.
+ * Transcoded audio runs next to it on an {@link AudioTranscoder} thread.
+ * Kept as the default and as the baseline the {@link AsyncTranscoder} is compared against.
+ */
+final class SyncTranscoder implements TranscodeEngine {
+
+    private static final String TAG = "VideoCompressor";
+
+    private final TranscodeSession session;
+
+    SyncTranscoder(TranscodeSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void run() throws Exception {
+        TranscodeSession s = session;
+        s.createCodecs();
+        s.startCodecs();
+
+        AudioTranscoder audio = null;
+        if (s.transcodesAudio()) {
+            // Audio decode/encode runs on its own thread; this loop only handles video and copied audio.
+            audio = new AudioTranscoder(s);
+            audio.start();
+        }
+        try {
+            runVideo();
+            if (audio != null) {
+                audio.join();
+            }
+        } finally {
+            if (audio != null) {
+                audio.stop();
+            }
+        }
+    }
+
+    private void runVideo() throws Exception {
+        TranscodeSession s = session;
+        boolean copyVideo = s.copyVideo;
+        boolean copyAudio = s.copyAudio;
+        boolean transcodeAudio = s.transcodesAudio();
+
+        VideoTranscodeLoop videoLoop = copyVideo ? null : new VideoTranscodeLoop(
+                s.videoInput,
+                new MediaCodecAdapter(s.videoDecoder),
+                new MediaCodecAdapter(s.videoEncoder),
+                new VideoMuxerSink(transcodeAudio),
+                new FrameRateSelector(s.decimateToFrameRate, s.clip),
+                s.videoRenderer,
+                s.metrics);
+
+        boolean vEncDone = false;
+        boolean aEncDone = !copyAudio;
+
+        // Copy path state: one reusable sample buffer shared by both copied tracks
+        ByteBuffer copyBuffer = (copyVideo || copyAudio) ? s.allocateCopyBuffer() : null;
+        MediaCodec.BufferInfo copyInfo = new MediaCodec.BufferInfo();
+
+        try {
+            while (!vEncDone || !aEncDone) {
+                // Cancellation / pause point, once per pass over the codecs
+                s.control.checkpoint();
+
+                if (copyVideo && transcodeAudio) {
+                    // Audio is written by its own thread; take turns with it at the muxer
+                    long pts = s.videoReader.peekSampleTime();
+                    if (pts >= 0) {
+                        s.awaitWriteTurn(true, pts);
+                    }
+                    if (!s.copyVideoSample(copyBuffer, copyInfo)) {
+                        vEncDone = true;
+                        Log.d(TAG, "Video copy EOS.");
+                    }
+                } else if (copyVideo) {
+                    // Copy video samples until they catch up with the audio track
+                    while (s.isMuxerStarted() && !vEncDone && s.videoCopyMayProceed(aEncDone)) {
+                        s.control.checkpoint();
+                        if (!s.copyVideoSample(copyBuffer, copyInfo)) {
+                            vEncDone = true;
+                            Log.d(TAG, "Video copy EOS.");
+                        }
+                    }
+                } else if (!vEncDone && videoLoop.step()) {
+                    vEncDone = true;
+                    Log.d(TAG, "Video encoder EOS.");
+                }
+
+                // Audio copy: write samples up to the current video position
+                if (copyAudio) {
+                    while (s.isMuxerStarted() && !aEncDone && s.audioCopyMayProceed(vEncDone)) {
+                        s.control.checkpoint();
+                        if (!s.copyAudioSample(copyBuffer, copyInfo)) {
+                            aEncDone = true;
+                            Log.d(TAG, "Audio copy EOS.");
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            s.fail(e);
+            throw e;
+        } finally {
+            s.markVideoDone();
+        }
+    }
+
+    /** Hands encoder output from the {@link VideoTranscodeLoop} to the session's muxer. */
+    private final class VideoMuxerSink implements SampleSink {
+        private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        private final boolean interleave;
+
+        VideoMuxerSink(boolean interleave) {
+            this.interleave = interleave;
+        }
+
+        @Override
+        public void onOutputFormat(TrackFormat format) {
+            session.addVideoTrack(((MediaCodecAdapter.Format) format).format);
+        }
+
+        @Override
+        public void writeSample(ByteBuffer data, SampleInfo sample) throws Exception {
+            if (interleave && sample.size > 0 && !sample.isCodecConfig()) {
+                // The audio thread writes concurrently
+                session.awaitWriteTurn(true, sample.presentationTimeUs);
+            }
+            info.set(sample.offset, sample.size, sample.presentationTimeUs, sample.flags);
+            session.writeVideoSample(data, info);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Picks the output resolution and bitrates from the source instead of fixed per-preset sizes.
+ * <p>
+ * The preset only bounds the result: the source is scaled to fit the preset's box (compared long side to
+ * long side, so portrait and landscape are treated alike), keeping its aspect ratio and never upscaling.
+ * Dimensions stay in the source's coded orientation; rotation is carried by the muxer's orientation hint.
+ * Bitrate follows from bits per pixel at the output frame rate and never exceeds the source bitrate, or
+ * is derived from a target file size when one is given.
+ * <p>
+ * Plain Java; the caller passes in what {@link MediaProbe} read from the input format.
+ */
+final class TargetPlanner {
+
+    /**
+     * 4:2:0 chroma needs even sizes. Rounding each side to a multiple of 16 as well would squash the aspect
+     * (16:9 at 640 wide becomes 640x352); encoders pad partial macroblocks themselves and the container
+     * crops them back out. An encoder that does insist on more gets the plan refitted, see {@link #fitAlignment}.
+     */
+    static final int ALIGNMENT = 2;
+    static final int DEFAULT_FRAME_RATE = 30;
+    static final int MIN_VIDEO_BITRATE = 100_000;
+    /** Below this a size-targeted encode gets a smaller resolution rather than a blockier picture. */
+    static final double MIN_BITS_PER_PIXEL = 0.05;
+    /** Share of a target file size reserved for container overhead. */
+    static final double CONTAINER_OVERHEAD = 0.03;
+
+    static final class Preset {
+        final int boxLong;
+        final int boxShort;
+        final double bitsPerPixel;
+        final int audioBitrate;
+        /** Transcoded audio is downmixed and resampled to at most these. */
+        final int audioSampleRate;
+        final int audioChannels;
+
+        Preset(int boxLong, int boxShort, double bitsPerPixel, int audioBitrate, int audioSampleRate, int audioChannels) {
+            this.boxLong = boxLong;
+            this.boxShort = boxShort;
+            this.bitsPerPixel = bitsPerPixel;
+            this.audioBitrate = audioBitrate;
+            this.audioSampleRate = audioSampleRate;
+            this.audioChannels = audioChannels;
+        }
+    }
+
+    // Boxes and densities of the former fixed sizes: 640x480 @ 0.5 Mbps, 960x540 @ 1 Mbps, 1280x720 @ 2 Mbps at 25 fps.
+    // Low is meant for voice: mono at 22.05 kHz keeps speech intact at a third of the stereo bitrate.
+    static final Preset LOW = new Preset(640, 480, 0.065, 48_000, 22_050, 1);
+    static final Preset MEDIUM = new Preset(960, 540, 0.077, 96_000, 32_000, 2);
+    static final Preset HIGH = new Preset(1280, 720, 0.087, 128_000, 48_000, 2);
+
+    static final class Plan {
+        final int width;
+        final int height;
+        final int frameRate;
+        final int videoBitrate;
+        final int audioBitrate;
+        /** The resolution is the source's own, i.e. nothing would be gained by scaling. */
+        final boolean keepsSourceSize;
+        /** Bitrate the plan would have used without the source-bitrate cap. */
+        final long uncappedVideoBitrate;
+
+        Plan(int width, int height, int frameRate, int videoBitrate, int audioBitrate, boolean keepsSourceSize,
+             long uncappedVideoBitrate) {
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.videoBitrate = videoBitrate;
+            this.audioBitrate = audioBitrate;
+            this.keepsSourceSize = keepsSourceSize;
+            this.uncappedVideoBitrate = uncappedVideoBitrate;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "@" + frameRate + " video=" + videoBitrate + " audio=" + audioBitrate;
+        }
+    }
+
+    private TargetPlanner() {}
+
+    static Preset preset(String quality) {
+        if ("low".equalsIgnoreCase(quality)) return LOW;
+        if ("medium".equalsIgnoreCase(quality)) return MEDIUM;
+        return HIGH;
+    }
+
+    /**
+     * @param sourceBitrate  source video bits/s, or &lt;= 0 when unknown
+     * @param durationUs     source duration, needed for {@code targetSizeMb}
+     * @param bitsPerPixel   overrides the preset's density when &gt; 0
+     * @param targetSizeMb   output size budget in MiB (both tracks) when &gt; 0; takes precedence over density
+     * @param maxFrameRate   output frame rate cap when &gt; 0; higher-rate sources are decimated to it
+     * @param hasAudio       whether the audio bitrate counts against {@code targetSizeMb}
+     */
+    static Plan plan(Preset preset, int sourceWidth, int sourceHeight, int sourceFrameRate, long sourceBitrate,
+                     long durationUs, double bitsPerPixel, double targetSizeMb, int maxFrameRate, boolean hasAudio) {
+        if (sourceWidth <= 0 || sourceHeight <= 0) {
+            // No usable size in the container; fall back to the preset box in landscape.
+            sourceWidth = preset.boxLong;
+            sourceHeight = preset.boxShort;
+        }
+        int frameRate = sourceFrameRate > 0 ? Math.min(sourceFrameRate, 60) : DEFAULT_FRAME_RATE;
+        if (maxFrameRate > 0) {
+            frameRate = Math.min(frameRate, maxFrameRate);
+        }
+        int audioBitrate = preset.audioBitrate;
+
+        // Fit the preset box, never upscale
+        int srcLong = Math.max(sourceWidth, sourceHeight);
+        int srcShort = Math.min(sourceWidth, sourceHeight);
+        double scale = Math.min(1.0, Math.min(preset.boxLong / (double) srcLong, preset.boxShort / (double) srcShort));
+
+        long videoBitrate;
+        if (targetSizeMb > 0 && durationUs > 0) {
+            double seconds = durationUs / 1e6;
+            double totalBits = targetSizeMb * 1024 * 1024 * 8 * (1 - CONTAINER_OVERHEAD);
+            videoBitrate = (long) (totalBits / seconds) - (hasAudio ? audioBitrate : 0);
+            if (videoBitrate < MIN_VIDEO_BITRATE && hasAudio) {
+                // Tight budget: give audio the low preset's rate before starving video further
+                audioBitrate = Math.min(audioBitrate, LOW.audioBitrate);
+                videoBitrate = (long) (totalBits / seconds) - audioBitrate;
+            }
+            videoBitrate = Math.max(MIN_VIDEO_BITRATE, videoBitrate);
+            // Shrink the picture until each pixel gets a sensible share of the budget
+            double pixelsPerSecond = scale * sourceWidth * scale * sourceHeight * frameRate;
+            double bpp = videoBitrate / pixelsPerSecond;
+            if (bpp < MIN_BITS_PER_PIXEL) {
+                scale *= Math.sqrt(bpp / MIN_BITS_PER_PIXEL);
+            }
+        } else {
+            double density = bitsPerPixel > 0 ? bitsPerPixel : preset.bitsPerPixel;
+            int w = align(sourceWidth * scale, sourceWidth);
+            int h = align(sourceHeight * scale, sourceHeight);
+            videoBitrate = Math.max(MIN_VIDEO_BITRATE, (long) (density * w * h * frameRate));
+        }
+
+        int width = align(sourceWidth * scale, sourceWidth);
+        int height = align(sourceHeight * scale, sourceHeight);
+        long uncapped = videoBitrate;
+        if (sourceBitrate > 0) {
+            videoBitrate = Math.min(videoBitrate, sourceBitrate);
+        }
+        boolean keepsSourceSize = scale >= 1.0;
+        return new Plan(width, height, frameRate, (int) Math.min(Integer.MAX_VALUE, videoBitrate), audioBitrate,
+                keepsSourceSize, uncapped);
+    }
+
+    /**
+     * The plan at the largest size within it whose sides are multiples of the alignments, for an encoder
+     * that rejects anything else. Each candidate width a few steps down gets the height closest to the
+     * plan's aspect; the one with the smallest aspect error wins. Returns {@code plan} itself if it fits.
+     */
+    static Plan fitAlignment(Plan plan, int widthAlignment, int heightAlignment) {
+        int[] size = fitAlignment(plan.width, plan.height, widthAlignment, heightAlignment);
+        if (size[0] == plan.width && size[1] == plan.height) {
+            return plan;
+        }
+        return new Plan(size[0], size[1], plan.frameRate, plan.videoBitrate, plan.audioBitrate, plan.keepsSourceSize,
+                plan.uncappedVideoBitrate);
+    }
+
+    /** {@link #fitAlignment(Plan, int, int)} for a bare size; returns {width, height}. */
+    static int[] fitAlignment(int width, int height, int widthAlignment, int heightAlignment) {
+        int aw = Math.max(1, widthAlignment);
+        int ah = Math.max(1, heightAlignment);
+        if (width % aw == 0 && height % ah == 0) {
+            return new int[]{width, height};
+        }
+        double aspect = width / (double) height;
+        int maxHeight = Math.max(ah, height / ah * ah);
+        int bestWidth = 0, bestHeight = 0;
+        double bestError = Double.MAX_VALUE;
+        for (int w = Math.max(aw, width / aw * aw), step = 0; w >= aw && step < 4; w -= aw, step++) {
+            int h = (int) Math.round(w / aspect / ah) * ah;
+            h = Math.max(ah, Math.min(maxHeight, h));
+            double error = Math.abs(w / (double) h - aspect);
+            if (error < bestError) {
+                bestError = error;
+                bestWidth = w;
+                bestHeight = h;
+            }
+        }
+        return new int[]{bestWidth, bestHeight};
+    }
+
+    /** Rounds down to the alignment (never above the source), with one aligned block as the minimum. */
+    static int align(double size, int sourceSize) {
+        int aligned = (int) (Math.min(size, sourceSize) / ALIGNMENT) * ALIGNMENT;
+        return Math.max(ALIGNMENT, aligned);
+    }
+}
@@ -0,0 +1,28 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/** Opaque track format handed from a {@link Codec} to a {@link SampleSink}; on device it wraps a MediaFormat. */
+interface TrackFormat {
+    String getMime();
+
+    /** Codec-specific data {@code csd-<index>}, e.g. SPS and PPS for AVC; null if the format has none. */
+    default ByteBuffer getCodecSpecificData(int index) {
+        return null;
+    }
+
+    /**
+     * True if both formats carry the same csd-0 and csd-1. Samples encoded under either can then share one
+     * muxer track; otherwise a decoder reading them with the other's parameter sets produces garbage.
+     */
+    static boolean sameParameterSets(TrackFormat a, TrackFormat b) {
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer x = a.getCodecSpecificData(i);
+            ByteBuffer y = b.getCodecSpecificData(i);
+            if (x == null ? y != null : y == null || !x.equals(y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,9 @@
+package co.firstview.plugins.videocompressor;
+
+/**
+ * Drives a prepared {@link TranscodeSession} until every output track reached end of stream.
+ * Implementations own the codec driving strategy only; the session owns the resources.
+ */
+interface TranscodeEngine {
+    void run() throws Exception;
+}
@@ -0,0 +1,711 @@
+package co.firstview.plugins.videocompressor;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Everything one compression job owns: extractors, codecs, muxer and the track plan.
+ * Engines ({@link SyncTranscoder}, {@link AsyncTranscoder}) only move buffers; setup, muxer
+ * bookkeeping, progress and teardown live here so both engines behave identically.
+ * <p>
+ * Muxer access is synchronized because the async engine writes from codec threads.
+ */
+final class TranscodeSession {
+
+    private static final String TAG = "VideoCompressor";
+
+    final MediaLocation source;
+    /** Where the muxer writes. A content URI here needs API 26+ unless the output is fragmented. */
+    final MediaLocation destination;
+    final CompressionOptions options;
+    final JobControl control;
+    final CodecCatalog codecs;
+    final CodecPool pool;
+    private final ProgressReporter progress;
+    private final VideoCompressor.VideoCompressionCallback callback;
+    final PipelineMetrics metrics = new PipelineMetrics();
+
+    final MediaExtractor videoExtractor = new MediaExtractor();
+    final MediaExtractor audioExtractor = new MediaExtractor();
+
+    MediaProbe probe;
+    TargetPlanner.Plan plan;
+    /** Codec of the output video track, whether transcoded or copied. */
+    OutputCodec videoCodec = OutputCodec.AVC;
+    /** Rate for the {@link FrameRateSelector} in front of the encoder; 0 when the source is not faster than the plan. */
+    int decimateToFrameRate;
+    boolean hasAudio;
+    /** Video arrives already encoded from {@link #videoReader} (source copy or parallel segments), not from our codecs. */
+    boolean copyVideo;
+    boolean segmentedVideo;
+    boolean copyAudio;
+    SampleReader videoReader;
+    /** The parts of the source to keep; null keeps all of it. */
+    ClipRanges clip;
+    /** What the decoders read: the selected extractor tracks, limited to {@link #clip}. */
+    SampleSource videoInput;
+    SampleSource audioInput;
+
+    MediaFormat inputVideoFormat;
+    MediaFormat outVideoFormat;
+    MediaFormat inputAudioFormat;
+    MediaFormat outAudioFormat;
+    /** Expected decoder PCM layout. */
+    int audioSampleRate;
+    int audioChannelCount;
+    /** Encoder layout, after the preset's downmix and resampling. */
+    int outAudioSampleRate;
+    int outAudioChannelCount;
+
+    /** Output durations, i.e. after trimming. */
+    long videoDurationUs;
+    long totalDurationUs;
+    /** Source span the video is read from; parallel segments split it. */
+    long videoStartUs;
+    long videoEndUs;
+
+    /** Encoder chosen from {@link #codecs} for {@link #outVideoFormat}; null falls back to the platform default. */
+    String videoEncoderName;
+    MediaCodec videoDecoder;
+    MediaCodec videoEncoder;
+    /** Set by the async engine through {@link #setVideoEncoderCallback}; null in synchronous mode. */
+    private MediaCodec.Callback videoEncoderCallback;
+    private Handler videoEncoderHandler;
+    Surface encoderInputSurface;
+    /** Null unless posters are wanted; see {@link #posters}. */
+    FrameRenderer videoRenderer;
+    /** Writes the job's poster frames; null when none were requested. */
+    PosterWriter posters;
+    MediaCodec audioDecoder;
+    MediaCodec audioEncoder;
+
+    private OutputMuxer muxer;
+    private int outVideoTrackIndex = -1;
+    private int outAudioTrackIndex = -1;
+    private boolean muxerStarted = false;
+
+    /** Last output PTS written per track, used to interleave copied samples with transcoded ones. */
+    volatile long lastVideoPts = -1;
+    volatile long lastAudioPts = -1;
+
+    /** How far one track may run ahead of the other when they are written from different threads. */
+    private static final long INTERLEAVE_LEAD_US = 1_000_000L;
+    private static final long TURN_WAIT_MS = 50;
+
+    private boolean videoDone = false;
+    private boolean audioDone = false;
+    private Exception trackFailure;
+
+    TranscodeSession(MediaLocation source, MediaLocation destination, CompressionOptions options, JobControl control,
+                     CodecCatalog codecs, CodecPool pool, VideoCompressor.VideoCompressionCallback callback) {
+        this.source = source;
+        this.destination = destination;
+        this.options = options;
+        this.control = control;
+        this.codecs = codecs;
+        this.pool = pool;
+        this.callback = callback;
+        this.progress = new ProgressReporter(callback, options.progressIntervalMs);
+    }
+
+    /**
+     * Probes the source, decides per track between copy and transcode and builds the output formats.
+     * Neither codecs nor the muxer are created here; see {@link #openMuxer()} and {@link #createCodecs()}.
+     */
+    void open() throws IOException {
+        source.setDataSource(videoExtractor);
+        source.setDataSource(audioExtractor);
+
+        probe = MediaProbe.from(videoExtractor, source.length());
+        Log.d(TAG, "Probed source: " + probe);
+
+        int videoTrackIndex = probe.videoTrackIndex;
+        int audioTrackIndex = probe.audioTrackIndex;
+        hasAudio = probe.hasAudio();
+        Log.d(TAG, "Tracks selected -> video=" + videoTrackIndex + ", audio=" + audioTrackIndex + ", hasAudio=" + hasAudio);
+
+        if (videoTrackIndex == -1) {
+            throw new IOException("No video track found in the source file.");
+        }
+
+        inputVideoFormat = probe.videoFormat;
+
+        clip = options.clipRanges();
+        if (clip != null && clip.startUs() >= probe.durationUs) {
+            throw new IOException("Clip starts at " + clip.startUs() / 1000 + " ms, after the end of the video");
+        }
+        long sourceVideoDurationUs = inputVideoFormat.containsKey(MediaFormat.KEY_DURATION)
+                ? inputVideoFormat.getLong(MediaFormat.KEY_DURATION) : 0L;
+        long videoSpanUs = sourceVideoDurationUs > 0 ? sourceVideoDurationUs : probe.durationUs;
+        videoStartUs = clip != null ? clip.startUs() : 0;
+        videoEndUs = clip != null ? Math.min(clip.endUs(), videoSpanUs) : videoSpanUs;
+        videoDurationUs = clip != null ? clip.durationUs(videoSpanUs) : sourceVideoDurationUs;
+        totalDurationUs = clip != null ? clip.durationUs(probe.durationUs) : probe.durationUs;
+        if (clip != null) {
+            Log.d(TAG, "Clip: " + clip + " ms, " + totalDurationUs / 1000 + " ms of " + probe.durationUs / 1000);
+        }
+
+        TargetPlanner.Preset preset = TargetPlanner.preset(options.quality);
+        plan = TargetPlanner.plan(preset, probe.width, probe.height, probe.frameRate,
+                probe.videoBitrate, totalDurationUs, options.bitsPerPixel, options.targetSizeMb, options.targetFrameRate, hasAudio);
+        Log.d(TAG, "Target plan: " + plan);
+
+        CodecCatalog.Entry encoder = selectVideoEncoder();
+        TargetPlanner.Plan fitted = encoder == null ? plan
+                : TargetPlanner.fitAlignment(plan, encoder.widthAlignment, encoder.heightAlignment);
+        if (fitted != plan) {
+            Log.d(TAG, "Plan fitted to " + encoder.name + " alignment: " + fitted);
+            plan = fitted;
+        }
+        Log.d(TAG, "Output codec: " + videoCodec.id + " (requested " + options.videoCodec + ")");
+
+        // Probe-then-decide: tracks that already satisfy the plan are copied sample by sample
+        // instead of being decoded and re-encoded. A clipped video can only start at a decoded frame.
+        copyVideo = clip == null && canCopyVideo(probe, plan, videoCodec.mime, codecBitrate(plan.uncappedVideoBitrate));
+        copyAudio = canCopyAudio(probe, preset, plan, options.targetSizeMb);
+        Log.d(TAG, "Track plan -> video=" + (copyVideo ? "copy" : "transcode") +
+                ", audio=" + (!hasAudio ? "none" : copyAudio ? "copy" : "transcode"));
+
+        if (!copyVideo) {
+            // Fail here, before any codec or output file exists, rather than in configure() halfway through setup.
+            if (encoder == null) {
+                throw new IOException("No " + videoCodec.id + " encoder on this device supports " + plan.width + "x" + plan.height
+                        + " at " + plan.frameRate + " fps");
+            }
+            videoEncoderName = encoder.name;
+            int planned = (int) codecBitrate(plan.videoBitrate);
+            int videoBitrate = encoder.clampBitrate(planned);
+            Log.d(TAG, "Video encoder: " + encoder + ", bitrate " + videoBitrate + (videoBitrate != planned ? " (clamped)" : ""));
+
+            decimateToFrameRate = probe.frameRate > 0 && probe.frameRate <= plan.frameRate ? 0 : plan.frameRate;
+
+            outVideoFormat = MediaFormat.createVideoFormat(videoCodec.mime, plan.width, plan.height);
+            outVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
+            outVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, plan.frameRate);
+            // Fragments can only start at key frames, so a fragmented output needs them at the fragment rate
+            outVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                    options.fragmented ? Math.max(1, Math.round(options.fragmentDurationMs / 1000f)) : 5);
+            EncoderTuning.from(options.encoderTuning).apply(outVideoFormat, videoCodec, encoder, options.fragmented);
+        }
+
+        if (hasAudio && !copyAudio) {
+            inputAudioFormat = probe.audioFormat;
+            audioSampleRate = probe.audioSampleRate;
+            audioChannelCount = probe.audioChannelCount;
+            outAudioSampleRate = Math.min(audioSampleRate, preset.audioSampleRate);
+            outAudioChannelCount = Math.min(audioChannelCount, preset.audioChannels);
+            Log.d(TAG, "Audio: " + audioSampleRate + " Hz x" + audioChannelCount
+                    + " -> " + outAudioSampleRate + " Hz x" + outAudioChannelCount);
+
+            // Encoder to AAC LC
+            outAudioFormat = MediaFormat.createAudioFormat(
+                    MediaFormat.MIMETYPE_AUDIO_AAC, outAudioSampleRate, outAudioChannelCount);
+            outAudioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            outAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, plan.audioBitrate);
+            // Some devices also like this:
+            // outAudioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
+        }
+
+        videoExtractor.selectTrack(videoTrackIndex);
+        if (hasAudio) {
+            audioExtractor.selectTrack(audioTrackIndex);
+        }
+        if (copyVideo) {
+            videoReader = new ExtractorSampleReader(videoExtractor, inputVideoFormat);
+        } else {
+            videoInput = clipped(videoExtractor);
+        }
+        if (hasAudio) {
+            audioInput = clipped(audioExtractor);
+        }
+
+        if (options.posterDirectory != null && !copyVideo) {
+            posters = new PosterWriter(options, probe.rotation, callback);
+        }
+    }
+
+    private SampleSource clipped(MediaExtractor extractor) {
+        SampleSource input = new MediaCodecAdapter.Extractor(extractor);
+        return clip != null ? new ClippedSampleSource(input, clip) : input;
+    }
+
+    /** Whether a decoded sample at source time {@code ptsUs} belongs in the output. */
+    boolean inClip(long ptsUs) {
+        return clip == null || clip.contains(ptsUs);
+    }
+
+    /** Output timeline position of a video sample at source time {@code ptsUs}. */
+    long videoOutputUs(long ptsUs) {
+        return clip == null ? ptsUs : clip.toOutputUs(ptsUs);
+    }
+
+    /**
+     * Output timeline position of an audio sample. Transcoded audio is timed by the {@link PcmRing}, which
+     * counts samples from the first one kept, so it is already gapless and only needs moving to 0.
+     */
+    long audioOutputUs(long ptsUs) {
+        if (clip == null) return ptsUs;
+        return copyAudio ? clip.toOutputUs(ptsUs) : Math.max(0, ptsUs - clip.startUs());
+    }
+
+    /** A converter from the decoder's PCM to {@link #outAudioFormat}'s layout, for one audio pipeline. */
+    PcmProcessor newPcmProcessor() {
+        PcmProcessor processor = new PcmProcessor(outAudioSampleRate, outAudioChannelCount);
+        processor.setInputFormat(audioSampleRate, audioChannelCount);
+        return processor;
+    }
+
+    /** Waits for the poster files still being written, so they are all reported before the job succeeds. */
+    void finishPosters() throws InterruptedException {
+        if (posters != null) {
+            posters.finish();
+        }
+    }
+
+    /**
+     * Picks {@link #videoCodec} and its encoder for the plan's size. {@code "auto"} takes the most efficient
+     * codec the caller allows that has a hardware encoder here; an explicit codec takes any encoder for it.
+     * Anything unavailable falls back to AVC, as does fragmented output, whose writer is AVC-only.
+     * Returns null only if not even AVC can encode the size, even refitted to its alignment.
+     */
+    private CodecCatalog.Entry selectVideoEncoder() {
+        OutputCodec requested = OutputCodec.from(options.videoCodec);
+        boolean auto = requested == null;
+        if (options.fragmented && requested != OutputCodec.AVC) {
+            requested = OutputCodec.AVC;
+            auto = false;
+        }
+        OutputCodec[] candidates = auto ? OutputCodec.byEfficiency() : new OutputCodec[]{requested};
+        for (OutputCodec c : candidates) {
+            if (Build.VERSION.SDK_INT < c.minSdk || (auto && !c.isAllowed(options.allowedVideoCodecs))) {
+                continue;
+            }
+            CodecCatalog.Entry e = codecs.findEncoder(c.mime, plan.width, plan.height, plan.frameRate);
+            if (e != null && (e.hardware || !auto || c == OutputCodec.AVC)) {
+                videoCodec = c;
+                return e;
+            }
+        }
+        if (!auto && requested != OutputCodec.AVC) {
+            Log.w(TAG, "No usable " + requested.id + " encoder, falling back to avc");
+        }
+        videoCodec = OutputCodec.AVC;
+        return codecs.findEncoder(OutputCodec.AVC.mime, plan.width, plan.height, plan.frameRate);
+    }
+
+    /**
+     * The plan's AVC bitrate scaled to {@link #videoCodec}. A target file size is a fixed budget instead,
+     * which a more efficient codec spends on quality.
+     */
+    private long codecBitrate(long avcBitrate) {
+        return options.targetSizeMb > 0 ? avcBitrate : (long) (avcBitrate * videoCodec.bitrateFactor);
+    }
+
+    /**
+     * Takes video from parallel segment transcodes instead of this session's own decoder/encoder.
+     * Must be called between {@link #open()} and {@link #openMuxer()}.
+     */
+    void useSegmentedVideo(SampleReader reader) {
+        videoReader = reader;
+        copyVideo = true;
+        segmentedVideo = true;
+    }
+
+    /** Creates the muxer and registers the tracks whose format is known without running a codec. */
+    void openMuxer() throws IOException {
+        if (options.fragmented) {
+            muxer = new FragmentedMuxer(destination.openOutputStream(), options.fragmentDurationMs * 1000L, this::onChunk);
+        } else if (destination.isFile()) {
+            muxer = new OutputMuxer.Platform(destination.getFile().getPath());
+        } else {
+            muxer = new OutputMuxer.Platform(destination.openForWrite());
+        }
+        // Transcoded frames stay in the source's coded orientation too, so every output needs the hint.
+        if (probe.rotation != 0) {
+            muxer.setOrientationHint(probe.rotation);
+        }
+
+        // Copied tracks keep their source format, so they can be registered up front.
+        if (copyVideo) {
+            // For segmented video this waits until the first segment's encoder reported its format.
+            MediaFormat format = videoReader.getFormat();
+            outVideoTrackIndex = muxer.addTrack(format);
+            Log.d(TAG, "Video track added (" + (segmentedVideo ? "segments" : "copy") + "): " + format);
+        }
+        if (copyAudio) {
+            outAudioTrackIndex = muxer.addTrack(probe.audioFormat);
+            Log.d(TAG, "Audio track added (copy): " + probe.audioFormat);
+        }
+        startMuxerIfReady();
+    }
+
+    /** True when at least one track goes through one of this session's codecs. */
+    boolean needsCodecs() {
+        return !copyVideo || (hasAudio && !copyAudio);
+    }
+
+    boolean transcodesAudio() {
+        return hasAudio && !copyAudio;
+    }
+
+    /**
+     * Allocates the codecs required by the track plan without configuring them, so that an engine can
+     * install callbacks before {@link #startCodecs()}.
+     */
+    void createCodecs() throws IOException {
+        if (!copyVideo) {
+            videoEncoder = pool.acquireEncoder(videoEncoderName, videoCodec.mime);
+            videoDecoder = pool.acquireDecoder(inputVideoFormat.getString(MediaFormat.KEY_MIME));
+        }
+        if (transcodesAudio()) {
+            audioDecoder = pool.acquireDecoder(inputAudioFormat.getString(MediaFormat.KEY_MIME));
+            audioEncoder = pool.acquireEncoder(null, MediaFormat.MIMETYPE_AUDIO_AAC);
+        }
+    }
+
+    /** The named encoder if it can still be instantiated, otherwise whatever the platform picks for the type. */
+    static MediaCodec createEncoder(String name, String mime) throws IOException {
+        if (name != null) {
+            try {
+                return MediaCodec.createByCodecName(name);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Encoder " + name + " unavailable, using default for " + mime, e);
+            }
+        }
+        return MediaCodec.createEncoderByType(mime);
+    }
+
+    /** Puts the video encoder in async mode; kept so a fallback configure can restore it after a reset. */
+    void setVideoEncoderCallback(MediaCodec.Callback callback, Handler handler) {
+        videoEncoderCallback = callback;
+        videoEncoderHandler = handler;
+        videoEncoder.setCallback(callback, handler);
+    }
+
+    /** Configures and starts the codecs created by {@link #createCodecs()}. */
+    void startCodecs() {
+        if (videoEncoder != null) {
+            EncoderTuning.configure(videoEncoder, outVideoFormat, videoEncoderCallback, videoEncoderHandler);
+            encoderInputSurface = videoEncoder.createInputSurface();
+            videoEncoder.start();
+
+            videoRenderer = FrameRenderer.create(encoderInputSurface, outVideoFormat, posters, 0, Long.MAX_VALUE);
+            videoDecoder.configure(inputVideoFormat,
+                    videoRenderer != null ? videoRenderer.getInputSurface() : encoderInputSurface, null, 0);
+            videoDecoder.start();
+        }
+        if (audioDecoder != null) {
+            audioDecoder.configure(inputAudioFormat, null, null, 0);
+            audioDecoder.start();
+
+            audioEncoder.configure(outAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            audioEncoder.start();
+        }
+    }
+
+    synchronized boolean isMuxerStarted() {
+        return muxerStarted;
+    }
+
+    synchronized void addVideoTrack(MediaFormat format) {
+        if (outVideoTrackIndex != -1) return;
+        outVideoTrackIndex = muxer.addTrack(format);
+        Log.d(TAG, "Video track added: " + format);
+        startMuxerIfReady();
+        notifyAll();
+    }
+
+    synchronized void addAudioTrack(MediaFormat format) {
+        if (outAudioTrackIndex != -1) return;
+        outAudioTrackIndex = muxer.addTrack(format);
+        Log.d(TAG, "Audio track added (AAC): " + format);
+        startMuxerIfReady();
+        notifyAll();
+    }
+
+    private void startMuxerIfReady() {
+        if (!muxerStarted && outVideoTrackIndex != -1 && (outAudioTrackIndex != -1 || !hasAudio)) {
+            muxer.start();
+            muxerStarted = true;
+            Log.d(TAG, "Muxer started (" + (!hasAudio ? "no audio" : "audio+video ready") + ").");
+        }
+    }
+
+    /**
+     * Writes an encoded video sample, moved from source time onto the output timeline; codec config buffers
+     * and samples before muxer start are dropped.
+     */
+    synchronized void writeVideoSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (info.size > 0 && muxerStarted && outVideoTrackIndex != -1 && buffer != null
+                && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            buffer.position(info.offset);
+            buffer.limit(info.offset + info.size);
+            long sourcePts = info.presentationTimeUs;
+            info.presentationTimeUs = videoOutputUs(sourcePts);
+            long t = System.nanoTime();
+            muxer.writeSampleData(outVideoTrackIndex, buffer, info);
+            metrics.addElapsed(PipelineMetrics.MUXER_WRITE_NS, t);
+            metrics.add(PipelineMetrics.OUTPUT_BYTES, info.size);
+            metrics.increment(PipelineMetrics.FRAMES_ENCODED);
+            lastVideoPts = info.presentationTimeUs;
+            progress.onVideoSample(info.presentationTimeUs, info.size);
+            info.presentationTimeUs = sourcePts;
+            notifyAll();
+        }
+    }
+
+    synchronized void writeAudioSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (info.size > 0 && muxerStarted && outAudioTrackIndex != -1 && buffer != null
+                && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            buffer.position(info.offset);
+            buffer.limit(info.offset + info.size);
+            long sourcePts = info.presentationTimeUs;
+            info.presentationTimeUs = audioOutputUs(sourcePts);
+            long t = System.nanoTime();
+            muxer.writeSampleData(outAudioTrackIndex, buffer, info);
+            metrics.addElapsed(PipelineMetrics.MUXER_WRITE_NS, t);
+            metrics.add(PipelineMetrics.OUTPUT_BYTES, info.size);
+            lastAudioPts = info.presentationTimeUs;
+            progress.onAudioSample(info.size);
+            info.presentationTimeUs = sourcePts;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks a track that is written from its own thread until the muxer has started and the sample at
+     * {@code ptsUs} would not put it more than {@link #INTERLEAVE_LEAD_US} ahead of the other track.
+     * Only the track that is strictly ahead ever waits (video on ties), so the two cannot block each other.
+     * {@code ptsUs} is the sample's time as passed to {@code write*Sample}.
+     */
+    void awaitWriteTurn(boolean video, long ptsUs) throws Exception {
+        ptsUs = video ? videoOutputUs(ptsUs) : audioOutputUs(ptsUs);
+        while (true) {
+            control.checkpoint();
+            synchronized (this) {
+                if (trackFailure != null) {
+                    throw trackFailure;
+                }
+                if (muxerStarted && !mustWait(video, ptsUs)) {
+                    return;
+                }
+                wait(TURN_WAIT_MS);
+            }
+        }
+    }
+
+    private boolean mustWait(boolean video, long ptsUs) {
+        long own = video ? lastVideoPts : lastAudioPts;
+        long other = video ? lastAudioPts : lastVideoPts;
+        boolean otherDone = video ? audioDone || !hasAudio : videoDone;
+        if (otherDone || other < 0) {
+            return false;
+        }
+        boolean ahead = video ? own >= other : own > other;
+        return ahead && ptsUs > other + INTERLEAVE_LEAD_US;
+    }
+
+    synchronized void markVideoDone() {
+        videoDone = true;
+        notifyAll();
+    }
+
+    synchronized void markAudioDone() {
+        audioDone = true;
+        notifyAll();
+    }
+
+    synchronized boolean isAudioDone() {
+        return audioDone;
+    }
+
+    /** Records a failure on a track thread so the other track stops waiting for it. */
+    synchronized void fail(Exception e) {
+        if (trackFailure == null) {
+            Log.e(TAG, "Track failed", e);
+            trackFailure = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Copies the current extractor sample straight into the muxer and advances.
+     * Returns false once the track has no more samples.
+     */
+    boolean copyVideoSample(ByteBuffer buffer, MediaCodec.BufferInfo info) throws IOException {
+        long t = System.nanoTime();
+        boolean read = videoReader.readSample(buffer, info);
+        metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+        if (!read) return false;
+        if (!segmentedVideo) {
+            // Segment workers count their own source reads
+            metrics.add(PipelineMetrics.INPUT_BYTES, info.size);
+        }
+        writeVideoSample(buffer, info);
+        return true;
+    }
+
+    boolean copyAudioSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        long t = System.nanoTime();
+        boolean read = readSample(audioInput, buffer, info);
+        // The seek into a range lands on the frame before its start
+        while (read && !inClip(info.presentationTimeUs)) {
+            read = readSample(audioInput, buffer, info);
+        }
+        metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+        if (!read) return false;
+        metrics.add(PipelineMetrics.INPUT_BYTES, info.size);
+        writeAudioSample(buffer, info);
+        return true;
+    }
+
+    private static boolean readSample(SampleSource input, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        buffer.clear();
+        int size = input.readSampleData(buffer, 0);
+        if (size < 0) {
+            return false;
+        }
+        info.offset = 0;
+        info.size = size;
+        info.presentationTimeUs = input.getSampleTime();
+        info.flags = (input.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        input.advance();
+        return true;
+    }
+
+    /**
+     * Whether the copied video track may write its next sample without running ahead of audio.
+     * Interleaves against the next audio sample when audio is copied too, else against the last encoded one.
+     */
+    boolean videoCopyMayProceed(boolean audioDone) throws IOException {
+        return audioDone || videoOutputUs(videoReader.peekSampleTime())
+                <= (copyAudio ? nextAudioTime(audioInput.getSampleTime()) : lastAudioPts);
+    }
+
+    boolean audioCopyMayProceed(boolean videoDone) throws IOException {
+        return videoDone || audioOutputUs(audioInput.getSampleTime())
+                <= (copyVideo ? nextVideoTime(videoReader.peekSampleTime()) : lastVideoPts);
+    }
+
+    /** Output time of a copied track's next sample, or {@code Long.MAX_VALUE} once it is exhausted. */
+    private long nextVideoTime(long time) {
+        return time < 0 ? Long.MAX_VALUE : videoOutputUs(time);
+    }
+
+    private long nextAudioTime(long time) {
+        return time < 0 ? Long.MAX_VALUE : audioOutputUs(time);
+    }
+
+    /** Buffer large enough for any compressed sample of the copied tracks. */
+    ByteBuffer allocateCopyBuffer() {
+        int size = 1024 * 1024;
+        if (copyVideo) {
+            size = Math.max(size, videoReader.maxSampleSize());
+        }
+        if (copyAudio && probe.audioFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            size = Math.max(size, probe.audioFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        }
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    /** Called by the fragmented muxer, under the session lock, each time a piece of the output is final. */
+    private void onChunk(int sequence, long offset, int length) {
+        Log.d(TAG, "Output chunk " + sequence + ": offset=" + offset + ", length=" + length);
+        try {
+            callback.onChunk(new OutputChunk(destination.toString(), sequence, offset, length));
+        } catch (Exception e) {
+            Log.w(TAG, "Chunk callback failed", e);
+        }
+    }
+
+    void reportStart() {
+        progress.start(videoDurationUs > 0 ? videoDurationUs : totalDurationUs);
+    }
+
+    /** Encoded video position from a stage that runs ahead of the muxer (parallel segments). */
+    void reportEncodedPosition(long ptsUs) {
+        progress.onEncodedPosition(ptsUs);
+    }
+
+    void reportDone() {
+        progress.finish();
+    }
+
+    /** Drops progress events still queued for delivery once the job has failed. */
+    void reportFailed() {
+        progress.close();
+    }
+
+    /** Finalizes the output file. Must be called after both tracks reached end of stream. */
+    synchronized void finishMuxer() {
+        if (!muxerStarted) {
+            throw new IllegalStateException("Muxer never started. Missing tracks?");
+        }
+        OutputMuxer finishing = muxer;
+        muxer = null;
+        OutputMuxer.finish(finishing);
+        Log.d(TAG, "Muxer stopped and released.");
+    }
+
+    /** Hands the codecs back to the {@link CodecPool}, which resets them for the next job. Safe to call more than once. */
+    synchronized void releaseCodecs() {
+        pool.recycle(audioEncoder, MediaFormat.MIMETYPE_AUDIO_AAC, true);
+        if (audioDecoder != null) pool.recycle(audioDecoder, inputAudioFormat.getString(MediaFormat.KEY_MIME), false);
+        pool.recycle(videoEncoder, videoCodec.mime, true);
+        if (videoDecoder != null) pool.recycle(videoDecoder, inputVideoFormat.getString(MediaFormat.KEY_MIME), false);
+        if (videoRenderer != null) videoRenderer.release();
+        try { if (encoderInputSurface != null) { encoderInputSurface.release(); } } catch (Exception ignore) {}
+        audioEncoder = null;
+        audioDecoder = null;
+        videoEncoder = null;
+        videoDecoder = null;
+        encoderInputSurface = null;
+        videoRenderer = null;
+    }
+
+    /** Releases every resource still held. Safe to call more than once. */
+    synchronized void release() {
+        releaseCodecs();
+        if (posters != null) posters.abort();
+        try { if (muxer != null) { muxer.release(); } } catch (Exception ignore) {}
+        muxer = null;
+        if (videoReader != null) {
+            videoReader.release();
+            videoReader = null;
+        }
+        try { videoExtractor.release(); } catch (Exception ignore) {}
+        try { audioExtractor.release(); } catch (Exception ignore) {}
+    }
+
+    /**
+     * A video track can be copied when it is already in the output codec, the plan keeps its resolution,
+     * its bitrate does not exceed {@code maxBitrate} (what the plan would spend on it) and its frame rate
+     * needs no decimation.
+     */
+    static boolean canCopyVideo(MediaProbe probe, TargetPlanner.Plan plan, String outputMime, long maxBitrate) {
+        if (!outputMime.equals(probe.videoMime)) return false;
+        if (probe.width <= 0 || probe.height <= 0 || probe.videoBitrate <= 0) return false;
+        if (probe.frameRate > plan.frameRate) return false;
+        return plan.keepsSourceSize && probe.videoBitrate <= maxBitrate;
+    }
+
+    /**
+     * An audio track can be copied when it is AAC, needs no downmix or resampling for the preset, and fits
+     * the plan's audio bitrate if there is a size budget.
+     */
+    static boolean canCopyAudio(MediaProbe probe, TargetPlanner.Preset preset, TargetPlanner.Plan plan, double targetSizeMb) {
+        return probe.hasAudio() && MediaFormat.MIMETYPE_AUDIO_AAC.equals(probe.audioMime)
+                && probe.audioSampleRate <= preset.audioSampleRate && probe.audioChannelCount <= preset.audioChannels
+                && (targetSizeMb <= 0 || (probe.audioBitrate > 0 && probe.audioBitrate <= plan.audioBitrate));
+    }
+}
@@ -1,471 +1,550 @@
 package co.firstview.plugins.videocompressor;
 
-import com.getcapacitor.Logger;
-
-import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
 import android.util.Log;
 import android.content.Context;
-import com.getcapacitor.JSObject;
-import com.getcapacitor.Plugin;
-import com.getcapacitor.PluginCall;
-import com.getcapacitor.PluginMethod;
-import com.getcapacitor.annotation.CapacitorPlugin;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import android.view.Surface;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class VideoCompressor {
 
     private static final String TAG = "VideoCompressor";
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final int DEFAULT_MAX_CONCURRENT_JOBS = 2;
+    private static final int DEFAULT_MAX_QUEUED_JOBS = 16;
+    private static final long DEFAULT_CACHE_BUDGET_BYTES = 256L * 1024 * 1024;
+    private static final String DEVICE_MODEL = Build.MANUFACTURER + " " + Build.MODEL;
+    /** Sources whose metadata {@link #probe} keeps. */
+    private static final int MAX_REMEMBERED_PROBES = 32;
+    private static final String[] PRESETS = {"low", "medium", "high"};
+
+    private final CompressionScheduler scheduler;
+    /** Runs {@link #setUp}, then whatever must not overtake it; its one thread exits when idle. */
+    private final ThreadPoolExecutor setupExecutor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> new Thread(r, "VideoCompressor-setup"));
+    private final Future<Setup> setup;
+    /** One directory per {@link CompressionOptions#resumable} job, with its {@link JobJournal} and spools. */
+    private final File jobsDir;
+    /** One file per running job naming its output, so a killed job's partial output can be found later. */
+    private final File activeDir;
     private final Context context;
+    private final CompressionEstimator estimator = new CompressionEstimator();
+    /** Source fingerprint → metadata, least recently probed first. Guarded by itself. */
+    private final LinkedHashMap<String, MediaProbe> probes = new LinkedHashMap<String, MediaProbe>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MediaProbe> eldest) {
+            return size() > MAX_REMEMBERED_PROBES;
+        }
+    };
+    private volatile MetricsListener metricsListener;
+
+    /** What the constructor prepares in the background: everything that reads the disk or the codec list. */
+    private static final class Setup {
+        final CodecCatalog codecs;
+        final CodecPool pool;
+        /** Null when disabled or when the cache directory is unusable. */
+        final CompressionCache cache;
+
+        Setup(CodecCatalog codecs, CodecPool pool, CompressionCache cache) {
+            this.codecs = codecs;
+            this.pool = pool;
+            this.cache = cache;
+        }
+    }
 
     public VideoCompressor(Context context) {
-        this.context = context;
+        this(context, DEFAULT_MAX_CONCURRENT_JOBS, DEFAULT_MAX_QUEUED_JOBS);
     }
 
-    public void compress(String sourcePath, String destinationPath, String quality, VideoCompressionCallback callback) {
-        executor.execute(() -> {
-            MediaExtractor videoExtractor = new MediaExtractor();
-            MediaExtractor audioExtractor = new MediaExtractor();
-            MediaMuxer mediaMuxer = null;
-
-            MediaCodec videoDecoder = null;
-            MediaCodec videoEncoder = null;
-            Surface encoderInputSurface = null;
+    public VideoCompressor(Context context, int maxConcurrentJobs, int maxQueuedJobs) {
+        this(context, maxConcurrentJobs, maxQueuedJobs, DEFAULT_CACHE_BUDGET_BYTES);
+    }
 
-            MediaCodec audioDecoder = null;   // NEW
-            MediaCodec audioEncoder = null;   // NEW
+    /**
+     * Returns without touching the disk: the plugin is constructed on the main thread. Cleanup, the cache
+     * and the codec catalog are set up on a background thread, and jobs queued meanwhile start after it.
+     *
+     * @param cacheBudgetBytes disk space for previously compressed outputs; 0 disables the cache
+     */
+    public VideoCompressor(Context context, int maxConcurrentJobs, int maxQueuedJobs, long cacheBudgetBytes) {
+        this.context = context;
+        this.jobsDir = new File(context.getFilesDir(), "video-compressor/jobs");
+        this.activeDir = new File(context.getFilesDir(), "video-compressor/active");
+        this.scheduler = new CompressionScheduler(maxConcurrentJobs, maxQueuedJobs);
+        this.setup = setupExecutor.submit(() -> setUp(cacheBudgetBytes));
+    }
 
-            int outVideoTrackIndex = -1;
-            int outAudioTrackIndex = -1;
-            boolean muxerStarted = false;
+    private Setup setUp(long cacheBudgetBytes) {
+        CodecCatalog codecs = null;
+        try {
+            deleteInterruptedOutputs();
+            JobJournal.pruneStale(jobsDir);
+            CompressionCache cache = cacheBudgetBytes > 0
+                    ? openCache(new File(context.getCacheDir(), "video-compressor/outputs"), cacheBudgetBytes) : null;
+            codecs = CodecCatalog.get(context);
+            return new Setup(codecs, new CodecPool(codecs), cache);
+        } finally {
+            // Queued jobs start either way; after a failure each reports it from setup()
+            scheduler.start(codecs != null ? codecs.jobInstanceLimit() : 1);
+        }
+    }
 
-            boolean hasAudio = false;
+    /** Waits for the background setup; returns at once on job threads, which only start after it. */
+    private Setup setup() {
+        try {
+            return setup.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Video compressor setup failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for setup");
+        }
+    }
 
+    /**
+     * Queues a compression job and returns its id ({@code options.jobId} if set). Source and destination
+     * are each a filesystem path or a {@code content://} URI; see {@link CompressionOptions#replaceSource}
+     * for where the output ends up.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the id is in use or the queue is full
+     */
+    public String compress(String sourcePath, String destinationPath, CompressionOptions options, VideoCompressionCallback callback) {
+        if (options.jobId == null) {
+            options.jobId = UUID.randomUUID().toString();
+        }
+        MediaLocation source = MediaLocation.parse(context, sourcePath);
+        MediaLocation destination = MediaLocation.parse(context, destinationPath);
+        boolean replace = options.replaceSource && source.isFile() && destination.isFile();
+        JobControl control = new JobControl();
+        scheduler.submit(options.jobId, options.priority, control, () -> {
+            Setup setup;
             try {
-                Log.d(TAG, "Starting compression: src=" + sourcePath + ", dst=" + destinationPath + ", quality=" + quality);
-
-                videoExtractor.setDataSource(sourcePath);
-                audioExtractor.setDataSource(sourcePath);
+                setup = setup();
+            } catch (RuntimeException e) {
+                callback.onError(e);
+                return;
+            }
+            // Fingerprinting the source and copying a cached output both touch whole files; keep them off the caller
+            String cacheKey = cacheKey(setup.cache, source, options);
+            if (cacheKey != null && restoreFromCache(setup.cache, cacheKey, source, destination, replace, options.jobId, callback)) {
+                return;
+            }
+            // MediaMuxer takes a descriptor only from API 26; before that it writes a file we copy out afterwards
+            File staging = !destination.isFile() && !options.fragmented && Build.VERSION.SDK_INT < 26
+                    ? new File(context.getCacheDir(), "staging_" + UUID.randomUUID() + ".mp4")
+                    : null;
+            MediaLocation muxTarget = staging != null ? MediaLocation.of(staging) : destination;
+            TranscodeSession session = new TranscodeSession(source, muxTarget, options, control, setup.codecs, setup.pool, callback);
+            String engineName = "none";
+            int segmentsUsed = 1;
+            JobJournal journal = null;
+            File activeMarker = muxTarget.isFile() ? markActive(options.jobId, muxTarget.getFile().getPath()) : null;
 
-                int videoTrackIndex = selectTrack(videoExtractor, "video/");
-                int audioTrackIndex = selectTrack(audioExtractor, "audio/");
-                hasAudio = audioTrackIndex != -1;
-                Log.d(TAG, "Tracks selected -> video=" + videoTrackIndex + ", audio=" + audioTrackIndex + ", hasAudio=" + hasAudio);
+            try {
+                control.checkpoint();
+
+                Log.d(TAG, "Starting compression: job=" + options.jobId + ", src=" + sourcePath + ", dst=" + destinationPath +
+                        ", quality=" + options.quality + ", engine=" + options.engine);
+
+                session.open();
+                int segments = segmentCount(setup.codecs, options, session);
+                long[] starts = null;
+                File spoolDir = new File(context.getCacheDir(), "video-segments/" + options.jobId);
+                // Segments cover one contiguous span, so a job keeping several ranges runs in one piece
+                boolean splittable = !session.copyVideo && (session.clip == null || session.clip.size() == 1);
+                if (options.resumable && splittable) {
+                    journal = openJournal(source, options, session);
+                }
+                if (journal != null) {
+                    spoolDir = journal.getDir();
+                    starts = journal.getStarts();
+                    if (starts == null) {
+                        int checkpoints = (int) Math.min(Integer.MAX_VALUE,
+                                session.videoDurationUs / (Math.max(1, options.checkpointIntervalMs) * 1000L));
+                        starts = SegmentedVideoReader.planBoundaries(source, session.probe.videoTrackIndex,
+                                session.videoStartUs, session.videoEndUs, Math.max(segments, checkpoints));
+                        journal.begin(starts);
+                    }
+                } else if (segments > 1) {
+                    starts = SegmentedVideoReader.planBoundaries(source, session.probe.videoTrackIndex,
+                            session.videoStartUs, session.videoEndUs, segments);
+                }
+                if (starts != null && (journal != null || starts.length > 1)) {
+                    session.useSegmentedVideo(new SegmentedVideoReader(session, starts, segments, spoolDir, journal));
+                    segmentsUsed = starts.length;
+                    Log.d(TAG, "Segmented video: " + starts.length + " segments, " + segments + " in parallel"
+                            + (journal != null ? ", " + journal.getCompletedCount() + " done before" : ""));
+                }
+                session.openMuxer();
+                session.reportStart();
+
+                // A pure remux has no codec to wait on, so the async engine would only add threads.
+                TranscodeEngine engine = options.engine == CompressionOptions.Engine.ASYNC && session.needsCodecs()
+                        ? new AsyncTranscoder(session)
+                        : new SyncTranscoder(session);
+                engineName = engine.getClass().getSimpleName();
+                engine.run();
+
+                session.finishMuxer();
+                session.finishPosters();
+                session.release();
+                if (journal != null) {
+                    journal.delete();
+                }
 
-                if (videoTrackIndex == -1) {
-                    throw new IOException("No video track found in the source file.");
+                if (staging != null) {
+                    try (OutputStream out = destination.openOutputStream()) {
+                        CompressionCache.copy(staging, out);
+                    }
+                }
+                File output = staging;
+                if (replace) {
+                    replaceSource(source.getFile(), destination.getFile());
+                    output = source.getFile();
+                } else if (destination.isFile()) {
+                    output = destination.getFile();
+                }
+                if (cacheKey != null && output != null) {
+                    try {
+                        setup.cache.put(cacheKey, output);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not cache output of job " + options.jobId, e);
+                    }
                 }
 
-                MediaFormat inputVideoFormat = videoExtractor.getTrackFormat(videoTrackIndex);
-                String inVideoMime = inputVideoFormat.getString(MediaFormat.KEY_MIME);
-
-                // Determine target video settings (assume you already compute compressedWidth/height and videoBitrate)
-                int videoBitrate;
-                int compressedWidth;
-                int compressedHeight;
-
-                switch (quality) {
-                    case "low":
-                        videoBitrate = 500000; // 0.5 Mbps
-                        compressedWidth = 640;
-                        compressedHeight = 480;
-                        break;
-                    case "medium":
-                        videoBitrate = 1000000; // 1.0 Mbps
-                        compressedWidth = 960;
-                        compressedHeight = 540;
-                        break;
-                    case "high":
-                    default:
-                        videoBitrate = 2000000; // 2.0 Mbps
-                        compressedWidth = 1280;
-                        compressedHeight = 720;
-                        break;
+                session.reportDone();
+                CompressionMetrics metrics = session.metrics.snapshot(engineName, segmentsUsed, session.videoCodec.id, DEVICE_MODEL);
+                Log.d(TAG, "Metrics: " + metrics);
+                if (session.outVideoFormat != null) {
+                    estimator.record(metrics.framesEncoded * session.plan.width * session.plan.height, metrics.wallMs);
                 }
+                publishMetrics(options.jobId, metrics, true);
+                callback.onSuccess(metrics);
 
-                MediaFormat outVideoFormat = MediaFormat.createVideoFormat(
-                        MediaFormat.MIMETYPE_VIDEO_AVC, compressedWidth, compressedHeight);
-                outVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
-                outVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 25);
-                outVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 5);
-
-                videoEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
-                videoEncoder.configure(outVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                encoderInputSurface = videoEncoder.createInputSurface();
-                videoEncoder.start();
-
-                videoDecoder = MediaCodec.createDecoderByType(inVideoMime);
-                videoDecoder.configure(inputVideoFormat, encoderInputSurface, null, 0);
-                videoDecoder.start();
-
-                // Audio: setup decode → encode AAC
-                MediaFormat inputAudioFormat = null;
-                int audioSampleRate = 0;
-                int audioChannelCount = 0;
-                int audioBitrate;
-                if ("low".equalsIgnoreCase(quality)) {
-                    audioBitrate = 64_000;
-                } else if ("medium".equalsIgnoreCase(quality)) {
-                    audioBitrate = 96_000;
+            } catch (Exception e) {
+                if (e instanceof CancellationException) {
+                    Log.d(TAG, "Video compression cancelled: job=" + options.jobId);
                 } else {
-                    audioBitrate = 128_000;
+                    Log.e(TAG, "Video compression failed", e);
                 }
-
-                if (hasAudio) {
-                    inputAudioFormat = audioExtractor.getTrackFormat(audioTrackIndex);
-                    String inAudioMime = inputAudioFormat.getString(MediaFormat.KEY_MIME);
-                    audioSampleRate = inputAudioFormat.containsKey(MediaFormat.KEY_SAMPLE_RATE)
-                            ? inputAudioFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) : 44100;
-                    audioChannelCount = inputAudioFormat.containsKey(MediaFormat.KEY_CHANNEL_COUNT)
-                            ? inputAudioFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT) : 2;
-
-                    // Decoder for source audio
-                    audioDecoder = MediaCodec.createDecoderByType(inAudioMime);
-                    audioDecoder.configure(inputAudioFormat, null, null, 0);
-                    audioDecoder.start();
-
-                    // Encoder to AAC LC
-                    MediaFormat outAudioFormat = MediaFormat.createAudioFormat(
-                            MediaFormat.MIMETYPE_AUDIO_AAC, audioSampleRate, audioChannelCount);
-                    outAudioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-                    outAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioBitrate);
-                    // Some devices also like this:
-                    // outAudioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
-
-                    audioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
-                    audioEncoder.configure(outAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                    audioEncoder.start();
+                // Free the codecs before anything else so the next queued job can get them.
+                session.release();
+                // A cancelled job is not coming back; a failed one keeps its checkpoints for a retry
+                if (journal != null && e instanceof CancellationException) {
+                    journal.delete();
                 }
-
-                mediaMuxer = new MediaMuxer(destinationPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-
-                videoExtractor.selectTrack(videoTrackIndex);
-                if (hasAudio) {
-                    audioExtractor.selectTrack(audioTrackIndex);
+                session.reportFailed();
+                // A content URI belongs to the caller, who may want to reuse or remove it
+                if (muxTarget.isFile() && muxTarget.getFile().delete()) {
+                    Log.d(TAG, "Partial output deleted: " + muxTarget);
                 }
-
-                long videoDurationUs = inputVideoFormat.containsKey(MediaFormat.KEY_DURATION)
-                        ? inputVideoFormat.getLong(MediaFormat.KEY_DURATION) : 0L;
-                long audioDurationUs = 0L;
-                if (hasAudio) {
-                    MediaFormat audioFmtForDur = audioExtractor.getTrackFormat(audioTrackIndex);
-                    if (audioFmtForDur.containsKey(MediaFormat.KEY_DURATION)) {
-                        audioDurationUs = audioFmtForDur.getLong(MediaFormat.KEY_DURATION);
-                    }
+                publishMetrics(options.jobId, session.metrics.snapshot(engineName, segmentsUsed, session.videoCodec.id, DEVICE_MODEL), false);
+                callback.onError(e);
+            } finally {
+                session.release();
+                if (staging != null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    staging.delete();
                 }
-                final long totalDurationUs = Math.max(videoDurationUs, audioDurationUs);
-                int lastProgress = -1;
-                callback.onProgress(0);
-                lastProgress = 0;
-                Log.d(TAG, "Progress: 0%");
-
-                // State for loops
-                MediaCodec.BufferInfo vDecInfo = new MediaCodec.BufferInfo();
-                MediaCodec.BufferInfo vEncInfo = new MediaCodec.BufferInfo();
-                MediaCodec.BufferInfo aDecInfo = new MediaCodec.BufferInfo();
-                MediaCodec.BufferInfo aEncInfo = new MediaCodec.BufferInfo();
-
-                boolean vInputDone = false, vDecDone = false, vEncDone = false;
-                boolean aInputDone = !hasAudio, aDecDone = !hasAudio, aEncDone = !hasAudio;
-                boolean signaledVideoEosToEncoder = false; // NEW
-
-                // Bytes-per-sample for PCM16
-                final int bytesPerSample = 2 * Math.max(1, hasAudio ? audioChannelCount : 1);
-
-                while (!vEncDone || !aEncDone) {
-                    // Feed video decoder
-                    if (!vInputDone) {
-                        int inIdx = videoDecoder.dequeueInputBuffer(0);
-                        if (inIdx >= 0) {
-                            ByteBuffer inBuf = videoDecoder.getInputBuffer(inIdx);
-                            int size = videoExtractor.readSampleData(inBuf, 0);
-                            if (size < 0) {
-                                videoDecoder.queueInputBuffer(inIdx, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                vInputDone = true;
-                            } else {
-                                long pts = videoExtractor.getSampleTime();
-                                int flags = videoExtractor.getSampleFlags();
-                                if (flags < 0) flags = 0;
-                                videoDecoder.queueInputBuffer(inIdx, 0, size, pts, flags);
-
-                                long denom = videoDurationUs > 0 ? videoDurationUs : (totalDurationUs > 0 ? totalDurationUs : 1L);
-                                int newProgress = (int) Math.min(99, Math.max(0, (pts * 100) / denom));
-                                if (newProgress > lastProgress) {
-                                    lastProgress = newProgress;
-                                    callback.onProgress(newProgress);
-                                }
-                                videoExtractor.advance();
-                            }
-                        }
-                    }
+                if (activeMarker != null) {
+                    //noinspection ResultOfMethodCallIgnored
+                    activeMarker.delete();
+                }
+            }
+        }, callback::onQueued, () -> {
+            Log.d(TAG, "Video compression cancelled before it started: job=" + options.jobId);
+            callback.onError(new CancellationException("Compression cancelled"));
+        });
+        return options.jobId;
+    }
 
-                    // Drain video decoder (renders to encoder surface)
-                    if (!vDecDone) {
-                        int outIdx = videoDecoder.dequeueOutputBuffer(vDecInfo, 0);
-                        if (outIdx == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                            // no-op
-                        } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED || outIdx == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                            // no-op
-                        } else if (outIdx >= 0) {
-                            boolean render = vDecInfo.size != 0;
-                            videoDecoder.releaseOutputBuffer(outIdx, render);
-                            if ((vDecInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                                vDecDone = true;
-                                Log.d(TAG, "Video decoder EOS.");
-                                if (!signaledVideoEosToEncoder) {
-                                    try {
-                                        videoEncoder.signalEndOfInputStream(); // IMPORTANT for Surface input
-                                        signaledVideoEosToEncoder = true;
-                                        Log.d(TAG, "Signaled encoder EOS via signalEndOfInputStream().");
-                                    } catch (Exception e) {
-                                        Log.w(TAG, "signalEndOfInputStream failed", e);
-                                    }
-                                }
-                            }
-                        }
-                    }
+    /** Moves the finished output over the source file; see {@link CompressionOptions#replaceSource}. */
+    private static void replaceSource(File originalFile, File compressedFile) {
+        Log.d(TAG, "Pre-replace sizes (bytes) -> original=" + (originalFile.exists() ? originalFile.length() : -1) +
+                ", compressedTmp=" + (compressedFile.exists() ? compressedFile.length() : -1));
+        if (originalFile.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            originalFile.delete();
+            Log.d(TAG, "Original file deleted.");
+        }
+        //noinspection ResultOfMethodCallIgnored
+        compressedFile.renameTo(originalFile);
+        Log.d(TAG, "Compressed file moved to original path.");
+    }
 
-                    // Drain video encoder
-                    while (true) {
-                        int outIdx = videoEncoder.dequeueOutputBuffer(vEncInfo, 0);
-                        if (outIdx == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                            break;
-                        } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                            if (outVideoTrackIndex == -1) {
-                                MediaFormat newFmt = videoEncoder.getOutputFormat();
-                                outVideoTrackIndex = mediaMuxer.addTrack(newFmt);
-                                Log.d(TAG, "Video track added: " + newFmt);
-                                if (outAudioTrackIndex != -1 || !hasAudio) {
-                                    mediaMuxer.start();
-                                    muxerStarted = true;
-                                    Log.d(TAG, "MediaMuxer started (video ready " + (!hasAudio ? "no audio" : "audio already ready") + ").");
-                                }
-                            }
-                        } else if (outIdx >= 0) {
-                            if ((vEncInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                                vEncInfo.size = 0;
-                            }
-                            if (vEncInfo.size > 0 && muxerStarted && outVideoTrackIndex != -1) {
-                                ByteBuffer outBuf = videoEncoder.getOutputBuffer(outIdx);
-                                if (outBuf != null) {
-                                    outBuf.position(vEncInfo.offset);
-                                    outBuf.limit(vEncInfo.offset + vEncInfo.size);
-                                    mediaMuxer.writeSampleData(outVideoTrackIndex, outBuf, vEncInfo);
-                                }
-                            }
-                            videoEncoder.releaseOutputBuffer(outIdx, false);
-                            if ((vEncInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                                vEncDone = true;
-                                Log.d(TAG, "Video encoder EOS.");
-                            }
-                        }
-                    }
+    /**
+     * Opens the checkpoints of an earlier run of this source with these options, or starts new ones.
+     * Null if the job cannot be checkpointed, in which case it runs as if not resumable.
+     */
+    private JobJournal openJournal(MediaLocation source, CompressionOptions options, TranscodeSession session) {
+        try {
+            String key = source.fingerprint(options.settingsKey());
+            // Segments only join if the same encoder on the same system image produced them
+            String config = session.videoEncoderName + "|" + Build.FINGERPRINT;
+            return JobJournal.open(new File(jobsDir, key), config);
+        } catch (IOException e) {
+            Log.w(TAG, "Checkpoints unavailable for job " + options.jobId, e);
+            return null;
+        }
+    }
 
-                    // Audio pipeline
-                    if (hasAudio) {
-                        // Feed audio decoder
-                        if (!aInputDone) {
-                            int inIdx = audioDecoder.dequeueInputBuffer(0);
-                            if (inIdx >= 0) {
-                                ByteBuffer inBuf = audioDecoder.getInputBuffer(inIdx);
-                                int size = audioExtractor.readSampleData(inBuf, 0);
-                                if (size < 0) {
-                                    audioDecoder.queueInputBuffer(inIdx, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                    aInputDone = true;
-                                } else {
-                                    long pts = audioExtractor.getSampleTime();
-                                    int flags = audioExtractor.getSampleFlags();
-                                    if (flags < 0) flags = 0;
-                                    audioDecoder.queueInputBuffer(inIdx, 0, size, pts, flags);
-
-                                    // Optional: progress vs audio PTS
-                                    if (totalDurationUs > 0) {
-                                        int p = (int) Math.min(99, Math.max(lastProgress, (pts * 100) / totalDurationUs));
-                                        if (p > lastProgress) {
-                                            lastProgress = p;
-                                            callback.onProgress(p);
-                                        }
-                                    }
-                                    audioExtractor.advance();
-                                }
-                            }
-                        }
-
-                        // Drain audio decoder -> feed audio encoder
-                        while (!aDecDone) {
-                            int outIdx = audioDecoder.dequeueOutputBuffer(aDecInfo, 0);
-                            if (outIdx == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                                break;
-                            } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED || outIdx == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                                // no-op
-                            } else if (outIdx >= 0) {
-                                ByteBuffer decOut = audioDecoder.getOutputBuffer(outIdx);
-                                if (decOut != null && aDecInfo.size > 0) {
-                                    decOut.position(aDecInfo.offset);
-                                    decOut.limit(aDecInfo.offset + aDecInfo.size);
-
-                                    int remaining = aDecInfo.size;
-                                    long pts = aDecInfo.presentationTimeUs;
-                                    int consumed = 0;
-
-                                    while (remaining > 0) {
-                                        int inIdx = audioEncoder.dequeueInputBuffer(10_000);
-                                        if (inIdx < 0) {
-                                            // Try again later
-                                            continue;
-                                        }
-                                        ByteBuffer encIn = audioEncoder.getInputBuffer(inIdx);
-                                        if (encIn == null) {
-                                            audioEncoder.queueInputBuffer(inIdx, 0, 0, pts, 0);
-                                            continue;
-                                        }
-                                        encIn.clear();
-                                        int toCopy = Math.min(encIn.capacity(), remaining);
-                                        // Copy chunk
-                                        int oldLimit = decOut.limit();
-                                        decOut.limit(decOut.position() + toCopy);
-                                        encIn.put(decOut);
-                                        decOut.limit(oldLimit);
-
-                                        // Compute chunk PTS if we split
-                                        long chunkPts = pts + (long)((consumed / (double)bytesPerSample) * 1_000_000d / Math.max(1, audioSampleRate));
-
-                                        audioEncoder.queueInputBuffer(inIdx, 0, toCopy, chunkPts, 0);
-
-                                        remaining -= toCopy;
-                                        consumed += toCopy;
-                                    }
-                                }
-                                boolean eos = (aDecInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
-                                audioDecoder.releaseOutputBuffer(outIdx, false);
-                                if (eos) {
-                                    aDecDone = true;
-                                    Log.d(TAG, "Audio decoder EOS.");
-                                    // Signal EOS to encoder
-                                    int inIdx;
-                                    while ((inIdx = audioEncoder.dequeueInputBuffer(10_000)) < 0) { /* wait */ }
-                                    audioEncoder.queueInputBuffer(inIdx, 0, 0, aDecInfo.presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                }
-                            }
-                        }
-
-                        // Drain audio encoder -> write to muxer
-                        while (true) {
-                            int outIdx = audioEncoder.dequeueOutputBuffer(aEncInfo, 0);
-                            if (outIdx == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                                break;
-                            } else if (outIdx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                                if (outAudioTrackIndex == -1) {
-                                    MediaFormat newFmt = audioEncoder.getOutputFormat();
-                                    outAudioTrackIndex = mediaMuxer.addTrack(newFmt);
-                                    Log.d(TAG, "Audio track added (AAC): " + newFmt);
-                                    if (outVideoTrackIndex != -1 && !muxerStarted) {
-                                        mediaMuxer.start();
-                                        muxerStarted = true;
-                                        Log.d(TAG, "MediaMuxer started after audio+video ready.");
-                                    }
-                                }
-                            } else if (outIdx >= 0) {
-                                if ((aEncInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                                    aEncInfo.size = 0;
-                                }
-                                if (aEncInfo.size > 0 && muxerStarted && outAudioTrackIndex != -1) {
-                                    ByteBuffer outBuf = audioEncoder.getOutputBuffer(outIdx);
-                                    if (outBuf != null) {
-                                        outBuf.position(aEncInfo.offset);
-                                        outBuf.limit(aEncInfo.offset + aEncInfo.size);
-                                        mediaMuxer.writeSampleData(outAudioTrackIndex, outBuf, aEncInfo);
-                                    }
-                                }
-                                audioEncoder.releaseOutputBuffer(outIdx, false);
-                                if ((aEncInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                                    aEncDone = true;
-                                    Log.d(TAG, "Audio encoder EOS.");
-                                }
-                            }
-                        }
-                    }
-                }
+    /** Records that {@code destinationPath} is being written by a running job; returns the marker to delete after it. */
+    private File markActive(String jobId, String destinationPath) {
+        File marker = new File(activeDir, Integer.toHexString(jobId.hashCode()) + "-" + System.nanoTime());
+        try {
+            if (!activeDir.isDirectory() && !activeDir.mkdirs()) {
+                throw new IOException("Could not create " + activeDir);
+            }
+            try (OutputStream out = new FileOutputStream(marker)) {
+                out.write(destinationPath.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not record output of job " + jobId, e);
+        }
+        return marker;
+    }
 
-                if (!muxerStarted) {
-                    throw new IllegalStateException("Muxer never started. Missing tracks?");
+    /**
+     * Deletes the partial outputs of jobs the process died in the middle of. Nothing runs yet when this is
+     * called, so every remaining marker belongs to such a job.
+     */
+    private void deleteInterruptedOutputs() {
+        File[] markers = activeDir.listFiles();
+        if (markers == null) return;
+        for (File marker : markers) {
+            try (InputStream in = new FileInputStream(marker)) {
+                byte[] data = new byte[(int) marker.length()];
+                int read = 0;
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) break;
+                    read += n;
                 }
-
-                try { mediaMuxer.stop(); Log.d(TAG, "MediaMuxer stopped."); } catch (Exception ignore) {}
-                try { mediaMuxer.release(); Log.d(TAG, "MediaMuxer released."); } catch (Exception ignore) {}
-                mediaMuxer = null;
-
-                try { if (videoDecoder != null) videoDecoder.stop(); } catch (Exception ignore) {}
-                try { if (videoDecoder != null) videoDecoder.release(); } catch (Exception ignore) {}
-                try { if (videoEncoder != null) videoEncoder.stop(); } catch (Exception ignore) {}
-                try { if (videoEncoder != null) videoEncoder.release(); } catch (Exception ignore) {}
-                try { if (audioDecoder != null) audioDecoder.stop(); } catch (Exception ignore) {}
-                try { if (audioDecoder != null) audioDecoder.release(); } catch (Exception ignore) {}
-                try { if (audioEncoder != null) audioEncoder.stop(); } catch (Exception ignore) {}
-                try { if (audioEncoder != null) audioEncoder.release(); } catch (Exception ignore) {}
-
-                videoExtractor.release();
-                audioExtractor.release();
-
-                File originalFile = new File(sourcePath);
-                File compressedFile = new File(destinationPath);
-                Log.d(TAG, "Pre-replace sizes (bytes) -> original=" + (originalFile.exists() ? originalFile.length() : -1) +
-                        ", compressedTmp=" + (compressedFile.exists() ? compressedFile.length() : -1));
-                if (originalFile.exists()) {
-                    //noinspection ResultOfMethodCallIgnored
-                    originalFile.delete();
-                    Log.d(TAG, "Original file deleted.");
+                File partial = new File(new String(data, 0, read, StandardCharsets.UTF_8));
+                if (partial.isFile() && partial.delete()) {
+                    Log.d(TAG, "Deleted output of interrupted job: " + partial);
                 }
+            } catch (IOException e) {
+                Log.w(TAG, "Unreadable job marker " + marker, e);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            marker.delete();
+        }
+    }
+
+    private static CompressionCache openCache(File dir, long budgetBytes) {
+        try {
+            return new CompressionCache(dir, budgetBytes);
+        } catch (IOException e) {
+            Log.w(TAG, "Output cache disabled", e);
+            return null;
+        }
+    }
+
+    /** Null when the job should bypass the cache. */
+    private static String cacheKey(CompressionCache cache, MediaLocation source, CompressionOptions options) {
+        // A fragmented job's caller expects chunk events, which a cache hit would not produce
+        if (cache == null || !options.useCache || options.fragmented) {
+            return null;
+        }
+        try {
+            return source.fingerprint(options.settingsKey());
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Could not fingerprint " + source, e);
+            return null;
+        }
+    }
+
+    /**
+     * Serves a cache hit on the job's worker thread: the cached output replaces the source exactly as a
+     * finished transcode would, without creating any codec.
+     */
+    private boolean restoreFromCache(CompressionCache cache, String key, MediaLocation source, MediaLocation destination, boolean replace,
+                                     String jobId, VideoCompressionCallback callback) {
+        PipelineMetrics metrics = new PipelineMetrics();
+        try {
+            File cached = cache.get(key);
+            if (cached == null) {
+                return false;
+            }
+            try (OutputStream out = destination.openOutputStream()) {
+                CompressionCache.copy(cached, out);
+            }
+            metrics.add(PipelineMetrics.OUTPUT_BYTES, cached.length());
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cache restore failed, transcoding instead: job=" + jobId, e);
+            if (destination.isFile()) {
                 //noinspection ResultOfMethodCallIgnored
-                compressedFile.renameTo(originalFile);
-                Log.d(TAG, "Compressed file moved to original path.");
+                destination.getFile().delete();
+            }
+            return false;
+        }
+        if (replace) {
+            replaceSource(source.getFile(), destination.getFile());
+        }
+        Log.d(TAG, "Served from cache: job=" + jobId + ", key=" + key);
 
-                if (lastProgress < 100) {
-                    callback.onProgress(100);
-                    Log.d(TAG, "Progress: 100%");
-                }
-                callback.onSuccess();
+        CompressionMetrics snapshot = metrics.snapshot("cache", 1, null, DEVICE_MODEL);
+        callback.onProgress(new CompressionProgress(100, 0, 0, 0, 0, snapshot.outputBytes, snapshot.wallMs, 0));
+        publishMetrics(jobId, snapshot, true);
+        callback.onSuccess(snapshot);
+        return true;
+    }
 
-            } catch (Exception e) {
-                Log.e(TAG, "Video compression failed", e);
-                callback.onError(e);
+    /**
+     * Number of parallel video segments for this job: the requested count ({@code 0} = as many as possible),
+     * limited by the encoder instances left per concurrently running job. 1 means no segmentation.
+     */
+    private int segmentCount(CodecCatalog codecs, CompressionOptions options, TranscodeSession session) {
+        if (session.copyVideo || options.segments == 1 || (session.clip != null && session.clip.size() > 1)) {
+            return 1;
+        }
+        int limit = codecs.instanceLimit(session.inputVideoFormat.getString(MediaFormat.KEY_MIME), session.videoCodec.mime);
+        int perJob = Math.max(1, limit / scheduler.getConcurrency());
+        int requested = options.segments <= 0 ? perJob : options.segments;
+        return Math.max(1, Math.min(requested, perJob));
+    }
+
+    /**
+     * Reads the metadata of {@code sourcePath} (path or content URI) and estimates, per quality preset, the
+     * output size and time of compressing it with default options and {@code targetFrameRate}. Only the
+     * container is read; metadata is remembered per source content, so asking again is nearly free.
+     * Blocks while reading.
+     */
+    public VideoInfo probe(String sourcePath, int targetFrameRate) throws IOException {
+        MediaLocation source = MediaLocation.parse(context, sourcePath);
+        long sizeBytes = source.length();
+        String key = source.fingerprint("probe");
+        MediaProbe probe;
+        synchronized (probes) {
+            probe = probes.get(key);
+        }
+        if (probe == null) {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                source.setDataSource(extractor);
+                probe = MediaProbe.from(extractor, sizeBytes);
             } finally {
-                try { if (audioEncoder != null) { audioEncoder.stop(); audioEncoder.release(); } } catch (Exception ignore) {}
-                try { if (audioDecoder != null) { audioDecoder.stop(); audioDecoder.release(); } } catch (Exception ignore) {}
-                try { if (videoEncoder != null) { videoEncoder.stop(); videoEncoder.release(); } } catch (Exception ignore) {}
-                try { if (videoDecoder != null) { videoDecoder.stop(); videoDecoder.release(); } } catch (Exception ignore) {}
-                try { if (mediaMuxer != null) { mediaMuxer.release(); } } catch (Exception ignore) {}
-                try { videoExtractor.release(); } catch (Exception ignore) {}
-                try { audioExtractor.release(); } catch (Exception ignore) {}
+                extractor.release();
             }
-        });
+            if (probe.videoTrackIndex == -1) {
+                throw new IOException("No video track found in the source file.");
+            }
+            synchronized (probes) {
+                probes.put(key, probe);
+            }
+        }
+
+        List<VideoInfo.Estimate> estimates = new ArrayList<>();
+        for (String quality : PRESETS) {
+            // Same decisions as TranscodeSession.open() makes for these options
+            TargetPlanner.Preset preset = TargetPlanner.preset(quality);
+            TargetPlanner.Plan plan = TargetPlanner.plan(preset, probe.width, probe.height,
+                    probe.frameRate, probe.videoBitrate, probe.durationUs, 0, 0, targetFrameRate, probe.hasAudio());
+            boolean copyVideo = TranscodeSession.canCopyVideo(probe, plan, MediaFormat.MIMETYPE_VIDEO_AVC, plan.uncappedVideoBitrate);
+            boolean copyAudio = TranscodeSession.canCopyAudio(probe, preset, plan, 0);
+            long audioBitrate = !probe.hasAudio() ? 0 : copyAudio && probe.audioBitrate > 0 ? probe.audioBitrate : plan.audioBitrate;
+            estimates.add(new VideoInfo.Estimate(quality,
+                    copyVideo ? probe.width : plan.width,
+                    copyVideo ? probe.height : plan.height,
+                    copyVideo ? probe.frameRate : plan.frameRate,
+                    copyVideo ? probe.videoBitrate : plan.videoBitrate,
+                    copyVideo,
+                    CompressionEstimator.outputBytes(plan, copyVideo, probe.videoBitrate, audioBitrate, probe.durationUs),
+                    estimator.wallMs(plan, copyVideo, probe.durationUs, sizeBytes)));
+        }
+        return new VideoInfo(probe, sizeBytes, estimates);
     }
 
-    private int selectTrack(MediaExtractor extractor, String mimeTypePrefix) {
-        for (int i = 0; i < extractor.getTrackCount(); i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            if (mime != null && mime.startsWith(mimeTypePrefix)) {
-                return i;
-            }
+    /**
+     * Allocates the codecs a job at {@code quality} will need, so the next {@link #compress} skips that
+     * cost. They are released again if unused for {@link CodecPool#IDLE_TIMEOUT_MS}. Blocks while allocating.
+     */
+    public void prewarm(String quality) throws IOException {
+        setup().pool.prewarm(quality);
+    }
+
+    /**
+     * Releases codecs kept alive between jobs, e.g. when the host is going away. Does not block: the
+     * release runs on the setup thread once setup is done.
+     */
+    public void releaseIdleCodecs() {
+        setupExecutor.execute(() -> setup().pool.clear());
+    }
+
+    /**
+     * Releases the codec pool for good, for when the host is going away: its eviction task stops, idle
+     * codecs are released and running jobs release theirs when done. Does not block, like {@link #releaseIdleCodecs}.
+     */
+    public void shutdown() {
+        setupExecutor.execute(() -> setup().pool.shutdown());
+    }
+
+    /** Installs a listener that receives every job's stage metrics; null removes it. */
+    public void setMetricsListener(MetricsListener listener) {
+        this.metricsListener = listener;
+    }
+
+    private void publishMetrics(String jobId, CompressionMetrics metrics, boolean succeeded) {
+        MetricsListener listener = metricsListener;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.onJobMetrics(jobId, metrics, succeeded);
+        } catch (Exception e) {
+            Log.w(TAG, "Metrics listener failed", e);
         }
-        return -1;
+    }
+
+    /** @return false if no job with that id is queued or running */
+    public boolean cancel(String jobId) {
+        return scheduler.cancel(jobId);
+    }
+
+    public boolean pause(String jobId) {
+        return scheduler.pause(jobId);
+    }
+
+    public boolean resume(String jobId) {
+        return scheduler.resume(jobId);
     }
 
     public interface VideoCompressionCallback {
-        void onSuccess();
+        /** Called once the job is accepted, on the thread calling {@link #compress}, before any other callback. */
+        default void onQueued() {}
+        void onSuccess(CompressionMetrics metrics);
         void onError(Exception e);
-        void onProgress(int progress);
+        /** Called on a background thread, at most once per {@link CompressionOptions#progressIntervalMs}. */
+        void onProgress(CompressionProgress progress);
+        /**
+         * Called for each finished piece of a {@link CompressionOptions#fragmented} output, in file order, on
+         * the thread writing the output; keep it short.
+         */
+        default void onChunk(OutputChunk chunk) {}
+        /**
+         * Called for each poster frame written to {@link CompressionOptions#posterDirectory}, on the thread
+         * writing them; all calls happen before {@link #onSuccess}.
+         */
+        default void onPosterFrame(PosterFrame poster) {}
     }
 }
\ No newline at end of file
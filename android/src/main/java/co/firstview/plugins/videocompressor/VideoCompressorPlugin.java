@@ -1,12 +1,20 @@
 package co.firstview.plugins.videocompressor;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
 
 @CapacitorPlugin(name = "VideoCompressor")
 public class VideoCompressorPlugin extends Plugin {
@@ -16,50 +24,328 @@ public class VideoCompressorPlugin extends Plugin {
     @Override
     public void load() {
         super.load();
-        videoCompressor = new VideoCompressor(getContext());
+        // Scheduler limits come from capacitor.config: plugins.VideoCompressor.{maxConcurrentJobs,maxQueuedJobs}
+        int maxConcurrentJobs = getConfig().getInt("maxConcurrentJobs", 2);
+        int maxQueuedJobs = getConfig().getInt("maxQueuedJobs", 16);
+        // plugins.VideoCompressor.cacheBudgetMb: disk space for previously compressed outputs, 0 disables
+        long cacheBudgetMb = getConfig().getInt("cacheBudgetMb", 256);
+        videoCompressor = new VideoCompressor(getContext(), maxConcurrentJobs, maxQueuedJobs, cacheBudgetMb * 1024 * 1024);
     }
 
     @PluginMethod
     public void compressVideo(PluginCall call) {
         String path = call.getString("path");
         String quality = call.getString("quality", "high");
+        String engine = call.getString("engine", "sync");
+        String priority = call.getString("priority", "normal");
+        String jobId = call.getString("jobId", UUID.randomUUID().toString());
 
         if (path == null) {
             call.reject("Must provide a 'path' to the video file.");
             return;
         }
 
-        File originalFile = new File(path);
-        if (!originalFile.exists()) {
+        // 'path' may also be a content:// URI, e.g. straight from the gallery picker; it is read in place
+        MediaLocation source = MediaLocation.parse(getContext(), path);
+        if (!source.exists()) {
             call.reject("Original file does not exist at path: " + path);
             return;
         }
 
-        // Create a temporary destination path for the compressed file
-        String tempOutputPath = originalFile.getParent() + "/" + "temp_compressed_" + originalFile.getName();
+        CompressionOptions options = new CompressionOptions();
+        // 'outputPath' (path or content:// URI) keeps the original; without it a file source is replaced
+        String outputPath = call.getString("outputPath");
+        if (outputPath != null) {
+            options.replaceSource = false;
+        } else if (source.isFile()) {
+            File originalFile = source.getFile();
+            outputPath = originalFile.getParent() + "/" + "temp_compressed_" + originalFile.getName();
+        } else {
+            outputPath = new File(getContext().getCacheDir(), "compressed_" + UUID.randomUUID() + ".mp4").getPath();
+            options.replaceSource = false;
+        }
+        String resultPath = options.replaceSource ? source.toString() : outputPath;
 
-        videoCompressor.compress(path, tempOutputPath, quality, new VideoCompressor.VideoCompressionCallback() {
+        options.quality = quality;
+        options.engine = CompressionOptions.Engine.from(engine);
+        options.priority = CompressionScheduler.parsePriority(priority);
+        options.jobId = jobId;
+        options.segments = call.getInt("segments", 1);
+        options.targetSizeMb = call.getDouble("targetSizeMb", 0d);
+        options.bitsPerPixel = call.getDouble("bitsPerPixel", 0d);
+        options.targetFrameRate = call.getInt("targetFrameRate", 30);
+        options.progressIntervalMs = call.getInt("progressIntervalMs", 250);
+        options.useCache = call.getBoolean("useCache", true);
+        options.resumable = call.getBoolean("resumable", false);
+        options.checkpointIntervalMs = call.getInt("checkpointIntervalMs", 30_000);
+        options.videoCodec = call.getString("videoCodec", "avc");
+        options.encoderTuning = call.getString("encoderTuning", "balanced");
+        JSArray allowedCodecs = call.getArray("allowedVideoCodecs");
+        if (allowedCodecs != null) {
+            try {
+                options.allowedVideoCodecs = allowedCodecs.<String>toList().toArray(new String[0]);
+            } catch (JSONException e) {
+                call.reject("'allowedVideoCodecs' must be an array of strings.");
+                return;
+            }
+        }
+        options.posterDirectory = call.getString("posterDirectory");
+        JSArray posterTimes = call.getArray("posterTimesMs");
+        if (posterTimes != null) {
+            try {
+                List<Object> times = posterTimes.toList();
+                options.posterTimesMs = new long[times.size()];
+                for (int i = 0; i < times.size(); i++) {
+                    options.posterTimesMs[i] = ((Number) times.get(i)).longValue();
+                }
+            } catch (JSONException | ClassCastException e) {
+                call.reject("'posterTimesMs' must be an array of numbers.");
+                return;
+            }
+        }
+        options.posterIntervalMs = call.getInt("posterIntervalMs", 0);
+        options.posterFormat = call.getString("posterFormat", "jpeg");
+        options.posterMaxSize = call.getInt("posterMaxSize", 320);
+        options.posterQuality = call.getInt("posterQuality", 80);
+        options.fragmented = call.getBoolean("fragmented", false);
+        options.fragmentDurationMs = call.getInt("fragmentDurationMs", 2000);
+        // Trimming: 'startMs'/'endMs', or 'ranges' of {startMs, endMs} to keep several parts
+        options.startMs = call.getInt("startMs", 0);
+        options.endMs = call.getInt("endMs", 0);
+        JSArray ranges = call.getArray("ranges");
+        try {
+            if (ranges != null) {
+                List<Object> list = ranges.toList();
+                options.clipRangesMs = new long[list.size()][];
+                for (int i = 0; i < list.size(); i++) {
+                    JSONObject range = (JSONObject) list.get(i);
+                    options.clipRangesMs[i] = new long[]{range.optLong("startMs", 0), range.optLong("endMs", 0)};
+                }
+            }
+            options.clipRanges();
+        } catch (JSONException | ClassCastException e) {
+            call.reject("'ranges' must be an array of {startMs, endMs} objects.");
+            return;
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+
+        JSArray posters = new JSArray();
+        VideoCompressor.VideoCompressionCallback callback = new VideoCompressor.VideoCompressionCallback() {
             @Override
-            public void onSuccess() {
-                // Send final 100% for UIs relying on the event
-                JSObject ret = new JSObject();
-                ret.put("progress", 100);
-                getActivity().runOnUiThread(() -> notifyListeners("videoProgress", ret));
+            public void onQueued() {
+                // The promise settles only when the job finishes; announce the id right away so it can be tracked.
+                JSObject queued = new JSObject();
+                queued.put("jobId", jobId);
+                queued.put("priority", priority);
+                notifyListeners("videoCompressionQueued", queued);
+            }
 
-                call.resolve(new JSObject());
+            @Override
+            public void onSuccess(CompressionMetrics metrics) {
+                // The final 100% event has already been delivered by the progress reporter
+                JSObject result = new JSObject();
+                result.put("jobId", jobId);
+                result.put("path", resultPath);
+                synchronized (posters) {
+                    result.put("posters", posters);
+                }
+                result.put("metrics", toJson(metrics));
+                call.resolve(result);
             }
 
             @Override
             public void onError(Exception e) {
-                call.reject("Video compression failed", e);
+                if (e instanceof CancellationException) {
+                    call.reject("Video compression cancelled", "CANCELLED", e);
+                } else {
+                    call.reject("Video compression failed", e);
+                }
             }
             
             @Override
-            public void onProgress(int progress) {
+            public void onProgress(CompressionProgress progress) {
+                // Already coalesced and off the codec threads; the bridge does its own dispatch to the WebView.
+                JSObject ret = new JSObject();
+                ret.put("jobId", jobId);
+                ret.put("progress", progress.percent);
+                ret.put("encodedPtsUs", progress.encodedPtsUs);
+                ret.put("durationUs", progress.durationUs);
+                ret.put("framesEncoded", progress.framesEncoded);
+                ret.put("fps", progress.fps);
+                ret.put("bytesWritten", progress.bytesWritten);
+                ret.put("elapsedMs", progress.elapsedMs);
+                ret.put("etaMs", progress.etaMs);
+                notifyListeners("videoProgress", ret);
+            }
+
+            @Override
+            public void onPosterFrame(PosterFrame poster) {
+                JSObject ret = new JSObject();
+                ret.put("path", poster.path);
+                ret.put("timeMs", poster.timeUs / 1000);
+                ret.put("width", poster.width);
+                ret.put("height", poster.height);
+                synchronized (posters) {
+                    posters.put(ret);
+                }
+            }
+
+            @Override
+            public void onChunk(OutputChunk chunk) {
+                JSObject ret = new JSObject();
+                ret.put("jobId", jobId);
+                ret.put("path", chunk.path);
+                ret.put("sequence", chunk.sequence);
+                ret.put("init", chunk.isInitSegment());
+                ret.put("offset", chunk.offset);
+                ret.put("length", chunk.length);
+                notifyListeners("videoChunk", ret);
+            }
+        };
+
+        try {
+            videoCompressor.compress(path, outputPath, options, callback);
+        } catch (RejectedExecutionException e) {
+            call.reject(e.getMessage(), "QUEUE_REJECTED", e);
+        }
+    }
+
+    private static JSObject toJson(CompressionMetrics metrics) {
+        JSObject ret = new JSObject();
+        ret.put("engine", metrics.engine);
+        ret.put("segments", metrics.segments);
+        ret.put("videoCodec", metrics.videoCodec);
+        ret.put("deviceModel", metrics.deviceModel);
+        ret.put("wallMs", metrics.wallMs);
+        ret.put("extractorMs", metrics.extractorMs);
+        ret.put("decoderInputWaitMs", metrics.decoderInputWaitMs);
+        ret.put("decoderOutputWaitMs", metrics.decoderOutputWaitMs);
+        ret.put("encoderOutputWaitMs", metrics.encoderOutputWaitMs);
+        ret.put("muxerWriteMs", metrics.muxerWriteMs);
+        ret.put("framesDecoded", metrics.framesDecoded);
+        ret.put("framesEncoded", metrics.framesEncoded);
+        ret.put("framesDropped", metrics.framesDropped);
+        ret.put("inputBytes", metrics.inputBytes);
+        ret.put("outputBytes", metrics.outputBytes);
+        return ret;
+    }
+
+    @PluginMethod
+    public void probeVideo(PluginCall call) {
+        String path = call.getString("path");
+        if (path == null) {
+            call.reject("Must provide a 'path' to the video file.");
+            return;
+        }
+        int targetFrameRate = call.getInt("targetFrameRate", 30);
+        // Opening the container can take a while on slow storage; keep it off the bridge thread
+        new Thread(() -> {
+            try {
+                VideoInfo info = videoCompressor.probe(path, targetFrameRate);
+                JSObject ret = new JSObject();
+                ret.put("path", path);
+                ret.put("sizeBytes", info.sizeBytes);
+                ret.put("durationMs", info.durationMs);
+                ret.put("videoCodec", info.videoCodec);
+                ret.put("width", info.width);
+                ret.put("height", info.height);
+                ret.put("rotation", info.rotation);
+                ret.put("frameRate", info.frameRate);
+                ret.put("videoBitrate", info.videoBitrate);
+                ret.put("audioCodec", info.audioCodec);
+                ret.put("audioSampleRate", info.audioSampleRate);
+                ret.put("audioChannels", info.audioChannels);
+                ret.put("audioBitrate", info.audioBitrate);
+                JSArray estimates = new JSArray();
+                for (VideoInfo.Estimate e : info.estimates) {
+                    JSObject estimate = new JSObject();
+                    estimate.put("quality", e.quality);
+                    estimate.put("width", e.width);
+                    estimate.put("height", e.height);
+                    estimate.put("frameRate", e.frameRate);
+                    estimate.put("videoBitrate", e.videoBitrate);
+                    estimate.put("copiesVideo", e.copiesVideo);
+                    estimate.put("outputBytes", e.outputBytes);
+                    estimate.put("transcodeMs", e.transcodeMs);
+                    estimates.put(estimate);
+                }
+                ret.put("estimates", estimates);
+                call.resolve(ret);
+            } catch (Exception e) {
+                call.reject("Video probe failed", e);
+            }
+        }, "VideoCompressor-probe").start();
+    }
+
+    @PluginMethod
+    public void prewarm(PluginCall call) {
+        String quality = call.getString("quality", "high");
+        // Codec allocation blocks for a while; keep it off the bridge thread
+        new Thread(() -> {
+            try {
+                videoCompressor.prewarm(quality);
                 JSObject ret = new JSObject();
-                ret.put("progress", progress);
-                getActivity().runOnUiThread(() -> notifyListeners("videoProgress", ret));
+                ret.put("quality", quality);
+                call.resolve(ret);
+            } catch (Exception e) {
+                call.reject("Codec prewarm failed", e);
             }
-        });
+        }, "VideoCompressor-prewarm").start();
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        videoCompressor.shutdown();
+        super.handleOnDestroy();
+    }
+
+    @PluginMethod
+    public void cancelCompression(PluginCall call) {
+        String jobId = call.getString("jobId");
+        if (jobId == null) {
+            call.reject("Must provide a 'jobId'.");
+            return;
+        }
+        if (!videoCompressor.cancel(jobId)) {
+            call.reject("No compression job with id: " + jobId, "NOT_FOUND");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("jobId", jobId);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void pauseCompression(PluginCall call) {
+        String jobId = call.getString("jobId");
+        if (jobId == null) {
+            call.reject("Must provide a 'jobId'.");
+            return;
+        }
+        if (!videoCompressor.pause(jobId)) {
+            call.reject("No compression job with id: " + jobId, "NOT_FOUND");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("jobId", jobId);
+        call.resolve(ret);
+    }
+
+    @PluginMethod
+    public void resumeCompression(PluginCall call) {
+        String jobId = call.getString("jobId");
+        if (jobId == null) {
+            call.reject("Must provide a 'jobId'.");
+            return;
+        }
+        if (!videoCompressor.resume(jobId)) {
+            call.reject("No compression job with id: " + jobId, "NOT_FOUND");
+            return;
+        }
+        JSObject ret = new JSObject();
+        ret.put("jobId", jobId);
+        call.resolve(ret);
     }
 }
@@ -0,0 +1,74 @@
+package co.firstview.plugins.videocompressor;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Container and track metadata of a source plus what compressing it would cost, from
+ * {@link VideoCompressor#probe}. Nothing is decoded to produce it.
+ */
+public class VideoInfo {
+
+    /** Expected result of compressing at one quality preset with default options. */
+    public static class Estimate {
+        /** {@code low}, {@code medium} or {@code high}. */
+        public final String quality;
+        public final int width;
+        public final int height;
+        public final int frameRate;
+        public final long videoBitrate;
+        /** The source video already fits the preset and would be copied, not re-encoded. */
+        public final boolean copiesVideo;
+        public final long outputBytes;
+        /** Expected wall time on this device, from the rate its previous jobs ran at. */
+        public final long transcodeMs;
+
+        Estimate(String quality, int width, int height, int frameRate, long videoBitrate, boolean copiesVideo,
+                 long outputBytes, long transcodeMs) {
+            this.quality = quality;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.videoBitrate = videoBitrate;
+            this.copiesVideo = copiesVideo;
+            this.outputBytes = outputBytes;
+            this.transcodeMs = transcodeMs;
+        }
+    }
+
+    public final long sizeBytes;
+    public final long durationMs;
+    /** Video mime type, e.g. {@code video/avc}. */
+    public final String videoCodec;
+    public final int width;
+    public final int height;
+    public final int rotation;
+    /** Declared frame rate; 0 when the container has none. */
+    public final int frameRate;
+    /** Video bits/s, estimated from the file size when not declared; -1 if unknown. */
+    public final long videoBitrate;
+    /** Audio mime type; null without audio. */
+    public final String audioCodec;
+    public final int audioSampleRate;
+    public final int audioChannels;
+    /** Audio bits/s; -1 if unknown. */
+    public final long audioBitrate;
+    /** One per preset, smallest first. */
+    public final List<Estimate> estimates;
+
+    VideoInfo(MediaProbe probe, long sizeBytes, List<Estimate> estimates) {
+        this.sizeBytes = sizeBytes;
+        this.durationMs = probe.durationUs / 1000;
+        this.videoCodec = probe.videoMime;
+        this.width = probe.width;
+        this.height = probe.height;
+        this.rotation = probe.rotation;
+        this.frameRate = probe.frameRate;
+        this.videoBitrate = probe.videoBitrate;
+        this.audioCodec = probe.audioMime;
+        this.audioSampleRate = probe.hasAudio() ? probe.audioSampleRate : 0;
+        this.audioChannels = probe.hasAudio() ? probe.audioChannelCount : 0;
+        this.audioBitrate = probe.audioBitrate;
+        this.estimates = Collections.unmodifiableList(estimates);
+    }
+}
@@ -0,0 +1,132 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The video half of the polling engine: source → decoder → (surface) → encoder → sink, advanced one
+ * non-blocking pass at a time by {@link #step()}. Works only against the {@link Codec},
+ * {@link SampleSource} and {@link SampleSink} interfaces, so it runs unchanged on device (through the
+ * MediaCodec adapters) and on a plain JVM against fakes in tests and benchmarks.
+ * <p>
+ * Decoded frames the {@link FrameRateSelector} rejects are released without rendering, so the encoder
+ * only sees frames at the target rate. Rendered frames go through the {@link FrameRelay}, if there is one.
+ */
+final class VideoTranscodeLoop {
+
+    private final SampleSource source;
+    private final Codec decoder;
+    private final Codec encoder;
+    private final SampleSink sink;
+    private final FrameRateSelector frameRate;
+    /** Null when the decoder renders straight into the encoder. */
+    private final FrameRelay relay;
+    private final PipelineMetrics metrics;
+
+    private final SampleInfo decInfo = new SampleInfo();
+    private final SampleInfo encInfo = new SampleInfo();
+
+    private boolean inputDone = false;
+    private boolean decoderDone = false;
+    private boolean encoderDone = false;
+
+    VideoTranscodeLoop(SampleSource source, Codec decoder, Codec encoder, SampleSink sink, FrameRateSelector frameRate,
+                       PipelineMetrics metrics) {
+        this(source, decoder, encoder, sink, frameRate, null, metrics);
+    }
+
+    VideoTranscodeLoop(SampleSource source, Codec decoder, Codec encoder, SampleSink sink, FrameRateSelector frameRate,
+                       FrameRelay relay, PipelineMetrics metrics) {
+        this.source = source;
+        this.decoder = decoder;
+        this.encoder = encoder;
+        this.sink = sink;
+        this.frameRate = frameRate;
+        this.relay = relay;
+        this.metrics = metrics;
+    }
+
+    boolean isDone() {
+        return encoderDone;
+    }
+
+    /**
+     * Feeds at most one sample, drains at most one decoded frame and everything the encoder has ready.
+     * Never waits on a codec. Returns true once the encoder has delivered end of stream.
+     */
+    boolean step() throws Exception {
+        if (!inputDone) {
+            feedDecoder();
+        }
+        if (!decoderDone) {
+            drainDecoder();
+        }
+        drainEncoder();
+        return encoderDone;
+    }
+
+    private void feedDecoder() {
+        long t = System.nanoTime();
+        int inIdx = decoder.dequeueInputBuffer(0);
+        metrics.addElapsed(PipelineMetrics.DECODER_INPUT_WAIT_NS, t);
+        if (inIdx < 0) {
+            return;
+        }
+        ByteBuffer inBuf = decoder.getInputBuffer(inIdx);
+        t = System.nanoTime();
+        int size = source.readSampleData(inBuf, 0);
+        if (size < 0) {
+            metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+            decoder.queueInputBuffer(inIdx, 0, 0, 0, Codec.BUFFER_FLAG_END_OF_STREAM);
+            inputDone = true;
+            return;
+        }
+        long pts = source.getSampleTime();
+        int flags = source.getSampleFlags();
+        if (flags < 0) flags = 0;
+        source.advance();
+        metrics.addElapsed(PipelineMetrics.EXTRACTOR_NS, t);
+        metrics.add(PipelineMetrics.INPUT_BYTES, size);
+        decoder.queueInputBuffer(inIdx, 0, size, pts, flags);
+    }
+
+    private void drainDecoder() throws Exception {
+        long t = System.nanoTime();
+        int outIdx = decoder.dequeueOutputBuffer(decInfo, 0);
+        metrics.addElapsed(PipelineMetrics.DECODER_OUTPUT_WAIT_NS, t);
+        if (outIdx < 0) {
+            // INFO_TRY_AGAIN_LATER, or a format/buffers change the surface path does not care about
+            return;
+        }
+        boolean render = decInfo.size != 0 && frameRate.accept(decInfo.presentationTimeUs);
+        if (decInfo.size != 0) {
+            metrics.increment(render ? PipelineMetrics.FRAMES_DECODED : PipelineMetrics.FRAMES_DROPPED);
+        }
+        decoder.releaseOutputBuffer(outIdx, render);
+        if (render && relay != null) {
+            relay.relay(decInfo.presentationTimeUs);
+        }
+        if (decInfo.isEndOfStream()) {
+            decoderDone = true;
+            encoder.signalEndOfInputStream(); // Surface input has no EOS buffer of its own
+        }
+    }
+
+    private void drainEncoder() throws Exception {
+        while (!encoderDone) {
+            long t = System.nanoTime();
+            int outIdx = encoder.dequeueOutputBuffer(encInfo, 0);
+            metrics.addElapsed(PipelineMetrics.ENCODER_OUTPUT_WAIT_NS, t);
+            if (outIdx == Codec.INFO_TRY_AGAIN_LATER) {
+                return;
+            } else if (outIdx == Codec.INFO_OUTPUT_FORMAT_CHANGED) {
+                sink.onOutputFormat(encoder.getOutputFormat());
+            } else if (outIdx >= 0) {
+                sink.writeSample(encoder.getOutputBuffer(outIdx), encInfo);
+                encoder.releaseOutputBuffer(outIdx, false);
+                if (encInfo.isEndOfStream()) {
+                    encoderDone = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+
+import org.junit.Test;
+
+public class AvcLevelTest {
+
+    @Test
+    public void picksTheLowestLevelThatFitsTheOutput() {
+        assertEquals(CodecProfileLevel.AVCLevel3, AvcLevel.minimum(640, 360, 30, 1_000_000, true));
+        assertEquals(CodecProfileLevel.AVCLevel31, AvcLevel.minimum(1280, 720, 30, 3_000_000, true));
+        assertEquals(CodecProfileLevel.AVCLevel32, AvcLevel.minimum(1280, 720, 60, 3_000_000, true));
+        assertEquals(CodecProfileLevel.AVCLevel4, AvcLevel.minimum(1920, 1080, 30, 8_000_000, true));
+    }
+
+    @Test
+    public void bitrateCanRaiseTheLevel() {
+        // Level 3 allows 12.5 Mbit/s in High profile, 10 Mbit/s otherwise
+        assertEquals(CodecProfileLevel.AVCLevel3, AvcLevel.minimum(640, 360, 30, 12_000_000, true));
+        assertEquals(CodecProfileLevel.AVCLevel31, AvcLevel.minimum(640, 360, 30, 12_000_000, false));
+    }
+
+    @Test
+    public void streamsBeyondLevelFiveTwoGetNone() {
+        assertEquals(0, AvcLevel.minimum(7680, 4320, 30, 20_000_000, true));
+    }
+}
@@ -0,0 +1,59 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ClippedSampleSourceTest {
+
+    private static final long FRAME_US = 100_000;
+
+    /** Sample times in ms, as a decoder would be fed them. */
+    private static List<Long> fed(ClipRanges ranges) {
+        // 10 s at 10 fps, a sync sample every second
+        ClippedSampleSource source = new ClippedSampleSource(new FakeSampleSource(100, 16, FRAME_US, 10), ranges);
+        List<Long> out = new ArrayList<>();
+        for (long t = source.getSampleTime(); t >= 0; t = source.getSampleTime()) {
+            out.add(t / 1000);
+            source.advance();
+        }
+        return out;
+    }
+
+    private static List<Long> span(long fromMs, long toMs) {
+        List<Long> out = new ArrayList<>();
+        for (long t = fromMs; t <= toMs; t += FRAME_US / 1000) out.add(t);
+        return out;
+    }
+
+    @Test
+    public void rangesStartAtThePrecedingSyncSampleAndSkipGaps() {
+        List<Long> expected = span(0, 700);      // ends within the reorder slack after 500 ms
+        expected.addAll(span(3000, 3700));       // entered at the sync sample before 3.2 s
+        assertEquals(expected, fed(ClipRanges.fromMs(new long[][]{{3200, 3500}, {0, 500}})));
+    }
+
+    @Test
+    public void rangesInOneGopAreReadOnceWithoutSeekingBack() {
+        // The second range's sync sample was fed for the first one already; reading simply continues
+        assertEquals(span(0, 900), fed(ClipRanges.fromMs(new long[][]{{100, 300}, {600, 800}})));
+    }
+
+    @Test
+    public void outputTimelineJoinsMergedRanges() {
+        ClipRanges ranges = ClipRanges.fromMs(new long[][]{{5000, 6000}, {1000, 2000}, {1500, 2500}});
+        assertEquals(2, ranges.size());
+        assertEquals(0, ranges.toOutputUs(500_000));
+        assertEquals(1_400_000, ranges.toOutputUs(2_400_000));
+        assertEquals(1_500_000, ranges.toOutputUs(3_000_000));
+        assertEquals(2_000_000, ranges.toOutputUs(5_500_000));
+        assertEquals(2_300_000, ranges.durationUs(5_800_000));
+        assertTrue(ranges.contains(2_499_999));
+        assertFalse(ranges.contains(2_500_000));
+    }
+}
@@ -0,0 +1,49 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CodecCatalogTest {
+
+    /**
+     * An encoder whose overall ranges admit 1280 on either side but that only takes 1280x720 landscape:
+     * for widths from 720 up, heights stop at 720. Processes 1280x720 at 30 fps.
+     */
+    private static CodecCatalog.Entry landscapeEncoder() {
+        int samples = 1280 / CodecCatalog.SIZE_STEP;
+        int[] minHeights = new int[samples];
+        int[] maxHeights = new int[samples];
+        for (int i = 0; i < samples; i++) {
+            int width = CodecCatalog.SIZE_STEP * (i + 1);
+            minHeights[i] = width < 64 ? 0 : 64;
+            maxHeights[i] = width < 64 ? 0 : width < 720 ? 1280 : 720;
+        }
+        return new CodecCatalog.Entry("c2.vendor.avc.encoder", "video/avc", true, true, 4,
+                64, 1280, 64, 1280, 2, 2, 1_000, 20_000_000, new int[0], new int[0], 0, 0, 0,
+                60, minHeights, maxHeights, 1280L * 720 * 30);
+    }
+
+    @Test
+    public void checksHeightsForTheWidth() {
+        CodecCatalog.Entry e = landscapeEncoder();
+        assertTrue(e.supports(1280, 720, 30));
+        assertFalse("portrait exceeds the heights for width 720", e.supports(720, 1280, 30));
+        assertTrue(e.supports(480, 854, 30));
+    }
+
+    @Test
+    public void widthsBetweenSamplesUseTheWiderOne() {
+        // 706 shares a sample with 720, where heights stop at 720
+        assertFalse(landscapeEncoder().supports(706, 1280, 0));
+    }
+
+    @Test
+    public void checksThePixelRate() {
+        CodecCatalog.Entry e = landscapeEncoder();
+        assertFalse(e.supports(1280, 720, 60));
+        assertTrue(e.supports(640, 360, 60));
+        assertTrue("0 checks the size only", e.supports(1280, 720, 0));
+    }
+}
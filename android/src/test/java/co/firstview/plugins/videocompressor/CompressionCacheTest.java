@@ -0,0 +1,81 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class CompressionCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File file(String name, int size, int seed) throws IOException {
+        File f = tmp.newFile(name);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) data[i] = (byte) (i * 31 + seed);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(data);
+        }
+        return f;
+    }
+
+    @Test
+    public void keyFollowsSettingsAndTheEndsOfTheFile() throws IOException {
+        File source = file("source.mp4", 300_000, 1);
+        long mtime = source.lastModified();
+        String key = CompressionCache.key(source, "high");
+
+        assertEquals(key, CompressionCache.key(source, "high"));
+        assertNotEquals(key, CompressionCache.key(source, "low"));
+
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            raf.seek(300_000 - 10);
+            raf.write(0x7f);
+        }
+        assertTrue(source.setLastModified(mtime));
+        assertNotEquals(key, CompressionCache.key(source, "high"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvictedOverBudget() throws IOException {
+        File dir = new File(tmp.getRoot(), "cache");
+        CompressionCache cache = new CompressionCache(dir, 250);
+        cache.put("a", file("a", 100, 1));
+        cache.put("b", file("b", 100, 2));
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", file("c", 100, 3));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(200, cache.totalBytes());
+    }
+
+    @Test
+    public void reopeningKeepsEntriesAndDropsOrphans() throws IOException {
+        File dir = new File(tmp.getRoot(), "cache");
+        new CompressionCache(dir, 1000).put("a", file("a", 100, 1));
+        // What an interrupted put leaves behind
+        File orphan = new File(dir, "b.mp4.tmp");
+        assertTrue(orphan.createNewFile());
+
+        CompressionCache reopened = new CompressionCache(dir, 1000);
+
+        assertEquals(1, reopened.size());
+        assertNotNull(reopened.get("a"));
+        assertFalse(orphan.exists());
+    }
+}
@@ -0,0 +1,27 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CompressionEstimatorTest {
+
+    @Test
+    public void outputSizeFollowsThePlannedBitrates() {
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.HIGH, 1920, 1080, 30, 12_000_000, 60_000_000, 0, 0, 0, true);
+        long bytes = CompressionEstimator.outputBytes(plan, false, 12_000_000, plan.audioBitrate, 60_000_000);
+        long payload = (plan.videoBitrate + plan.audioBitrate) * 60L / 8;
+        assertTrue(bytes > payload);
+        assertTrue(bytes < payload * 1.05);
+    }
+
+    @Test
+    public void transcodeTimeLearnsFromFinishedJobs() {
+        CompressionEstimator estimator = new CompressionEstimator();
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.HIGH, 1280, 720, 30, 0, 10_000_000, 0, 0, 0, false);
+        // 300 frames of 720p in 2.5 s: twice the assumed default rate of 720p60
+        estimator.record(300L * 1280 * 720, 2_500);
+        assertEquals(2_500, estimator.wallMs(plan, false, 10_000_000, 0));
+    }
+}
@@ -0,0 +1,214 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Deterministic in-memory {@link Codec}. Time is counted in ticks: every {@link #dequeueOutputBuffer}
+ * call is one tick, and a queued buffer becomes output {@code latencyTicks} ticks later, provided an
+ * output buffer is free. Buffer counts and sizes are fixed at construction and nothing is allocated
+ * while running, so the fake does not distort allocation measurements of the loop under test.
+ * <p>
+ * A decoder {@link #renderTo(FakeCodec) renders} into an encoder the way a surface would: a released
+ * frame takes one of the encoder's input slots, or is dropped if none is free.
+ */
+final class FakeCodec implements Codec {
+
+    private final ByteBuffer[] inputs;
+    private final ByteBuffer[] outputs;
+    private final long[] inPts;
+    private final int[] inSize;
+    private final int[] inFlags;
+    private final long[] readyAt;
+    private final long[] outPts;
+    private final int[] outSize;
+    private final int[] outFlags;
+
+    private final ArrayDeque<Integer> freeInputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> freeOutputs = new ArrayDeque<>();
+    private final ArrayDeque<Integer> pipeline = new ArrayDeque<>();
+    private final ArrayDeque<Integer> ready = new ArrayDeque<>();
+
+    private final int latencyTicks;
+    private final int outputFrameSize;
+    private final int compressionRatio;
+    private final boolean encoder;
+    private TrackFormat format;
+
+    private FakeCodec renderTarget;
+    private boolean formatReported = false;
+    private boolean surfaceEosPending = false;
+    private long tick = 0;
+    private long droppedFrames = 0;
+
+    /**
+     * @param outputFrameSize bytes per decoded frame (decoders only)
+     * @param compressionRatio input bytes per output byte (encoders only)
+     */
+    private FakeCodec(boolean encoder, int bufferCount, int bufferSize, int latencyTicks, int outputFrameSize,
+                      int compressionRatio, String mime) {
+        this.encoder = encoder;
+        this.latencyTicks = latencyTicks;
+        this.outputFrameSize = outputFrameSize;
+        this.compressionRatio = Math.max(1, compressionRatio);
+        this.format = () -> mime;
+        inputs = new ByteBuffer[bufferCount];
+        outputs = new ByteBuffer[bufferCount];
+        inPts = new long[bufferCount];
+        inSize = new int[bufferCount];
+        inFlags = new int[bufferCount];
+        readyAt = new long[bufferCount];
+        outPts = new long[bufferCount];
+        outSize = new int[bufferCount];
+        outFlags = new int[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            inputs[i] = ByteBuffer.allocateDirect(bufferSize);
+            outputs[i] = ByteBuffer.allocateDirect(Math.max(bufferSize, outputFrameSize));
+            freeInputs.add(i);
+            freeOutputs.add(i);
+        }
+    }
+
+    static FakeCodec decoder(int bufferCount, int bufferSize, int latencyTicks, int frameSize) {
+        return new FakeCodec(false, bufferCount, bufferSize, latencyTicks, frameSize, 1, "video/raw");
+    }
+
+    static FakeCodec encoder(int bufferCount, int frameSize, int latencyTicks, int compressionRatio) {
+        return new FakeCodec(true, bufferCount, frameSize, latencyTicks, 0, compressionRatio, "video/avc");
+    }
+
+    /** Returns to the just-constructed state, reusing every buffer. */
+    void reset() {
+        freeInputs.clear();
+        freeOutputs.clear();
+        pipeline.clear();
+        ready.clear();
+        for (int i = 0; i < inputs.length; i++) {
+            freeInputs.add(i);
+            freeOutputs.add(i);
+        }
+        formatReported = false;
+        surfaceEosPending = false;
+        tick = 0;
+        droppedFrames = 0;
+    }
+
+    /** Rendered decoder output goes into {@code encoder}'s input slots. */
+    FakeCodec renderTo(FakeCodec encoder) {
+        this.renderTarget = encoder;
+        return this;
+    }
+
+    /** Reports {@code csd} as the output format's csd-0, csd-1, ..., the way an AVC encoder reports SPS and PPS. */
+    FakeCodec withParameterSets(byte[]... csd) {
+        String mime = format.getMime();
+        format = new TrackFormat() {
+            @Override
+            public String getMime() {
+                return mime;
+            }
+
+            @Override
+            public ByteBuffer getCodecSpecificData(int index) {
+                return index < csd.length ? ByteBuffer.wrap(csd[index]) : null;
+            }
+        };
+        return this;
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        Integer index = freeInputs.poll();
+        return index == null ? INFO_TRY_AGAIN_LATER : index;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = inputs[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        inPts[index] = presentationTimeUs;
+        inSize[index] = size;
+        inFlags[index] = flags;
+        readyAt[index] = tick + latencyTicks;
+        pipeline.add(index);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        tick += 1 + timeoutUs / 1000;
+        if (encoder && !formatReported) {
+            formatReported = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        process();
+        Integer index = ready.poll();
+        if (index == null) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        info.set(0, outSize[index], outPts[index], outFlags[index]);
+        return index;
+    }
+
+    /** Moves due inputs to free output buffers. */
+    private void process() {
+        while (!pipeline.isEmpty() && readyAt[pipeline.peek()] <= tick && !freeOutputs.isEmpty()) {
+            int in = pipeline.poll();
+            int out = freeOutputs.poll();
+            boolean eos = (inFlags[in] & BUFFER_FLAG_END_OF_STREAM) != 0;
+            int size = inSize[in] == 0 ? 0 : encoder ? Math.max(1, inSize[in] / compressionRatio) : outputFrameSize;
+            outPts[out] = inPts[in];
+            outSize[out] = size;
+            outFlags[out] = eos ? BUFFER_FLAG_END_OF_STREAM : inFlags[in] & BUFFER_FLAG_KEY_FRAME;
+            ByteBuffer data = outputs[out];
+            data.clear();
+            data.limit(size);
+            freeInputs.add(in);
+            ready.add(out);
+        }
+        if (surfaceEosPending && !freeInputs.isEmpty()) {
+            surfaceEosPending = false;
+            queueInputBuffer(freeInputs.poll(), 0, 0, 0, BUFFER_FLAG_END_OF_STREAM);
+        }
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return outputs[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        if (render && renderTarget != null) {
+            renderTarget.onFrameRendered(outPts[index], outSize[index]);
+        }
+        freeOutputs.add(index);
+    }
+
+    private void onFrameRendered(long pts, int size) {
+        Integer slot = freeInputs.poll();
+        if (slot == null) {
+            droppedFrames++;
+            return;
+        }
+        queueInputBuffer(slot, 0, size, pts, 0);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        surfaceEosPending = true;
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return format;
+    }
+}
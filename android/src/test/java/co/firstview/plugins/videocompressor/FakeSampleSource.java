@@ -0,0 +1,60 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/** {@code count} samples of {@code sampleSize} bytes at a fixed frame interval, with a sync sample every {@code gop}. */
+final class FakeSampleSource implements SampleSource {
+
+    private final int count;
+    private final int sampleSize;
+    private final long frameDurationUs;
+    private final int gop;
+    private int next = 0;
+
+    FakeSampleSource(int count, int sampleSize, long frameDurationUs, int gop) {
+        this.count = count;
+        this.sampleSize = sampleSize;
+        this.frameDurationUs = frameDurationUs;
+        this.gop = Math.max(1, gop);
+    }
+
+    void rewind() {
+        next = 0;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (next >= count) {
+            return -1;
+        }
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + sampleSize);
+        return sampleSize;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return next >= count ? -1 : next * frameDurationUs;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return next >= count ? -1 : next % gop == 0 ? 1 : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (next >= count) {
+            return false;
+        }
+        next++;
+        return next < count;
+    }
+
+    @Override
+    public void seekTo(long timeUs) {
+        int frame = (int) Math.min(count - 1, Math.max(0, timeUs / frameDurationUs));
+        next = frame / gop * gop;
+    }
+}
@@ -0,0 +1,90 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FragmentedMp4WriterTest {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, 0x11};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] ASC = {0x12, 0x10};
+
+    private final ByteArrayOutputStream file = new ByteArrayOutputStream();
+    private final List<long[]> chunks = new ArrayList<>();
+
+    private FragmentedMp4Writer writer(long fragmentUs) {
+        return new FragmentedMp4Writer(file, fragmentUs, (seq, offset, length) -> chunks.add(new long[]{seq, offset, length}));
+    }
+
+    /** Top-level box types in file order. */
+    private static List<String> boxes(byte[] data) {
+        List<String> types = new ArrayList<>();
+        ByteBuffer b = ByteBuffer.wrap(data);
+        while (b.remaining() >= 8) {
+            int size = b.getInt(b.position());
+            types.add(new String(data, b.position() + 4, 4));
+            b.position(b.position() + size);
+        }
+        assertEquals("boxes must tile the file exactly", 0, b.remaining());
+        return types;
+    }
+
+    private static byte[] frame(int nalType, int payload) {
+        byte[] f = new byte[4 + 1 + payload];
+        f[3] = 1;
+        f[4] = (byte) nalType;
+        return f;
+    }
+
+    @Test
+    public void fragmentsStartAtKeyFramesAndChunksTileTheFile() throws Exception {
+        FragmentedMp4Writer w = writer(1_000_000);
+        int video = w.addVideoTrack(640, 360, SPS, PPS);
+        int audio = w.addAudioTrack(44_100, 2, ASC);
+        w.start();
+        for (int i = 0; i < 90; i++) {
+            long pts = i * 1_000_000L / 30;
+            byte[] f = frame(i % 30 == 0 ? 5 : 1, 100);
+            w.writeSample(video, f, 0, f.length, pts, i % 30 == 0);
+            w.writeSample(audio, new byte[20], 0, 20, pts, true);
+        }
+        w.finish();
+
+        byte[] data = file.toByteArray();
+        assertEquals(List.of("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"), boxes(data));
+        assertEquals(4, chunks.size());
+        long expectedOffset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            assertEquals(i, chunks.get(i)[0]);
+            assertEquals(expectedOffset, chunks.get(i)[1]);
+            expectedOffset += chunks.get(i)[2];
+        }
+        assertEquals(data.length, expectedOffset);
+    }
+
+    @Test
+    public void annexBStartCodesBecomeLengthPrefixes() throws Exception {
+        FragmentedMp4Writer w = writer(10_000_000);
+        int video = w.addVideoTrack(640, 360, SPS, PPS);
+        w.start();
+        int initLength = file.size();
+        // Two NAL units, the first behind a 4-byte and the second behind a 3-byte start code
+        byte[] sample = {0, 0, 0, 1, 0x06, 0x01, 0, 0, 1, 0x65, 0x7f, 0x7e};
+        w.writeSample(video, sample, 0, sample.length, 0, true);
+        w.finish();
+
+        byte[] data = file.toByteArray();
+        byte[] mdatPayload = new byte[4 + 2 + 4 + 3];
+        System.arraycopy(data, data.length - mdatPayload.length, mdatPayload, 0, mdatPayload.length);
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0x06, 0x01, 0, 0, 0, 3, 0x65, 0x7f, 0x7e}, mdatPayload);
+        assertEquals(List.of("moof", "mdat"), boxes(Arrays.copyOfRange(data, initLength, data.length)));
+    }
+}
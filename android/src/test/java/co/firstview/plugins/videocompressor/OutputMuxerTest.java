@@ -0,0 +1,69 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+public class OutputMuxerTest {
+
+    /** Records the calls it gets; {@code stop} fails like a muxer that could not write its last fragment. */
+    private static final class FailingMuxer implements OutputMuxer {
+        final StringBuilder calls = new StringBuilder();
+
+        @Override public void setOrientationHint(int degrees) {}
+        @Override public int addTrack(MediaFormat format) { return 0; }
+        @Override public void start() {}
+        @Override public void writeSampleData(int trackIndex, ByteBuffer buffer, MediaCodec.BufferInfo info) {}
+
+        @Override
+        public void stop() {
+            calls.append("stop ");
+            throw new IllegalStateException("Could not write last fragment");
+        }
+
+        @Override
+        public void release() {
+            calls.append("release");
+            throw new IllegalStateException("release failures are ignored");
+        }
+    }
+
+    @Test
+    public void stopFailurePropagatesAfterRelease() {
+        FailingMuxer muxer = new FailingMuxer();
+        try {
+            OutputMuxer.finish(muxer);
+            fail("a failed stop must fail the job");
+        } catch (IllegalStateException e) {
+            assertEquals("Could not write last fragment", e.getMessage());
+        }
+        assertEquals("stop release", muxer.calls.toString());
+    }
+
+    @Test
+    public void fragmentedMuxerFailsWhenTheFileCannotBeFinished() throws Exception {
+        File file = File.createTempFile("fragmented", ".mp4");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            OutputMuxer muxer = new FragmentedMuxer(out, 1_000_000, (seq, offset, length) -> {});
+            out.close();
+            try {
+                OutputMuxer.finish(muxer);
+                fail("finishing onto a closed file must fail");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Could not write last fragment"));
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class PcmProcessorTest {
+
+    /** Interleaved frames, {@code sample(frame, channel)}, as little-endian 16-bit PCM. */
+    private interface Signal {
+        int sample(int frame, int channel);
+    }
+
+    private static ByteBuffer pcm(int frames, int channels, Signal signal) {
+        ByteBuffer b = ByteBuffer.allocate(frames * channels * 2).order(ByteOrder.LITTLE_ENDIAN);
+        for (int f = 0; f < frames; f++) {
+            for (int c = 0; c < channels; c++) b.putShort((short) signal.sample(f, c));
+        }
+        b.flip();
+        return b;
+    }
+
+    /** Runs {@code src} through in buffers of {@code chunkFrames}, to exercise state kept between calls. */
+    private static short[] run(PcmProcessor processor, ByteBuffer src, int chunkFrames) {
+        ByteBuffer dst = ByteBuffer.allocate(src.remaining() * 2).order(ByteOrder.LITTLE_ENDIAN);
+        int chunk = chunkFrames * processor.inputFrameSize();
+        while (src.hasRemaining()) {
+            ByteBuffer slice = src.duplicate();
+            slice.limit(Math.min(src.limit(), src.position() + chunk));
+            processor.process(slice, dst);
+            src.position(slice.position());
+        }
+        dst.flip();
+        short[] out = new short[dst.remaining() / 2];
+        dst.asShortBuffer().get(out);
+        return out;
+    }
+
+    @Test
+    public void halvesTheRateAndAveragesStereoToMono() {
+        PcmProcessor processor = new PcmProcessor(24_000, 1);
+        processor.setInputFormat(48_000, 2);
+        // A ramp on the left, constant on the right; interpolation must land on every other input frame
+        short[] out = run(processor, pcm(1000, 2, (f, c) -> c == 0 ? f * 10 : 2000), 37);
+
+        // The anti-alias filter's look-ahead keeps the last input frames back
+        int expected = (1000 - PcmProcessor.FILTER_HALF_LENGTH) / 2;
+        assertTrue(out.length >= expected - 1 && out.length <= expected);
+        // A ramp passes the filter unchanged and undelayed once its window is past the held first frame
+        for (int k = PcmProcessor.FILTER_HALF_LENGTH / 2; k < out.length; k++) {
+            assertEquals((2 * k * 10 + 2000) / 2, out[k], 1);
+        }
+    }
+
+    @Test
+    public void downsamplingRemovesTonesAboveTheOutputNyquist() {
+        // 48 kHz to 22.05 kHz: 15 kHz would fold back to 7 kHz, while 1 kHz must pass
+        assertTrue(peak(resampledTone(15_000)) < 500);
+        assertTrue(peak(resampledTone(1_000)) > 9_000);
+    }
+
+    private static short[] resampledTone(int hz) {
+        PcmProcessor processor = new PcmProcessor(22_050, 1);
+        processor.setInputFormat(48_000, 1);
+        return run(processor, pcm(4800, 1, (f, c) -> (int) (10_000 * Math.sin(2 * Math.PI * hz * f / 48_000))), 256);
+    }
+
+    /** Largest magnitude after the filter has settled. */
+    private static int peak(short[] samples) {
+        int peak = 0;
+        for (int i = PcmProcessor.FILTER_HALF_LENGTH; i < samples.length; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+
+    @Test
+    public void foldsCentreOfFiveOneIntoBothSidesWithoutClipping() {
+        PcmProcessor processor = new PcmProcessor(48_000, 2);
+        processor.setInputFormat(48_000, 6);
+        short[] centre = run(processor, pcm(10, 6, (f, c) -> c == 2 ? 10_000 : 0), 10);
+        assertEquals(2929, centre[0], 2);
+        assertEquals(2929, centre[1], 2);
+
+        processor.setInputFormat(48_000, 6);
+        short[] full = run(processor, pcm(10, 6, (f, c) -> Short.MAX_VALUE), 10);
+        assertEquals(Short.MAX_VALUE, full[0], 4);
+        assertEquals(Short.MAX_VALUE, full[1], 4);
+    }
+
+    @Test
+    public void identityLayoutIsReported() {
+        PcmProcessor processor = new PcmProcessor(44_100, 2);
+        processor.setInputFormat(44_100, 2);
+        assertTrue(processor.isIdentity());
+        processor.setInputFormat(44_100, 1);
+        assertFalse(processor.isIdentity());
+    }
+}
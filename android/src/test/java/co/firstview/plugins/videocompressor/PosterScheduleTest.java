@@ -0,0 +1,35 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class PosterScheduleTest {
+
+    /** Offers frames every {@code stepUs} in {@code [fromUs, toUs)}; returns the ones taken. */
+    private static List<Long> taken(PosterSchedule schedule, long fromUs, long toUs, long stepUs) {
+        List<Long> out = new ArrayList<>();
+        for (long pts = fromUs; pts < toUs; pts += stepUs) {
+            if (schedule.take(pts)) out.add(pts);
+        }
+        return out;
+    }
+
+    @Test
+    public void timesBetweenFramesMapToTheNextFrameOnce() {
+        PosterSchedule schedule = new PosterSchedule(new long[]{2_500_000, 1_010_000, 1_020_000}, 0, 0, Long.MAX_VALUE);
+        // 1.01 s and 1.02 s both fall before the frame at 1.1 s
+        assertEquals(List.of(1_100_000L, 2_500_000L), taken(schedule, 0, 5_000_000, 100_000));
+    }
+
+    @Test
+    public void segmentsSplitTheIntervalWithoutDuplicates() {
+        List<Long> all = new ArrayList<>();
+        all.addAll(taken(new PosterSchedule(null, 2_000_000, 0, 3_000_000), 0, 3_000_000, 100_000));
+        all.addAll(taken(new PosterSchedule(null, 2_000_000, 3_000_000, 7_000_000), 3_000_000, 7_000_000, 100_000));
+        assertEquals(List.of(0L, 2_000_000L, 4_000_000L, 6_000_000L), all);
+    }
+}
@@ -0,0 +1,52 @@
+package co.firstview.plugins.videocompressor;
+
+import java.nio.ByteBuffer;
+
+/** {@link SampleSink} that keeps what a muxer would need to check, in pre-sized arrays. */
+final class RecordingSink implements SampleSink {
+
+    final long[] pts;
+    int samples = 0;
+    long bytes = 0;
+    int formatChanges = 0;
+    TrackFormat format;
+    int samplesBeforeFormat = 0;
+    boolean endOfStream = false;
+
+    RecordingSink(int capacity) {
+        pts = new long[capacity];
+    }
+
+    void reset() {
+        samples = 0;
+        bytes = 0;
+        formatChanges = 0;
+        format = null;
+        samplesBeforeFormat = 0;
+        endOfStream = false;
+    }
+
+    @Override
+    public void onOutputFormat(TrackFormat format) {
+        formatChanges++;
+        this.format = format;
+    }
+
+    @Override
+    public void writeSample(ByteBuffer data, SampleInfo info) {
+        if (info.isEndOfStream()) {
+            endOfStream = true;
+        }
+        if (info.size == 0 || info.isCodecConfig()) {
+            return;
+        }
+        if (formatChanges == 0) {
+            samplesBeforeFormat++;
+        }
+        if (samples < pts.length) {
+            pts[samples] = info.presentationTimeUs;
+        }
+        samples++;
+        bytes += info.size;
+    }
+}
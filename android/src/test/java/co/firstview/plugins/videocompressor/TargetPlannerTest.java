@@ -0,0 +1,70 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TargetPlannerTest {
+
+    @Test
+    public void portraitSourceKeepsItsOrientationAndAspect() {
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.HIGH, 1080, 1920, 30, 12_000_000, 10_000_000, 0, 0, 0, true);
+        assertEquals(720, plan.width);
+        assertEquals(1280, plan.height);
+        assertEquals(30, plan.frameRate);
+        assertFalse(plan.keepsSourceSize);
+    }
+
+    @Test
+    public void smallSourceIsNeverUpscaled() {
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.HIGH, 480, 360, 25, 0, 10_000_000, 0, 0, 0, false);
+        assertEquals(480, plan.width);
+        assertEquals(360, plan.height);
+        assertTrue(plan.keepsSourceSize);
+    }
+
+    @Test
+    public void sixteenByNineStaysExactOnEveryPreset() {
+        TargetPlanner.Plan low = TargetPlanner.plan(TargetPlanner.LOW, 1920, 1080, 30, 0, 10_000_000, 0, 0, 0, true);
+        TargetPlanner.Plan medium = TargetPlanner.plan(TargetPlanner.MEDIUM, 1920, 1080, 30, 0, 10_000_000, 0, 0, 0, true);
+        assertEquals(low.width * 9, low.height * 16);
+        assertEquals(medium.width * 9, medium.height * 16);
+    }
+
+    @Test
+    public void bitrateIsCappedAtTheSource() {
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.HIGH, 1280, 720, 30, 800_000, 10_000_000, 0, 0, 0, false);
+        assertEquals(800_000, plan.videoBitrate);
+        assertTrue(plan.uncappedVideoBitrate > 800_000);
+    }
+
+    @Test
+    public void targetSizeDrivesBitrateAndShrinksThePicture() {
+        // 5 MiB for 60 s leaves roughly 550 kbps for video
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.HIGH, 1920, 1080, 30, 0, 60_000_000, 0, 5, 0, true);
+        long totalBps = (long) plan.videoBitrate + plan.audioBitrate;
+        assertTrue(totalBps * 60 / 8 <= 5L * 1024 * 1024);
+        assertTrue(plan.width < 1280);
+        assertEquals(0, plan.width % TargetPlanner.ALIGNMENT);
+        assertEquals(0, plan.height % TargetPlanner.ALIGNMENT);
+    }
+
+    @Test
+    public void coarseEncoderAlignmentRefitsThePlanKeepingItsAspect() {
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.MEDIUM, 1920, 1080, 30, 0, 10_000_000, 0, 0, 0, true);
+        TargetPlanner.Plan fitted = TargetPlanner.fitAlignment(plan, 16, 16);
+        assertEquals(0, fitted.width % 16);
+        assertEquals(0, fitted.height % 16);
+        assertTrue(fitted.width <= plan.width && fitted.height <= plan.height);
+        assertEquals(16.0 / 9, fitted.width / (double) fitted.height, 0.01);
+        assertEquals(plan.videoBitrate, fitted.videoBitrate);
+    }
+
+    @Test
+    public void alignedPlanIsKept() {
+        TargetPlanner.Plan plan = TargetPlanner.plan(TargetPlanner.HIGH, 1920, 1080, 30, 0, 10_000_000, 0, 0, 0, true);
+        assertTrue(plan == TargetPlanner.fitAlignment(plan, 16, 8));
+    }
+}
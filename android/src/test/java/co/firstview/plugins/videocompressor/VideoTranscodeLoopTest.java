@@ -0,0 +1,115 @@
+package co.firstview.plugins.videocompressor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class VideoTranscodeLoopTest {
+
+    private static final int FRAME_SIZE = 4096;
+    private static final long FRAME_US = 33_333;
+
+    private static int runToEnd(VideoTranscodeLoop loop) throws Exception {
+        int steps = 0;
+        while (!loop.step()) {
+            steps++;
+            if (steps > 100_000) {
+                throw new AssertionError("Loop did not reach end of stream");
+            }
+        }
+        return steps;
+    }
+
+    private static VideoTranscodeLoop loop(FakeSampleSource source, FakeCodec decoder, FakeCodec encoder, RecordingSink sink) {
+        return new VideoTranscodeLoop(source, decoder.renderTo(encoder), encoder, sink, new FrameRateSelector(0),
+                new PipelineMetrics());
+    }
+
+    @Test
+    public void everyFrameReachesTheSinkInOrder() throws Exception {
+        FakeSampleSource source = new FakeSampleSource(300, 2048, FRAME_US, 30);
+        FakeCodec decoder = FakeCodec.decoder(4, 2048, 3, FRAME_SIZE);
+        FakeCodec encoder = FakeCodec.encoder(8, FRAME_SIZE, 5, 20);
+        RecordingSink sink = new RecordingSink(300);
+
+        runToEnd(loop(source, decoder, encoder, sink));
+
+        assertEquals(0, decoder.getDroppedFrames());
+        assertEquals(300, sink.samples);
+        assertEquals(1, sink.formatChanges);
+        assertEquals(0, sink.samplesBeforeFormat);
+        assertTrue(sink.endOfStream);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i * FRAME_US, sink.pts[i]);
+        }
+    }
+
+    @Test
+    public void emptySourceStillEndsTheStream() throws Exception {
+        RecordingSink sink = new RecordingSink(1);
+        FakeCodec encoder = FakeCodec.encoder(2, FRAME_SIZE, 1, 20);
+
+        runToEnd(loop(new FakeSampleSource(0, 2048, FRAME_US, 30), FakeCodec.decoder(2, 2048, 1, FRAME_SIZE), encoder, sink));
+
+        assertEquals(0, sink.samples);
+        assertTrue(sink.endOfStream);
+    }
+
+    @Test
+    public void metricsCountDecodedFramesAndBytes() throws Exception {
+        FakeSampleSource source = new FakeSampleSource(50, 1000, FRAME_US, 10);
+        FakeCodec encoder = FakeCodec.encoder(4, FRAME_SIZE, 2, 8);
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        VideoTranscodeLoop loop = new VideoTranscodeLoop(source, FakeCodec.decoder(2, 1000, 1, FRAME_SIZE).renderTo(encoder),
+                encoder, new RecordingSink(50), new FrameRateSelector(0), metrics);
+        runToEnd(loop);
+
+        assertEquals(50, metrics.get(PipelineMetrics.FRAMES_DECODED));
+        assertEquals(50_000, metrics.get(PipelineMetrics.INPUT_BYTES));
+    }
+
+    @Test
+    public void highFrameRateSourceIsDecimatedBeforeTheEncoder() throws Exception {
+        FakeSampleSource source = new FakeSampleSource(120, 1000, 16_667, 30);
+        FakeCodec encoder = FakeCodec.encoder(4, FRAME_SIZE, 2, 8);
+        RecordingSink sink = new RecordingSink(120);
+        PipelineMetrics metrics = new PipelineMetrics();
+
+        VideoTranscodeLoop loop = new VideoTranscodeLoop(source, FakeCodec.decoder(2, 1000, 1, FRAME_SIZE).renderTo(encoder),
+                encoder, sink, new FrameRateSelector(30), metrics);
+        runToEnd(loop);
+
+        assertEquals(60, sink.samples);
+        assertEquals(60, metrics.get(PipelineMetrics.FRAMES_DROPPED));
+        for (int i = 0; i < 60; i++) {
+            assertEquals(2 * i * 16_667L, sink.pts[i]);
+        }
+    }
+
+    /** Encodes one segment's worth of frames with {@code encoder} and returns the format it reported. */
+    private static TrackFormat segmentFormat(FakeCodec encoder) throws Exception {
+        RecordingSink sink = new RecordingSink(30);
+        runToEnd(loop(new FakeSampleSource(30, 1000, FRAME_US, 10), FakeCodec.decoder(2, 1000, 1, FRAME_SIZE), encoder, sink));
+        return sink.format;
+    }
+
+    @Test
+    public void segmentsJoinOnlyWithSegmentZerosParameterSets() throws Exception {
+        byte[] sps = {0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f};
+        byte[] pps = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+        TrackFormat first = segmentFormat(FakeCodec.encoder(4, FRAME_SIZE, 2, 8).withParameterSets(sps, pps));
+
+        TrackFormat same = segmentFormat(FakeCodec.encoder(4, FRAME_SIZE, 2, 8).withParameterSets(sps.clone(), pps.clone()));
+        byte[] otherPps = pps.clone();
+        otherPps[5] = 0x06;
+        TrackFormat other = segmentFormat(FakeCodec.encoder(4, FRAME_SIZE, 2, 8).withParameterSets(sps, otherPps));
+        TrackFormat none = segmentFormat(FakeCodec.encoder(4, FRAME_SIZE, 2, 8));
+
+        assertTrue(TrackFormat.sameParameterSets(first, same));
+        assertFalse(TrackFormat.sameParameterSets(first, other));
+        assertFalse(TrackFormat.sameParameterSets(first, none));
+    }
+}